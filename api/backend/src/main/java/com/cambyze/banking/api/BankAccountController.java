@@ -1,6 +1,11 @@
 package com.cambyze.banking.api;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
@@ -8,10 +13,19 @@ import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import com.cambyze.banking.api.microservice.exceptions.BatchTooLargeException;
 import com.cambyze.banking.api.microservice.exceptions.InsufficientBalanceException;
 import com.cambyze.banking.api.microservice.exceptions.InvalidAmountException;
 import com.cambyze.banking.api.microservice.exceptions.InvalidBANException;
@@ -22,11 +36,19 @@ import com.cambyze.banking.api.microservice.exceptions.RecordNotFoundException;
 import com.cambyze.banking.api.microservice.exceptions.SavingsLimitReachedException;
 import com.cambyze.banking.api.microservice.exceptions.TechnicalErrorException;
 import com.cambyze.banking.persistence.model.Constants;
+import com.cambyze.banking.persistence.model.OperationPage;
 import com.cambyze.banking.services.AskOverdraftResponse;
 import com.cambyze.banking.services.BankingServices;
+import com.cambyze.banking.services.BatchOperationRequest;
+import com.cambyze.banking.services.BatchOperationResult;
 import com.cambyze.banking.services.CreateDepositResponse;
+import com.cambyze.banking.services.CreateTransferResponse;
 import com.cambyze.banking.services.CreateWithdrawResponse;
 import com.cambyze.banking.services.MonthlyBankStatement;
+import com.cambyze.banking.services.execution.AccountLaneBusyException;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import io.swagger.v3.oas.annotations.OpenAPIDefinition;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
@@ -37,6 +59,7 @@ import io.swagger.v3.oas.annotations.media.Content;
 import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.servers.Server;
+import jakarta.servlet.http.HttpServletResponse;
 import com.cambyze.banking.persistence.model.Account;
 import java.util.List;
 import java.util.Collections;
@@ -62,15 +85,29 @@ public class BankAccountController {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(BankAccountController.class);
 
-  public BankAccountController(BankingServices bankingServices) {
+  public BankAccountController(BankingServices bankingServices, ObjectMapper objectMapper,
+      IdempotentRequests idempotentRequests) {
     super();
     this.bankingServices = bankingServices;
+    this.idempotentRequests = idempotentRequests;
+    this.batchResultsType = objectMapper.getTypeFactory().constructCollectionType(List.class,
+        BatchOperationResult.class);
+    this.operationWriter =
+        objectMapper.writerFor(com.cambyze.banking.persistence.model.Operation.class);
   }
   
 
   // @Autowired
   private BankingServices bankingServices;
 
+  // JSON conversion of the operations of the exports
+  private final ObjectWriter operationWriter;
+
+  // Write requests executed once by idempotency key
+  private final IdempotentRequests idempotentRequests;
+
+  private final JavaType batchResultsType;
+
   @POST
   @Consumes("application/json")
   @Produces("application/json")
@@ -90,7 +127,14 @@ public class BankAccountController {
   
   @Path("/createBankAccount")
   @PostMapping("/createBankAccount")
-  public String createBankAccount(@RequestParam(value = "personId") String personId) {   
+  public String createBankAccount(@RequestParam(value = "personId") String personId,
+      @Parameter(description = "Key of the request, the request sent again with the same key returns the first response without being executed again")
+      @RequestHeader(value = IdempotentRequests.HEADER, required = false) String idempotencyKey) {
+    return idempotentRequests.execute(idempotencyKey, String.class,
+        () -> newBankAccount(personId), "createBankAccount", personId);
+  }
+
+  private String newBankAccount(String personId) {
     String ban = bankingServices.createNewBankAccount(personId);
     if (ban != null && !ban.isEmpty()) {
       LOGGER.info("New created account: {}", ban);
@@ -102,6 +146,21 @@ public class BankAccountController {
     }
   }
 
+  /**
+   * Parse an amount as a decimal number, to avoid the floating-point drift
+   * 
+   * @throws InvalidAmountException if the amount is not a number
+   */
+  private static BigDecimal parseAmount(String amount) {
+    try {
+      return new BigDecimal(amount.trim());
+    } catch (NumberFormatException e) {
+      String msg = "Invalid amount: " + amount;
+      LOGGER.error(msg);
+      throw new InvalidAmountException(msg);
+    }
+  }
+
   private RuntimeException functionalException(String returnCode) {
     switch (returnCode) {
       case Constants.BANK_ACCOUNT_NOT_EXISTS:
@@ -125,6 +184,18 @@ public class BankAccountController {
     }
   }
 
+  /**
+   * The lane of the bank account is full or busy, the request has not been executed: 503 so that
+   * the client sends it again later
+   */
+  @ExceptionHandler(AccountLaneBusyException.class)
+  public void accountLaneBusy(AccountLaneBusyException e, HttpServletResponse response)
+      throws IOException {
+    LOGGER.warn(e.getMessage());
+    response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+    response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value(), e.getMessage());
+  }
+
   @POST
   @Consumes("application/json")
   @Produces("application/json")
@@ -141,8 +212,14 @@ public class BankAccountController {
           content = @Content(mediaType = "String"))})
 
   @PostMapping("/createSavingsAccount")
-  public String createSavingsAccount(@RequestParam("personId") String personId) {
+  public String createSavingsAccount(@RequestParam("personId") String personId,
+      @Parameter(description = "Key of the request, the request sent again with the same key returns the first response without being executed again")
+      @RequestHeader(value = IdempotentRequests.HEADER, required = false) String idempotencyKey) {
+    return idempotentRequests.execute(idempotencyKey, String.class,
+        () -> newSavingsAccount(personId), "createSavingsAccount", personId);
+  }
 
+  private String newSavingsAccount(String personId) {
     String ban = bankingServices.createNewSavingsAccount(personId);
     if (ban != null && !ban.isEmpty()) {
       LOGGER.info("New created savings account: {} ", ban);
@@ -171,16 +248,16 @@ public class BankAccountController {
 
   @PostMapping("/createDeposit")
   public BigDecimal createDeposit(@RequestParam(value = "ban") String ban,
-      @RequestParam(value = "amount") String amount) {
-    BigDecimal bigAmount;
-    try {
-      bigAmount = BigDecimal.valueOf(Double.parseDouble(amount));
-    } catch (NumberFormatException e) {
-      String msg = "Invalid amount: " + e.getMessage();
-      LOGGER.error(msg);
-      throw new TechnicalErrorException(msg);
-    }
+      @RequestParam(value = "amount") String amount,
+      @Parameter(description = "Key of the request, the request sent again with the same key returns the first response without being executed again")
+      @RequestHeader(value = IdempotentRequests.HEADER, required = false) String idempotencyKey) {
+    // Refused before the claim of the key, the request is not executed
+    BigDecimal bigAmount = parseAmount(amount);
+    return idempotentRequests.execute(idempotencyKey, BigDecimal.class,
+        () -> deposit(ban, bigAmount), "createDeposit", ban, amount);
+  }
 
+  private BigDecimal deposit(String ban, BigDecimal bigAmount) {
     CreateDepositResponse createDepositResponse = bankingServices.createDeposit(ban, bigAmount);
     if (createDepositResponse != null && createDepositResponse.getNewBalance() != null
         && createDepositResponse.getReturnCode().equals(Constants.SERVICE_OK)) {
@@ -216,17 +293,16 @@ public class BankAccountController {
   //@Path("/createWithdraw")
   @PostMapping("/createWithdraw")
   public BigDecimal createWithdraw(@RequestParam(value = "ban") String ban,
-      @RequestParam(value = "amount") String amount) {
-
-    BigDecimal bigAmount;
-    try {
-      bigAmount = BigDecimal.valueOf(Double.parseDouble(amount));
-    } catch (NumberFormatException e) {
-      String msg = "Invalid amount: " + e.getMessage();
-      LOGGER.error(msg);
-      throw new TechnicalErrorException(msg);
-    }
+      @RequestParam(value = "amount") String amount,
+      @Parameter(description = "Key of the request, the request sent again with the same key returns the first response without being executed again")
+      @RequestHeader(value = IdempotentRequests.HEADER, required = false) String idempotencyKey) {
+    // Refused before the claim of the key, the request is not executed
+    BigDecimal bigAmount = parseAmount(amount);
+    return idempotentRequests.execute(idempotencyKey, BigDecimal.class,
+        () -> withdraw(ban, bigAmount), "createWithdraw", ban, amount);
+  }
 
+  private BigDecimal withdraw(String ban, BigDecimal bigAmount) {
     CreateWithdrawResponse createWithdrawResponse = bankingServices.createWithdraw(ban, bigAmount);
     if (createWithdrawResponse != null && createWithdrawResponse.getNewBalance() != null
         && createWithdrawResponse.getReturnCode().equals(Constants.SERVICE_OK)) {
@@ -242,6 +318,48 @@ public class BankAccountController {
     }
   }
 
+  @POST
+  @Consumes("application/json")
+  @Produces("application/json")
+  @Operation(summary = "Create a transfer between two bank accounts",
+      description = "Debit the first bank account, credit the second one and return the new balance of the debited bank account",
+      requestBody = @io.swagger.v3.oas.annotations.parameters.RequestBody(
+          description = "No request body needed, you have to use the required parameters: fromBan (the debited bank account number, ex: CAMBYZEBANK-2), toBan (the credited bank account number, ex: CAMBYZEBANK-3) & amount (the transfer amount, ex: 50.00)",
+          required = false),
+      parameters = {
+          @Parameter(required = true, description = "Debited Bank Account Number",
+              example = "CAMBYZEBANK-2"),
+          @Parameter(required = true, description = "Credited Bank Account Number",
+              example = "CAMBYZEBANK-3"),
+          @Parameter(required = true, description = "Transfer amount", example = "50.00")},
+      responses = {@ApiResponse(description = "The new balance of the debited bank account",
+          content = @Content(mediaType = "BigDecimal"))})
+  @PostMapping("/createTransfer")
+  public BigDecimal createTransfer(@RequestParam(value = "fromBan") String fromBan,
+      @RequestParam(value = "toBan") String toBan, @RequestParam(value = "amount") String amount,
+      @Parameter(description = "Key of the request, the request sent again with the same key returns the first response without being executed again")
+      @RequestHeader(value = IdempotentRequests.HEADER, required = false) String idempotencyKey) {
+    // Refused before the claim of the key, the request is not executed
+    BigDecimal bigAmount = parseAmount(amount);
+    return idempotentRequests.execute(idempotencyKey, BigDecimal.class,
+        () -> transfer(fromBan, toBan, bigAmount), "createTransfer", fromBan, toBan, amount);
+  }
+
+  private BigDecimal transfer(String fromBan, String toBan, BigDecimal bigAmount) {
+    CreateTransferResponse createTransferResponse =
+        bankingServices.createTransfer(fromBan, toBan, bigAmount);
+    if (createTransferResponse == null) {
+      String msg = "Technical pb when creating a new transfer";
+      LOGGER.error(msg);
+      throw new TechnicalErrorException(msg);
+    } else if (createTransferResponse.getNewBalance() != null
+        && createTransferResponse.getReturnCode().equals(Constants.SERVICE_OK)) {
+      return createTransferResponse.getNewBalance();
+    } else {
+      throw functionalException(createTransferResponse.getReturnCode());
+    }
+  }
+
   @POST
   @Consumes("application/json")
   @Produces("application/json")
@@ -256,8 +374,14 @@ public class BankAccountController {
           content = @Content(mediaType = "BigDecimal"))})
   //@Path("/requestOverdraft")
   @PostMapping("/requestOverdraft")
-  public BigDecimal requestOverdraft(@RequestParam(value = "ban") String ban) {
+  public BigDecimal requestOverdraft(@RequestParam(value = "ban") String ban,
+      @Parameter(description = "Key of the request, the request sent again with the same key returns the first response without being executed again")
+      @RequestHeader(value = IdempotentRequests.HEADER, required = false) String idempotencyKey) {
+    return idempotentRequests.execute(idempotencyKey, BigDecimal.class, () -> overdraft(ban),
+        "requestOverdraft", ban);
+  }
 
+  private BigDecimal overdraft(String ban) {
     AskOverdraftResponse askOverdraftResponse = bankingServices.askOverdraft(ban);
     if (askOverdraftResponse != null && askOverdraftResponse.getOverdraftAmount() != null
         && askOverdraftResponse.getReturnCode().equals(Constants.SERVICE_OK)) {
@@ -273,6 +397,39 @@ public class BankAccountController {
     }
   }
 
+  @POST
+  @Consumes("application/json")
+  @Produces("application/json")
+  @Operation(summary = "Create a batch of deposits and withdraws",
+      description = "Create the deposits and withdraws of several bank accounts in one call and return the result of each operation in the same order. The operations are checked in the order of the list. At most 1000 operations by call",
+      requestBody = @io.swagger.v3.oas.annotations.parameters.RequestBody(
+          description = "List of operations: ban (the bank account number, ex: CAMBYZEBANK-2), operationType (1 for a deposit, 2 for a withdraw), amount (ex: 120.26) & operationDate (optional, ex: 2025-01-31)",
+          required = true),
+      responses = {@ApiResponse(
+          description = "The return code of each operation with the id of the created operation",
+          content = @Content(mediaType = "BatchOperationResult"))})
+  @PostMapping("/createOperations")
+  public List<BatchOperationResult> createOperations(
+      @RequestBody List<BatchOperationRequest> operations,
+      @Parameter(description = "Key of the request, the request sent again with the same key returns the first response without being executed again")
+      @RequestHeader(value = IdempotentRequests.HEADER, required = false) String idempotencyKey) {
+    if (operations == null || operations.isEmpty()) {
+      return Collections.emptyList();
+    }
+    if (operations.size() > Constants.MAX_BATCH_SIZE) {
+      throw new BatchTooLargeException(
+          "A batch contains at most " + Constants.MAX_BATCH_SIZE + " operations");
+    }
+    return idempotentRequests.execute(idempotencyKey, batchResultsType,
+        () -> operations(operations), "createOperations", operations);
+  }
+
+  private List<BatchOperationResult> operations(List<BatchOperationRequest> operations) {
+    List<BatchOperationResult> results = bankingServices.createOperations(operations);
+    LOGGER.debug("Batch of {} operations created", results.size());
+    return results;
+  }
+
   @GET
   @Consumes("application/json")
   @Operation(summary = "Send the monthly bank statement",
@@ -280,16 +437,40 @@ public class BankAccountController {
       requestBody = @io.swagger.v3.oas.annotations.parameters.RequestBody(
           description = "No request body needed, you have to use the required parameters: ban (the bank account number, ex: CAMBYZEBANK-2)",
           required = false),
-      parameters = {@Parameter(required = true, description = "Bank Account Number",
-          example = "CAMBYZEBANK-2")},
+      parameters = {
+          @Parameter(required = true, description = "Bank Account Number",
+              example = "CAMBYZEBANK-2"),
+          @Parameter(required = false, description = "Month of the statement, the last month until today if empty. The statements of the closed months are built at the period close, from the month of the creation of the bank account",
+              example = "2025-01")},
       responses = {@ApiResponse(description = "The bank statement",
           content = @Content(mediaType = "MonthlyBankStatement"))})
 
   @Path("/monthlyBankStatement")
   @GetMapping("/monthlyBankStatement")
   public MonthlyBankStatement calculateMonthlyBankStatement(
-      @RequestParam(value = "ban") String ban) {
-    MonthlyBankStatement bk = bankingServices.createMonthlyBankStatement(ban);
+      @RequestParam(value = "ban") String ban,
+      @RequestParam(value = "period", required = false) String period) {
+    MonthlyBankStatement bk;
+    if (period != null && !period.isEmpty()) {
+      YearMonth month;
+      try {
+        month = YearMonth.parse(period);
+      } catch (DateTimeParseException e) {
+        throw functionalException(Constants.INVALID_DATE);
+      }
+      if (month.isAfter(YearMonth.now())) {
+        throw functionalException(Constants.INVALID_DATE);
+      }
+      bk = bankingServices.createMonthlyBankStatement(ban, month);
+      if (bk == null) {
+        // Month before the first month of the bank account or unknown bank account
+        throw functionalException(bankingServices.findFirstStatementPeriod(ban) != null
+            ? Constants.INVALID_DATE
+            : Constants.BANK_ACCOUNT_NOT_EXISTS);
+      }
+    } else {
+      bk = bankingServices.createMonthlyBankStatement(ban);
+    }
     if (bk != null) {
       return bk;
     } else {
@@ -298,8 +479,84 @@ public class BankAccountController {
       throw new TechnicalErrorException(msg);
     }
   }
+
+  @GET
+  @Consumes("application/json")
+  @Operation(summary = "Send a page of the history of the operations",
+      description = "Send the operations of the bank account, the most recent first, by pages. The next page is requested with the date and the id of the last operation of the previous page",
+      requestBody = @io.swagger.v3.oas.annotations.parameters.RequestBody(
+          description = "No request body needed, you have to use the required parameters: ban (the bank account number, ex: CAMBYZEBANK-2)",
+          required = false),
+      parameters = {
+          @Parameter(required = true, description = "Bank Account Number",
+              example = "CAMBYZEBANK-2"),
+          @Parameter(required = false, description = "Date of the last operation of the previous page",
+              example = "2025-01-31"),
+          @Parameter(required = false, description = "Id of the last operation of the previous page"),
+          @Parameter(required = false, description = "Number of operations of the page, at most 500",
+              example = "50")},
+      responses = {@ApiResponse(description = "The page of operations",
+          content = @Content(mediaType = "OperationPage"))})
+
+  @Path("/operationHistory")
+  @GetMapping("/operationHistory")
+  public OperationPage operationHistory(@RequestParam(value = "ban") String ban,
+      @RequestParam(value = "afterDate", required = false) String afterDate,
+      @RequestParam(value = "afterId", required = false) String afterId,
+      @RequestParam(value = "size", defaultValue = "50") int size) {
+    LocalDate lastDate = null;
+    if (afterDate != null && !afterDate.isEmpty()) {
+      try {
+        lastDate = LocalDate.parse(afterDate);
+      } catch (DateTimeParseException e) {
+        throw functionalException(Constants.INVALID_DATE);
+      }
+    }
+    return bankingServices.findOperationHistory(ban, lastDate, afterId, size);
+  }
   
   
+  @GET
+  @Consumes("application/json")
+  @Operation(summary = "Export the full history of the operations",
+      description = "Stream all the operations of the bank account, the most recent first, as newline-delimited JSON (one operation by line). The operations are read with a DB cursor and written as soon as they are read",
+      requestBody = @io.swagger.v3.oas.annotations.parameters.RequestBody(
+          description = "No request body needed, you have to use the required parameters: ban (the bank account number, ex: CAMBYZEBANK-2)",
+          required = false),
+      parameters = {@Parameter(required = true, description = "Bank Account Number",
+          example = "CAMBYZEBANK-2")},
+      responses = {@ApiResponse(description = "The operations, one JSON object by line",
+          content = @Content(mediaType = "application/x-ndjson"))})
+
+  @Path("/exportOperations")
+  @GetMapping(value = "/exportOperations", produces = MediaType.APPLICATION_NDJSON_VALUE)
+  public ResponseEntity<StreamingResponseBody> exportOperations(
+      @RequestParam(value = "ban") String ban) {
+    // Checked before the streaming because the status can not be changed once the first
+    // operations are sent
+    if (!bankingServices.existsBankAccount(ban)) {
+      throw functionalException(Constants.BANK_ACCOUNT_NOT_EXISTS);
+    }
+    StreamingResponseBody body = outputStream -> {
+      try {
+        bankingServices.exportOperationHistory(ban, op -> {
+          try {
+            outputStream.write(operationWriter.writeValueAsBytes(op));
+            outputStream.write('\n');
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      } catch (UncheckedIOException e) {
+        // Client disconnected: the DB cursor is closed by the service
+        LOGGER.debug("Export of the operations of {} interrupted: {}", ban, e.getMessage());
+        throw e.getCause();
+      }
+    };
+    return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+  }
+
+
   @POST
   @Consumes("application/json")
   @Operation(summary = "Create a new Person",
@@ -312,7 +569,6 @@ public class BankAccountController {
               @Parameter(name = "firstName", required = true, description = "First name of the person", example = "John"),
               @Parameter(name = "mail", required = true, description = "Email address of the person", example = "john.doe@example.com")
           },
-          example = "Louis", "Defunes", "Louis.Defunes@mail.com")},
       responses = {@ApiResponse(description = "boolean",
           content = @Content(mediaType = "boolean"))})
   
@@ -320,7 +576,14 @@ public class BankAccountController {
   @Path("/createPerson")
   @PostMapping("/createPerson")
   public String createPerson(@RequestParam(value = "name") String name,
-      @RequestParam(value = "firstName") String firstName, @RequestParam(value = "mail") String mail) {
+      @RequestParam(value = "firstName") String firstName, @RequestParam(value = "mail") String mail,
+      @Parameter(description = "Key of the request, the request sent again with the same key returns the first response without being executed again")
+      @RequestHeader(value = IdempotentRequests.HEADER, required = false) String idempotencyKey) {
+    return idempotentRequests.execute(idempotencyKey, String.class,
+        () -> newPerson(name, firstName, mail), "createPerson", name, firstName, mail);
+  }
+
+  private String newPerson(String name, String firstName, String mail) {
     String per = bankingServices.createPerson(name, firstName, mail);
     if (per != null && !per.isEmpty()) {
       LOGGER.info("New created Person: {}", per);
@@ -360,7 +623,7 @@ public class BankAccountController {
 
   
   
-  @Get
+  @GET
   @Consumes("application/json")
   @Operation(summary = "send all account for a Person",
       description = "Send a list of all account linked to Person by personId",
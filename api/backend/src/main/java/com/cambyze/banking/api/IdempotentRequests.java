@@ -0,0 +1,381 @@
+package com.cambyze.banking.api;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.server.ResponseStatusException;
+import com.cambyze.banking.api.microservice.exceptions.IdempotencyKeyInUseException;
+import com.cambyze.banking.api.microservice.exceptions.IdempotencyKeyReusedException;
+import com.cambyze.banking.persistence.model.IdempotencyRecord;
+import com.cambyze.banking.persistence.services.IdempotencyStore;
+import com.cambyze.banking.services.execution.AccountLaneBusyException;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Execution of the write requests sent with the header "Idempotency-Key"
+ * <p>
+ * The first request of a key is executed and its response is stored in the DB (collection
+ * "idempotency_keys", removed after one day) and in a LRU cache of
+ * "cambyze.idempotency.cache.maximum-size" keys. The requests sent again with the same key return
+ * the stored response without being executed. The functional errors (4xx) are stored like the
+ * responses. A request refused by the lane of its bank account is not executed and releases the
+ * key so that it can be sent again. The other technical errors may happen after a write, so they
+ * are stored as a 500 whose outcome is unknown: the request is not executed again with this key.
+ * </p>
+ * <p>
+ * The lease of a key is renewed every third of "cambyze.idempotency.lease" during the execution of
+ * its request, so that another instance does not take it over while the request waits in its lane.
+ * </p>
+ * <p>
+ * The requests of a key being executed wait for the first execution, in memory in the same
+ * instance and by reading the DB for an execution in another instance, at most
+ * "cambyze.idempotency.wait-timeout" before a 409. A key sent again with other parameters is
+ * rejected with a 422.
+ * </p>
+ */
+@Component
+public class IdempotentRequests implements MeterBinder {
+
+  public static final String HEADER = "Idempotency-Key";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(IdempotentRequests.class);
+
+  // Interval of the reads of a key executed by another instance
+  private static final long POLL_INTERVAL_MS = 50;
+
+  private final IdempotencyStore store;
+
+  private final ObjectMapper objectMapper;
+
+  private final Duration waitTimeout;
+
+  private final Cache<String, IdempotencyRecord> completed;
+
+  private final Map<String, CompletableFuture<IdempotencyRecord>> inFlight =
+      new ConcurrentHashMap<>();
+
+  private final AtomicLong executed = new AtomicLong();
+
+  private final AtomicLong replayed = new AtomicLong();
+
+  private final AtomicLong rejected = new AtomicLong();
+
+  private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(
+      Thread.ofPlatform().daemon().name("idempotency-lease").factory());
+
+  public IdempotentRequests(IdempotencyStore store, ObjectMapper objectMapper,
+      @Value("${cambyze.idempotency.cache.maximum-size:10000}") long maximumSize,
+      @Value("${cambyze.idempotency.wait-timeout:10s}") Duration waitTimeout) {
+    this.store = store;
+    this.objectMapper = objectMapper;
+    this.waitTimeout = waitTimeout;
+    this.completed = Caffeine.newBuilder().maximumSize(maximumSize)
+        .expireAfterWrite(Duration.ofDays(1)).build();
+  }
+
+  /**
+   * Execute a request once by idempotency key
+   *
+   * @param key the idempotency key, the request is always executed without key
+   * @param type the type of the response
+   * @param action the execution of the request
+   * @param request the endpoint and the parameters of the request
+   * @return the response of the execution or of the first execution with the same key
+   */
+  public <T> T execute(String key, Class<T> type, Supplier<T> action, Object... request) {
+    return execute(key, objectMapper.constructType(type), action, request);
+  }
+
+  /**
+   * Execute a request once by idempotency key
+   *
+   * @param key the idempotency key, the request is always executed without key
+   * @param type the type of the response
+   * @param action the execution of the request
+   * @param request the endpoint and the parameters of the request
+   * @return the response of the execution or of the first execution with the same key
+   */
+  public <T> T execute(String key, JavaType type, Supplier<T> action, Object... request) {
+    if (key == null || key.isBlank()) {
+      return action.get();
+    }
+    String fingerprint = fingerprint(request);
+    IdempotencyRecord done = completed.getIfPresent(key);
+    if (done != null) {
+      return replay(key, done, fingerprint, type);
+    }
+    CompletableFuture<IdempotencyRecord> mine = new CompletableFuture<>();
+    CompletableFuture<IdempotencyRecord> running = inFlight.putIfAbsent(key, mine);
+    if (running != null) {
+      return replay(key, await(key, running), fingerprint, type);
+    }
+    try {
+      IdempotencyRecord existing = claimOrWait(key, fingerprint);
+      if (existing != null) {
+        completed.put(key, existing);
+        mine.complete(existing);
+        return replay(key, existing, fingerprint, type);
+      }
+      return executeClaimed(key, fingerprint, action, mine);
+    } catch (RuntimeException e) {
+      mine.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, mine);
+    }
+  }
+
+  /**
+   * Execute the request of a claimed key and store its response or its functional error
+   */
+  private <T> T executeClaimed(String key, String fingerprint, Supplier<T> action,
+      CompletableFuture<IdempotencyRecord> mine) {
+    IdempotencyRecord record = new IdempotencyRecord(key, fingerprint);
+    long period = Math.max(store.getLease().toMillis() / 3, 1);
+    ScheduledFuture<?> renewal =
+        heartbeat.scheduleAtFixedRate(() -> renew(key), period, period, TimeUnit.MILLISECONDS);
+    T result;
+    try {
+      result = action.get();
+    } catch (AccountLaneBusyException e) {
+      // Not executed
+      store.release(key);
+      throw e;
+    } catch (RuntimeException e) {
+      HttpStatusCode status = functionalStatus(e);
+      if (status == null) {
+        LOGGER.error("Request of the idempotency key {} failed, its outcome is unknown", key, e);
+        record.setHttpStatus(HttpStatus.INTERNAL_SERVER_ERROR.value());
+        record.setErrorMessage("The outcome of the request of the idempotency key " + key
+            + " is unknown, check the bank account before sending it with another key");
+      } else {
+        record.setHttpStatus(status.value());
+        record.setErrorMessage(e.getMessage() != null ? e.getMessage() : "");
+      }
+      storeResponse(record, mine);
+      throw e;
+    } finally {
+      renewal.cancel(false);
+      executed.incrementAndGet();
+    }
+    try {
+      record.setHttpStatus(HttpStatus.OK.value());
+      record.setBody(objectMapper.writeValueAsString(result));
+    } catch (JsonProcessingException e) {
+      LOGGER.error("Response of the idempotency key {} not converted to JSON", key, e);
+    }
+    storeResponse(record, mine);
+    return result;
+  }
+
+  /**
+   * Renew the lease of a key being executed
+   */
+  private void renew(String key) {
+    try {
+      if (!store.renew(key)) {
+        LOGGER.warn("Lease of the idempotency key {} not renewed, the key is no longer claimed",
+            key);
+      }
+    } catch (RuntimeException e) {
+      LOGGER.error("Lease of the idempotency key {} not renewed", key, e);
+    }
+  }
+
+  /**
+   * Store the response of a key and give it to the requests waiting for it
+   * <p>
+   * A response which can not be stored leaves the key claimed until the end of the lease rather
+   * than releasing it, because the request has been executed.
+   * </p>
+   */
+  private void storeResponse(IdempotencyRecord record,
+      CompletableFuture<IdempotencyRecord> mine) {
+    boolean stored = false;
+    try {
+      stored = (record.getBody() != null || record.getErrorMessage() != null)
+          && store.complete(record);
+    } catch (RuntimeException e) {
+      LOGGER.error("Response of the idempotency key {} not stored", record.getKey(), e);
+    }
+    if (stored) {
+      completed.put(record.getKey(), record);
+      mine.complete(record);
+    } else {
+      mine.completeExceptionally(new IdempotencyKeyInUseException(
+          "The response of the idempotency key " + record.getKey() + " is not available"));
+    }
+  }
+
+  /**
+   * Claim a key or wait for its execution by another instance
+   *
+   * @return null if the key is claimed, else the record done by another execution
+   */
+  private IdempotencyRecord claimOrWait(String key, String fingerprint) {
+    long deadline = System.nanoTime() + waitTimeout.toNanos();
+    IdempotencyRecord record = store.claim(key, fingerprint);
+    while (record != null && !record.isDone()) {
+      if (!fingerprint.equals(record.getRequest())) {
+        throw reused(key);
+      }
+      if (System.nanoTime() >= deadline) {
+        throw inUse(key);
+      }
+      try {
+        TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL_MS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw inUse(key);
+      }
+      record = store.find(key);
+      if (record == null) {
+        // Released by a failed execution
+        record = store.claim(key, fingerprint);
+      }
+    }
+    return record;
+  }
+
+  /**
+   * Wait for the execution of a key in this instance
+   */
+  private IdempotencyRecord await(String key, CompletableFuture<IdempotencyRecord> running) {
+    try {
+      return running.get(waitTimeout.toNanos(), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      throw inUse(key);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw inUse(key);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Return the stored response of a key or throw its stored error
+   */
+  private <T> T replay(String key, IdempotencyRecord record, String fingerprint, JavaType type) {
+    if (!fingerprint.equals(record.getRequest())) {
+      throw reused(key);
+    }
+    replayed.incrementAndGet();
+    LOGGER.debug("Response of the idempotency key {} sent again", key);
+    if (record.isError()) {
+      throw new ResponseStatusException(HttpStatusCode.valueOf(record.getHttpStatus()),
+          record.getErrorMessage());
+    }
+    try {
+      return objectMapper.readValue(record.getBody(), type);
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException("Invalid response of the idempotency key " + key, e);
+    }
+  }
+
+  /**
+   * HTTP status of a functional error, stored with the key
+   *
+   * @return the 4xx status, null for a technical error
+   */
+  private static HttpStatusCode functionalStatus(RuntimeException e) {
+    if (e instanceof ResponseStatusException rse) {
+      return rse.getStatusCode().is4xxClientError() ? rse.getStatusCode() : null;
+    }
+    ResponseStatus status =
+        AnnotatedElementUtils.findMergedAnnotation(e.getClass(), ResponseStatus.class);
+    return status != null && status.code().is4xxClientError() ? status.code() : null;
+  }
+
+  /**
+   * SHA-256 of the endpoint and of the parameters converted to JSON
+   */
+  private String fingerprint(Object... request) {
+    try {
+      byte[] json = objectMapper.writeValueAsString(request).getBytes(StandardCharsets.UTF_8);
+      return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(json));
+    } catch (JsonProcessingException | NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Fingerprint of the request not computed", e);
+    }
+  }
+
+  private IdempotencyKeyReusedException reused(String key) {
+    rejected.incrementAndGet();
+    return new IdempotencyKeyReusedException(
+        "The idempotency key " + key + " has been used for another request");
+  }
+
+  private IdempotencyKeyInUseException inUse(String key) {
+    rejected.incrementAndGet();
+    return new IdempotencyKeyInUseException(
+        "The request of the idempotency key " + key + " is still executed");
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    heartbeat.shutdownNow();
+  }
+
+  public long getExecuted() {
+    return executed.get();
+  }
+
+  public long getReplayed() {
+    return replayed.get();
+  }
+
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    FunctionCounter
+        .builder("cambyze.idempotency.requests", this, IdempotentRequests::getExecuted)
+        .tag("result", "executed").description("Requests sent with an idempotency key")
+        .register(registry);
+    FunctionCounter
+        .builder("cambyze.idempotency.requests", this, IdempotentRequests::getReplayed)
+        .tag("result", "replayed").description("Requests sent with an idempotency key")
+        .register(registry);
+    FunctionCounter
+        .builder("cambyze.idempotency.requests", this, IdempotentRequests::getRejected)
+        .tag("result", "rejected").description("Requests sent with an idempotency key")
+        .register(registry);
+    Gauge.builder("cambyze.idempotency.in-flight", inFlight, Map::size)
+        .description("Idempotency keys being executed by this instance").register(registry);
+  }
+}
@@ -0,0 +1,25 @@
+package com.cambyze.banking.api.microservice.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Standard exception for microservices
+ * 
+ * @author Thierry Nestelhut
+ * @see <a href="https://github.com/cambyze">cambyze GitHub</a>
+ */
+@ResponseStatus(HttpStatus.PAYLOAD_TOO_LARGE)
+public class BatchTooLargeException extends RuntimeException {
+
+  private static final long serialVersionUID = -2112387518349652018L;
+
+  /**
+   * Exception triggered when a batch contains more operations than the maximum
+   * 
+   * @param message text which will be displayed in the response body as the message attribute
+   */
+  public BatchTooLargeException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,26 @@
+package com.cambyze.banking.api.microservice.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Standard exception for microservices
+ * 
+ * @author Thierry Nestelhut
+ * @see <a href="https://github.com/cambyze">cambyze GitHub</a>
+ */
+@ResponseStatus(HttpStatus.CONFLICT)
+public class IdempotencyKeyInUseException extends RuntimeException {
+
+  private static final long serialVersionUID = -2112387518349652017L;
+
+  /**
+   * Exception triggered when the request of an idempotency key is still executed after the wait of
+   * the request sent again with the same key
+   * 
+   * @param message text which will be displayed in the response body as the message attribute
+   */
+  public IdempotencyKeyInUseException(String message) {
+    super(message);
+  }
+}
@@ -1,8 +1,16 @@
 package com.cambyze.banking.api;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import java.math.BigDecimal;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.ws.rs.core.MediaType;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
@@ -11,6 +19,11 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.web.server.ResponseStatusException;
+import com.cambyze.banking.services.execution.AccountLaneBusyException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 @SpringBootTest
 @AutoConfigureMockMvc
@@ -20,12 +33,18 @@ class ApiApplicationTests {
 
   @Autowired
   private MockMvc mockMvc;
+
+  @Autowired
+  private ObjectMapper objectMapper;
+
+  @Autowired
+  private IdempotentRequests idempotentRequests;
   
   @Test
     public void testCreatePerson() throws Exception {
     String name = "Jack";
     String firstName = "Onils";
-    String mail = "Jack.Onils@mail.com";
+    String mail = "Jack.Onils." + UUID.randomUUID() + "@mail.com";
     LOGGER.debug("--|Person|--");
     // test creation of new "person"
     mockMvc.perform(post("/createPerson")
@@ -115,10 +134,128 @@ class ApiApplicationTests {
     LOGGER.debug("Bank statement for the  {}", ban);
 
     mockMvc.perform(get("/monthlyBankStatement").param("ban", ban)).andExpect(status().isOk());
+    mockMvc.perform(get("/monthlyBankStatement").param("ban", ban).param("period",
+        java.time.YearMonth.now().minusMonths(1).toString())).andExpect(status().isOk());
+    mockMvc.perform(get("/monthlyBankStatement").param("ban", ban).param("period", "2025-13"))
+        .andExpect(status().isBadRequest());
+
+    // Export of all the operations as newline-delimited JSON, streamed asynchronously
+    MvcResult export = mockMvc.perform(get("/exportOperations").param("ban", ban))
+        .andExpect(request().asyncStarted()).andReturn();
+    mockMvc.perform(asyncDispatch(export)).andExpect(status().isOk());
+    mockMvc.perform(get("/exportOperations").param("ban", "????"))
+        .andExpect(status().isNotFound());
     
     
     String personId = "CLI-00000001";
     mockMvc.perform(get("/findBanByPerson").param("personId", personId).contentType(MediaType.APPLICATION_JSON).content(""))
     .andExpect(status().isOk());
   }
-}
\ No newline at end of file
+
+  @Test
+  void testExportOperations() throws Exception {
+    String suffix = UUID.randomUUID().toString();
+    String personId = mockMvc
+        .perform(post("/createPerson").param("name", "Export").param("firstName", "Ndjson")
+            .param("mail", "export." + suffix + "@mail.com"))
+        .andExpect(status().isOk()).andReturn().getResponse().getContentAsString();
+    String ban = mockMvc.perform(post("/createBankAccount").param("personId", personId))
+        .andExpect(status().isOk()).andReturn().getResponse().getContentAsString();
+    mockMvc.perform(post("/createDeposit").param("ban", ban).param("amount", "10.00"))
+        .andExpect(status().isOk());
+    mockMvc.perform(post("/createDeposit").param("ban", ban).param("amount", "20.00"))
+        .andExpect(status().isOk());
+
+    MvcResult export = mockMvc.perform(get("/exportOperations").param("ban", ban))
+        .andExpect(request().asyncStarted()).andReturn();
+    String ndjson = mockMvc.perform(asyncDispatch(export)).andExpect(status().isOk())
+        .andExpect(content().contentType("application/x-ndjson")).andReturn().getResponse()
+        .getContentAsString();
+    // One operation by line, the most recent first
+    String[] lines = ndjson.split("\n");
+    assertEquals(2, lines.length);
+    assertEquals(0, new BigDecimal("20.00")
+        .compareTo(objectMapper.readTree(lines[0]).get("amount").decimalValue()));
+    assertEquals(0, new BigDecimal("10.00")
+        .compareTo(objectMapper.readTree(lines[1]).get("amount").decimalValue()));
+  }
+
+  @Test
+  void testIdempotencyKey() throws Exception {
+    String suffix = UUID.randomUUID().toString();
+    RequestBuilder createPerson = post("/createPerson").param("name", "Key")
+        .param("firstName", "Idem").param("mail", "idem." + suffix + "@mail.com")
+        .header(IdempotentRequests.HEADER, "person-" + suffix);
+    String personId = mockMvc.perform(createPerson).andExpect(status().isOk()).andReturn()
+        .getResponse().getContentAsString();
+    // The person sent again is not created again
+    mockMvc.perform(createPerson).andExpect(status().isOk()).andExpect(content().string(personId));
+
+    RequestBuilder createAccount = post("/createBankAccount").param("personId", personId)
+        .header(IdempotentRequests.HEADER, "account-" + suffix);
+    String ban = mockMvc.perform(createAccount).andExpect(status().isOk()).andReturn()
+        .getResponse().getContentAsString();
+    mockMvc.perform(createAccount).andExpect(status().isOk()).andExpect(content().string(ban));
+
+    // The deposit sent again returns the first balance without being executed again
+    RequestBuilder deposit = post("/createDeposit").param("ban", ban).param("amount", "100.00")
+        .header(IdempotentRequests.HEADER, "deposit-" + suffix);
+    String balance = mockMvc.perform(deposit).andExpect(status().isOk()).andReturn()
+        .getResponse().getContentAsString();
+    mockMvc.perform(deposit).andExpect(status().isOk()).andExpect(content().string(balance));
+    String nextBalance = mockMvc.perform(post("/createDeposit").param("ban", ban)
+        .param("amount", "50.00")).andExpect(status().isOk()).andReturn().getResponse()
+        .getContentAsString();
+    assertEquals(0, new BigDecimal("150").compareTo(new BigDecimal(nextBalance)));
+
+    // Same key with other parameters
+    mockMvc.perform(post("/createDeposit").param("ban", ban).param("amount", "10.00")
+        .header(IdempotentRequests.HEADER, "deposit-" + suffix))
+        .andExpect(status().isUnprocessableEntity());
+
+    // The functional errors are sent again
+    RequestBuilder withdraw = post("/createWithdraw").param("ban", ban)
+        .param("amount", "1000000.00").header(IdempotentRequests.HEADER, "withdraw-" + suffix);
+    mockMvc.perform(withdraw).andExpect(status().isBadRequest());
+    mockMvc.perform(withdraw).andExpect(status().isBadRequest());
+
+    // An amount which is not a number is refused before the claim of the key
+    RequestBuilder invalidDeposit = post("/createDeposit").param("ban", ban)
+        .param("amount", "ten").header(IdempotentRequests.HEADER, "invalid-" + suffix);
+    mockMvc.perform(invalidDeposit).andExpect(status().isBadRequest());
+    mockMvc.perform(invalidDeposit).andExpect(status().isBadRequest());
+  }
+
+  @Test
+  void testIdempotencyKeyTechnicalErrors() {
+    String suffix = UUID.randomUUID().toString();
+    AtomicInteger executions = new AtomicInteger();
+
+    // Refused by the lane: not executed, the key is released
+    String busyKey = "busy-" + suffix;
+    assertThrows(AccountLaneBusyException.class, () -> idempotentRequests.execute(busyKey,
+        String.class, () -> {
+          throw new AccountLaneBusyException("Lane full");
+        }, "/test", suffix));
+    assertEquals("done", idempotentRequests.execute(busyKey, String.class, () -> {
+      executions.incrementAndGet();
+      return "done";
+    }, "/test", suffix));
+    assertEquals(1, executions.get());
+
+    // Failed after a possible write: not executed again with the same key
+    String failedKey = "failed-" + suffix;
+    assertThrows(IllegalStateException.class, () -> idempotentRequests.execute(failedKey,
+        String.class, () -> {
+          executions.incrementAndGet();
+          throw new IllegalStateException("Operation not inserted");
+        }, "/test", suffix));
+    ResponseStatusException unknown = assertThrows(ResponseStatusException.class,
+        () -> idempotentRequests.execute(failedKey, String.class, () -> {
+          executions.incrementAndGet();
+          return "done";
+        }, "/test", suffix));
+    assertEquals(500, unknown.getStatusCode().value());
+    assertEquals(2, executions.get());
+  }
+}
@@ -0,0 +1,142 @@
+package com.cambyze.banking.benchmarks;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load test of the REST API with concurrent clients, to compare the capacity of the API with and
+ * without the virtual threads (property "spring.threads.virtual.enabled" of the API)
+ * <p>
+ * Each client, run by a virtual thread with its own connection, creates a person and a bank
+ * account then sends deposits in a loop during the test. The throughput, the errors and the
+ * percentiles of the response time are printed at the end and appended with the label of the run
+ * to the file "api-load-results.csv", so that the runs with and without the virtual threads can be
+ * compared.
+ * </p>
+ * <p>
+ * Usage: java -cp benchmarks.jar com.cambyze.banking.benchmarks.ApiLoadTest [base URL] [number of
+ * clients] [duration in seconds] [label of the run, e.g. virtual or platform]
+ * </p>
+ */
+public class ApiLoadTest {
+
+  private ApiLoadTest() {}
+
+  public static void main(String[] args) throws Exception {
+    String baseUrl = args.length > 0 ? args[0] : "http://localhost:8080";
+    int clients = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+    Duration duration = Duration.ofSeconds(args.length > 2 ? Long.parseLong(args[2]) : 30);
+    String label = args.length > 3 ? args[3] : "run";
+
+    LongAdder errors = new LongAdder();
+    AtomicInteger connected = new AtomicInteger();
+    List<Future<List<Long>>> results = new ArrayList<>(clients);
+    long start = System.nanoTime();
+    long end = start + duration.toNanos();
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < clients; i++) {
+        results.add(executor.submit(() -> runClient(baseUrl, end, connected, errors)));
+      }
+    }
+
+    List<Long> latencies = new ArrayList<>();
+    for (Future<List<Long>> result : results) {
+      latencies.addAll(result.get());
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    latencies.sort(null);
+    System.out.printf("Clients: %d (%d started), duration: %.1f s%n", clients, connected.get(),
+        seconds);
+    System.out.printf("Deposits: %d, errors: %d, throughput: %.1f requests/s%n", latencies.size(),
+        errors.sum(), latencies.size() / seconds);
+    System.out.printf("Response time (ms): p50 %.1f, p95 %.1f, p99 %.1f, max %.1f%n",
+        percentile(latencies, 0.50), percentile(latencies, 0.95), percentile(latencies, 0.99),
+        percentile(latencies, 1.0));
+    appendResult(String.format(Locale.US, "%s,%d,%d,%.1f,%d,%d,%.1f,%.1f,%.1f,%.1f,%.1f%n",
+        label, clients, connected.get(), seconds, latencies.size(), errors.sum(),
+        latencies.size() / seconds, percentile(latencies, 0.50), percentile(latencies, 0.95),
+        percentile(latencies, 0.99), percentile(latencies, 1.0)));
+  }
+
+  /**
+   * Append the result of a run to the CSV file of the results, created with its header
+   */
+  private static void appendResult(String line) throws Exception {
+    Path results = Path.of("api-load-results.csv");
+    if (Files.notExists(results)) {
+      Files.writeString(results, "label,clients,started,seconds,deposits,errors,"
+          + "requests_per_second,p50_ms,p95_ms,p99_ms,max_ms\n", StandardCharsets.UTF_8);
+    }
+    Files.writeString(results, line, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    System.out.println("Result appended to " + results.toAbsolutePath());
+  }
+
+  /**
+   * One client of the API
+   * 
+   * @return the response times in nanoseconds of the successful deposits
+   */
+  private static List<Long> runClient(String baseUrl, long end, AtomicInteger connected,
+      LongAdder errors) {
+    List<Long> latencies = new ArrayList<>();
+    try (HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10))
+        .executor(Executors.newVirtualThreadPerTaskExecutor()).build()) {
+      String mail = "loadtest-" + UUID.randomUUID() + "@mail.com";
+      String personId =
+          post(client, baseUrl + "/createPerson?name=LOAD&firstName=Test&mail=" + mail);
+      String ban = post(client, baseUrl + "/createBankAccount?personId=" + personId);
+      connected.incrementAndGet();
+      URI deposit = URI.create(baseUrl + "/createDeposit?ban=" + ban + "&amount=1.00");
+      while (System.nanoTime() < end) {
+        long begin = System.nanoTime();
+        HttpResponse<Void> response = client.send(
+            HttpRequest.newBuilder(deposit).POST(HttpRequest.BodyPublishers.noBody()).build(),
+            HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() == 200) {
+          latencies.add(System.nanoTime() - begin);
+        } else {
+          errors.increment();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      errors.increment();
+    }
+    return latencies;
+  }
+
+  private static String post(HttpClient client, String url) throws Exception {
+    HttpResponse<String> response = client.send(
+        HttpRequest.newBuilder(URI.create(url)).POST(HttpRequest.BodyPublishers.noBody()).build(),
+        HttpResponse.BodyHandlers.ofString());
+    if (response.statusCode() != 200) {
+      throw new IllegalStateException(url + " => HTTP " + response.statusCode());
+    }
+    return response.body();
+  }
+
+  private static double percentile(List<Long> sortedLatencies, double percentile) {
+    if (sortedLatencies.isEmpty()) {
+      return 0.0;
+    }
+    int index = (int) Math.ceil(percentile * sortedLatencies.size()) - 1;
+    return sortedLatencies.get(Math.max(0, index)) / 1e6;
+  }
+}
@@ -0,0 +1,66 @@
+package com.cambyze.banking.benchmarks;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import com.cambyze.banking.services.BankingServices;
+import com.cambyze.banking.services.CreateDepositResponse;
+import com.cambyze.banking.services.CreateWithdrawResponse;
+import com.cambyze.banking.services.execution.AccountCommandExecutor;
+import com.cambyze.banking.services.execution.OptimisticRetry;
+
+/**
+ * Deposits and withdraws of the business services with the bank accounts in memory
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BankingServicesBenchmark {
+
+  private static final BigDecimal AMOUNT = BigDecimal.valueOf(12.34);
+
+  private AccountCommandExecutor accountCommandExecutor;
+
+  private BankingServices bankingServices;
+
+  private String ban;
+
+  @Setup
+  public void setup() {
+    InMemoryPersistenceServices persistenceServices = new InMemoryPersistenceServices();
+    accountCommandExecutor = new AccountCommandExecutor(0, 1000, Duration.ofSeconds(10), false);
+    bankingServices = new BankingServices(persistenceServices, accountCommandExecutor,
+        new OptimisticRetry(5, Duration.ofMillis(5)));
+    ban = persistenceServices.createNewBankAccount("CLI-00000001");
+  }
+
+  @TearDown
+  public void tearDown() {
+    accountCommandExecutor.shutdown();
+  }
+
+  @Benchmark
+  public CreateDepositResponse createDeposit() {
+    return bankingServices.createDeposit(ban, AMOUNT);
+  }
+
+  @Benchmark
+  public CreateWithdrawResponse createDepositAndWithdraw() {
+    bankingServices.createDeposit(ban, AMOUNT);
+    return bankingServices.createWithdraw(ban, AMOUNT);
+  }
+}
@@ -0,0 +1,35 @@
+package com.cambyze.banking.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Launch the JMH benchmarks and write the results as JSON
+ * <p>
+ * The standard JMH options are accepted, for instance a regular expression to select the
+ * benchmarks. The results are written in the file "jmh-result.json" unless the option -rff is used,
+ * in order to compare the releases.
+ * 
+ * @see <a href="https://github.com/cambyze">cambyze GitHub</a>
+ */
+public class BenchmarkRunner {
+
+  private static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+  private BenchmarkRunner() {
+    throw new UnsupportedOperationException("Launcher class");
+  }
+
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+    Options options = new OptionsBuilder().parent(commandLineOptions)
+        .resultFormat(commandLineOptions.getResultFormat().orElse(ResultFormatType.JSON))
+        .result(commandLineOptions.getResult().orElse(DEFAULT_RESULT_FILE)).build();
+    new Runner(options).run();
+  }
+}
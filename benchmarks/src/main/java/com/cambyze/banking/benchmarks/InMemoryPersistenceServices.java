@@ -0,0 +1,146 @@
+package com.cambyze.banking.benchmarks;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import com.cambyze.banking.persistence.model.Account;
+import com.cambyze.banking.persistence.model.Constants;
+import com.cambyze.banking.persistence.services.PersistenceServices;
+
+/**
+ * Stand-in of the persistence services with the bank accounts in memory, to measure the business
+ * services without the DB
+ * <p>
+ * The rules of the atomic update of the balance are applied under a lock on the bank account.
+ */
+public class InMemoryPersistenceServices extends PersistenceServices {
+
+  private final Map<String, Account> accounts = new ConcurrentHashMap<>();
+
+  private final AtomicLong sequence = new AtomicLong();
+
+  public InMemoryPersistenceServices() {
+    super(null, null, null, null, null, null, null, null, null, null);
+  }
+
+  @Override
+  public String createNewBankAccount(String personId) {
+    return addBankAccount(personId, Constants.ACCOUNT_TYPE_BANK);
+  }
+
+  @Override
+  public String createSavingsAccount(String personId) {
+    return addBankAccount(personId, Constants.ACCOUNT_TYPE_SAVINGS);
+  }
+
+  private String addBankAccount(String personId, String accountType) {
+    long seq = sequence.incrementAndGet();
+    Account ba = new Account(personId);
+    ba.setAccountId(String.valueOf(seq));
+    ba.setBankAccountNumber(String.format("CAMBYZEBANK-%08d", seq));
+    ba.setAccountType(accountType);
+    accounts.put(ba.getBankAccountNumber(), ba);
+    return ba.getBankAccountNumber();
+  }
+
+  @Override
+  public Account findBankAccountByBAN(String ban) {
+    Account stored = accounts.get(ban);
+    if (stored == null) {
+      return null;
+    }
+    synchronized (stored) {
+      Account ba = new Account(stored.getPersonId());
+      ba.setAccountId(stored.getAccountId());
+      ba.setBankAccountNumber(stored.getBankAccountNumber());
+      ba.setAccountType(stored.getAccountType());
+      ba.setBalanceAmount(stored.getBalanceAmount());
+      ba.setOverdraftAmount(stored.getOverdraftAmount());
+      return ba;
+    }
+  }
+
+  @Override
+  public void createOverdraft(Account ba, BigDecimal overDraftAmount) {
+    Account stored = accounts.get(ba.getBankAccountNumber());
+    synchronized (stored) {
+      stored.setOverdraftAmount(overDraftAmount);
+    }
+    ba.setOverdraftAmount(overDraftAmount);
+  }
+
+  @Override
+  public String createNewBankingOperation(Account ba, LocalDate opDate, String opType,
+      BigDecimal opAmount) {
+    if (ba == null || !accounts.containsKey(ba.getBankAccountNumber())) {
+      return Constants.INVALID_BANK_ACCOUNT;
+    }
+    if (opAmount == null || opAmount.signum() <= 0) {
+      return Constants.INVALID_AMOUNT;
+    }
+    Account stored = accounts.get(ba.getBankAccountNumber());
+    synchronized (stored) {
+      BigDecimal newBalance;
+      if (Constants.OPERATION_TYPE_DEPOSIT.equals(opType)) {
+        newBalance = stored.getBalanceAmount().add(opAmount);
+        if (Constants.ACCOUNT_TYPE_SAVINGS.equals(stored.getAccountType())
+            && newBalance.doubleValue() > Constants.SAVINGS_ACCOUNT_LIMIT) {
+          return Constants.SAVINGS_LIMIT_REACHED;
+        }
+      } else {
+        newBalance = stored.getBalanceAmount().subtract(opAmount);
+        if (newBalance.add(stored.getOverdraftAmount()).signum() < 0) {
+          return Constants.INSUFFICIENT_BALANCE;
+        }
+      }
+      stored.setBalanceAmount(newBalance);
+      ba.setBalanceAmount(newBalance);
+    }
+    return String.valueOf(sequence.incrementAndGet());
+  }
+
+  @Override
+  public CompletableFuture<String> submitBankingOperation(Account ba, LocalDate opDate,
+      String opType, BigDecimal opAmount) {
+    return CompletableFuture.completedFuture(
+        createNewBankingOperation(ba, opDate, opType, opAmount));
+  }
+
+  @Override
+  public String createNewTransfer(Account fromBa, Account toBa, LocalDate opDate,
+      BigDecimal amount) {
+    if (fromBa == null || toBa == null || !accounts.containsKey(fromBa.getBankAccountNumber())
+        || !accounts.containsKey(toBa.getBankAccountNumber())
+        || fromBa.getBankAccountNumber().equals(toBa.getBankAccountNumber())) {
+      return Constants.INVALID_BANK_ACCOUNT;
+    }
+    if (amount == null || amount.signum() <= 0) {
+      return Constants.INVALID_AMOUNT;
+    }
+    Account from = accounts.get(fromBa.getBankAccountNumber());
+    Account to = accounts.get(toBa.getBankAccountNumber());
+    // Locks taken in the order of the BAN
+    boolean fromFirst = from.getBankAccountNumber().compareTo(to.getBankAccountNumber()) < 0;
+    synchronized (fromFirst ? from : to) {
+      synchronized (fromFirst ? to : from) {
+        BigDecimal fromBalance = from.getBalanceAmount().subtract(amount);
+        if (fromBalance.add(from.getOverdraftAmount()).signum() < 0) {
+          return Constants.INSUFFICIENT_BALANCE;
+        }
+        BigDecimal toBalance = to.getBalanceAmount().add(amount);
+        if (Constants.ACCOUNT_TYPE_SAVINGS.equals(to.getAccountType())
+            && toBalance.doubleValue() > Constants.SAVINGS_ACCOUNT_LIMIT) {
+          return Constants.SAVINGS_LIMIT_REACHED;
+        }
+        from.setBalanceAmount(fromBalance);
+        to.setBalanceAmount(toBalance);
+        fromBa.setBalanceAmount(fromBalance);
+        toBa.setBalanceAmount(toBalance);
+      }
+    }
+    return String.valueOf(sequence.incrementAndGet());
+  }
+}
@@ -0,0 +1,34 @@
+package com.cambyze.banking.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.cambyze.banking.services.tools.MathTools;
+
+/**
+ * Rounding of the amounts
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MathToolsBenchmark {
+
+  @Param({"120.26", "1505.005", "-18.254999"})
+  public double amount;
+
+  @Benchmark
+  public Double roundWithDecimals() {
+    return MathTools.roundWithDecimals(amount, 2);
+  }
+}
@@ -0,0 +1,78 @@
+package com.cambyze.banking.benchmarks;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.cambyze.banking.persistence.model.Account;
+import com.cambyze.banking.persistence.model.Constants;
+import com.cambyze.banking.persistence.model.Operation;
+import com.cambyze.banking.services.MonthlyBankStatement;
+import com.cambyze.banking.services.MonthlyBankStatementOperation;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Construction and JSON serialization of a bank statement with N operations
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MonthlyBankStatementBenchmark {
+
+  @Param({"10", "1000", "10000"})
+  public int nbOperations;
+
+  private Account account;
+
+  private List<Operation> operations;
+
+  private MonthlyBankStatement statement;
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  @Setup
+  public void setup() {
+    account = new Account("CLI-00000001");
+    account.setBankAccountNumber("CAMBYZEBANK-00000001");
+    account.setBalanceAmount(BigDecimal.valueOf(1520.25));
+    operations = new ArrayList<>(nbOperations);
+    LocalDate today = LocalDate.now();
+    for (int i = 0; i < nbOperations; i++) {
+      String opType =
+          i % 3 == 0 ? Constants.OPERATION_TYPE_WITHDRAW : Constants.OPERATION_TYPE_DEPOSIT;
+      operations.add(new Operation("1", today.minusDays(i % 30L), opType,
+          BigDecimal.valueOf(10.25 + i % 100)));
+    }
+    statement = createStatement();
+  }
+
+  @Benchmark
+  public MonthlyBankStatement createStatement() {
+    List<MonthlyBankStatementOperation> bkops = new ArrayList<>(operations.size());
+    for (Operation op : operations) {
+      bkops.add(new MonthlyBankStatementOperation(op));
+    }
+    return new MonthlyBankStatement(account, bkops);
+  }
+
+  @Benchmark
+  public byte[] serializeStatement() throws JsonProcessingException {
+    return objectMapper.writeValueAsBytes(statement);
+  }
+}
@@ -0,0 +1,107 @@
+package com.cambyze.banking.benchmarks;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import com.cambyze.banking.persistence.PersistenceApplication;
+import com.cambyze.banking.persistence.model.Account;
+import com.cambyze.banking.persistence.model.Constants;
+import com.cambyze.banking.persistence.services.PersistenceServices;
+
+/**
+ * Deposits written in MongoDB by concurrent clients, each on its own bank account, with the
+ * different write modes:
+ * <ul>
+ * <li>direct: the balance then the operation, as two writes</li>
+ * <li>transaction: the balance and the operation in one transaction</li>
+ * <li>write-behind: the balance then the operation grouped with the other inserts</li>
+ * </ul>
+ * <p>
+ * A MongoDB replica set is required, its URI is given by the system property
+ * "cambyze.benchmark.mongodb.uri"
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+public class OperationWriteBenchmark {
+
+  private static final BigDecimal AMOUNT = BigDecimal.valueOf(1.25);
+
+  /**
+   * Application context with the write mode to measure
+   */
+  @State(Scope.Benchmark)
+  public static class Context {
+
+    @Param({"direct", "transaction", "write-behind"})
+    public String mode;
+
+    private ConfigurableApplicationContext context;
+
+    private PersistenceServices persistenceServices;
+
+    @Setup
+    public void setup() {
+      String uri = System.getProperty("cambyze.benchmark.mongodb.uri",
+          "mongodb://localhost:27017/cambyze_banking_benchmarks?replicaSet=rs0");
+      context = new SpringApplicationBuilder(PersistenceApplication.class)
+          .web(WebApplicationType.NONE)
+          .properties("spring.data.mongodb.uri=" + uri,
+              "cambyze.transactions.enabled=" + "transaction".equals(mode),
+              "cambyze.operation-write-behind.enabled=" + "write-behind".equals(mode),
+              "logging.level.com.cambyze=WARN")
+          .run();
+      persistenceServices = context.getBean(PersistenceServices.class);
+    }
+
+    @TearDown
+    public void tearDown() {
+      context.close();
+    }
+  }
+
+  /**
+   * Bank account of a client
+   */
+  @State(Scope.Thread)
+  public static class Client {
+
+    private Account ba;
+
+    @Setup
+    public void setup(Context context) {
+      PersistenceServices persistenceServices = context.persistenceServices;
+      String personId = persistenceServices.createNewPerson("BENCH", "Mark",
+          "bench-" + UUID.randomUUID() + "@mail.com");
+      ba = persistenceServices
+          .findBankAccountByBAN(persistenceServices.createNewBankAccount(personId));
+    }
+  }
+
+  @Benchmark
+  public String createDeposit(Context context, Client client) {
+    return context.persistenceServices.createNewBankingOperation(client.ba, LocalDate.now(),
+        Constants.OPERATION_TYPE_DEPOSIT, AMOUNT);
+  }
+}
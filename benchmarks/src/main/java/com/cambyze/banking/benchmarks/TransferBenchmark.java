@@ -0,0 +1,108 @@
+package com.cambyze.banking.benchmarks;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import com.cambyze.banking.services.BankingServices;
+import com.cambyze.banking.services.CreateTransferResponse;
+import com.cambyze.banking.services.execution.AccountCommandExecutor;
+import com.cambyze.banking.services.execution.OptimisticRetry;
+
+/**
+ * Transfers of the business services between a few bank accounts in memory, in both directions at
+ * the same time
+ * <p>
+ * Half of the threads transfer from the first bank account of each pair to the second one and the
+ * other half in the opposite direction, which would block the lanes without their fixed order. The
+ * number of pairs sets the contention: with one pair, all the threads wait for the same two lanes.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class TransferBenchmark {
+
+  private static final BigDecimal AMOUNT = BigDecimal.valueOf(1.5);
+
+  // Enough for the transfers of the benchmark in one direction without refusal
+  private static final BigDecimal OVERDRAFT = BigDecimal.valueOf(1_000_000_000L);
+
+  @Param({"1", "4"})
+  private int pairs;
+
+  private AccountCommandExecutor accountCommandExecutor;
+
+  private BankingServices bankingServices;
+
+  private String[] fromBans;
+
+  private String[] toBans;
+
+  @Setup
+  public void setup() {
+    InMemoryPersistenceServices persistenceServices = new InMemoryPersistenceServices();
+    accountCommandExecutor = new AccountCommandExecutor(0, 1000, Duration.ofSeconds(10), false);
+    bankingServices = new BankingServices(persistenceServices, accountCommandExecutor,
+        new OptimisticRetry(5, Duration.ofMillis(5)));
+    fromBans = new String[pairs];
+    toBans = new String[pairs];
+    for (int i = 0; i < pairs; i++) {
+      fromBans[i] = persistenceServices.createNewBankAccount("CLI-00000001");
+      toBans[i] = persistenceServices.createNewBankAccount("CLI-00000001");
+      persistenceServices.createOverdraft(persistenceServices.findBankAccountByBAN(fromBans[i]),
+          OVERDRAFT);
+      persistenceServices.createOverdraft(persistenceServices.findBankAccountByBAN(toBans[i]),
+          OVERDRAFT);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    accountCommandExecutor.shutdown();
+  }
+
+  /**
+   * Pair of bank accounts of the thread
+   */
+  @State(Scope.Thread)
+  public static class Pair {
+
+    private int index;
+
+    @Setup
+    public void setup(TransferBenchmark benchmark) {
+      index = (int) (Thread.currentThread().threadId() % benchmark.pairs);
+    }
+  }
+
+  @Benchmark
+  @Group("opposite")
+  @GroupThreads(4)
+  public CreateTransferResponse forward(Pair pair) {
+    return bankingServices.createTransfer(fromBans[pair.index], toBans[pair.index], AMOUNT);
+  }
+
+  @Benchmark
+  @Group("opposite")
+  @GroupThreads(4)
+  public CreateTransferResponse backward(Pair pair) {
+    return bankingServices.createTransfer(toBans[pair.index], fromBans[pair.index], AMOUNT);
+  }
+}
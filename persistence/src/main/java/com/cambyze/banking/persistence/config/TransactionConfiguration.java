@@ -0,0 +1,39 @@
+package com.cambyze.banking.persistence.config;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.MongoDatabaseFactory;
+import org.springframework.data.mongodb.MongoTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import com.mongodb.ReadConcern;
+import com.mongodb.TransactionOptions;
+import com.mongodb.WriteConcern;
+
+/**
+ * Transactional mode, enabled with the property "cambyze.transactions.enabled=true"
+ * <p>
+ * The operation and the new balance of the bank account are then written in the same Mongo
+ * transaction, as the operations and the balances of a transfer or of a batch. Each transaction uses its own causally consistent session. The Mongo server must be
+ * a replica set.
+ * </p>
+ */
+@Configuration
+@ConditionalOnProperty(name = "cambyze.transactions.enabled", havingValue = "true")
+public class TransactionConfiguration {
+
+  public static final String TRANSACTION_TEMPLATE = "bankingTransactionTemplate";
+
+  @Bean
+  public MongoTransactionManager bankingTransactionManager(MongoDatabaseFactory dbFactory) {
+    return new MongoTransactionManager(dbFactory, TransactionOptions.builder()
+        .readConcern(ReadConcern.SNAPSHOT).writeConcern(WriteConcern.MAJORITY).build());
+  }
+
+  @Bean(TRANSACTION_TEMPLATE)
+  public TransactionTemplate bankingTransactionTemplate(
+      MongoTransactionManager bankingTransactionManager) {
+    return new TransactionTemplate(bankingTransactionManager);
+  }
+
+}
@@ -7,5 +7,8 @@ import com.cambyze.banking.persistence.model.Account;
  * CRUD for the entity Bank Account with auto-generated methods
  */
 public interface BankAccountRepository extends MongoRepository<Account, String> {
-  Account findByBankAccountNumberIgnoreCase(String bankAccountNumber);
+  /**
+   * Find a bank account by its BAN, normalized by Account.normalizeBan
+   */
+  Account findByBankAccountNumber(String bankAccountNumber);
 }
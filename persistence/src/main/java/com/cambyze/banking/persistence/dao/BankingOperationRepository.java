@@ -1,7 +1,9 @@
 package com.cambyze.banking.persistence.dao;
 
+import java.time.LocalDate;
 import java.util.List;
 import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
 
 // import org.springframework.data.repository.CrudRepository;
 
@@ -12,4 +14,12 @@ import com.cambyze.banking.persistence.model.Operation;
  */
 public interface BankingOperationRepository extends MongoRepository<Operation, String> {
   List<Operation> findByAccountId(String accountId);
+
+  /**
+   * Operations of a bank account between two dates (included), the most recent first
+   */
+  @Query(value = "{ 'accountId': ?0, 'operationDate': { $gte: ?1, $lte: ?2 } }",
+      sort = "{ 'operationDate': -1, '_id': -1 }")
+  List<Operation> findByAccountIdAndOperationDateRange(String accountId, LocalDate fromDate,
+      LocalDate toDate);
 }
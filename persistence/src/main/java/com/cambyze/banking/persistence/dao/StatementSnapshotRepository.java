@@ -0,0 +1,10 @@
+package com.cambyze.banking.persistence.dao;
+
+import org.springframework.data.mongodb.repository.MongoRepository;
+import com.cambyze.banking.persistence.model.StatementSnapshot;
+
+/**
+ * CRUD for the entity StatementSnapshot with auto-generated methods
+ */
+public interface StatementSnapshotRepository extends MongoRepository<StatementSnapshot, String> {
+}
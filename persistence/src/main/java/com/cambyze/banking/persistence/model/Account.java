@@ -1,8 +1,14 @@
 package com.cambyze.banking.persistence.model;
 
 import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Locale;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Version;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.data.mongodb.core.mapping.FieldType;
 
 /**
  * Entity for the bank account
@@ -13,11 +19,31 @@ public class Account {
   @Id
   private String accountId;
   // foreign key to Person
+  @Indexed
   private String personId;
+  // Stored in upper case, see normalizeBan, and read by an exact match on its unique index
+  @Indexed(unique = true)
   private String bankAccountNumber;
   private String accountType;
+  // Stored as Decimal128 so that the balance can be updated atomically with $inc
+  @Field(targetType = FieldType.DECIMAL128)
   private BigDecimal balanceAmount;
+  @Field(targetType = FieldType.DECIMAL128)
   private BigDecimal overdraftAmount;
+  // Incremented by each update, to detect the concurrent updates
+  @Version
+  private Long version;
+  // Last day of the interests credited on a savings account, see InterestAccrualBatch
+  private LocalDate lastInterestDate;
+  // Id of the interest operation of the lastInterestDate, set by the same update
+  private String lastInterestOperationId;
+
+  // Summary of the bank account for the logs, built from its own fields only
+  @Override
+  public String toString() {
+    return "Client: " + this.personId + " BAN: " + this.bankAccountNumber + " / "
+        + this.accountType + " / " + this.balanceAmount + " / " + this.overdraftAmount;
+  }
 
   /**
    * Create a new bank account as a everyday bank account
@@ -33,6 +59,16 @@ public class Account {
     this.personId = personId;
   }
 
+  /**
+   * Normalize a bank account number as stored in the DB
+   *
+   * @param ban the bank account number typed by the user
+   * @return the BAN trimmed and in upper case, null if the BAN is null
+   */
+  public static String normalizeBan(String ban) {
+    return ban != null ? ban.trim().toUpperCase(Locale.ROOT) : null;
+  }
+
   public String getAccountId() {
     return accountId;
   }
@@ -62,7 +98,7 @@ public class Account {
   }
 
   public void setBankAccountNumber(String bankAccountNumber) {
-    this.bankAccountNumber = bankAccountNumber;
+    this.bankAccountNumber = normalizeBan(bankAccountNumber);
   }
 
   public String getAccountType() {
@@ -89,4 +125,28 @@ public class Account {
     this.overdraftAmount = overdraftAmount;
   }
 
+  public Long getVersion() {
+    return version;
+  }
+
+  public void setVersion(Long version) {
+    this.version = version;
+  }
+
+  public LocalDate getLastInterestDate() {
+    return lastInterestDate;
+  }
+
+  public void setLastInterestDate(LocalDate lastInterestDate) {
+    this.lastInterestDate = lastInterestDate;
+  }
+
+  public String getLastInterestOperationId() {
+    return lastInterestOperationId;
+  }
+
+  public void setLastInterestOperationId(String lastInterestOperationId) {
+    this.lastInterestOperationId = lastInterestOperationId;
+  }
+
 }
@@ -0,0 +1,94 @@
+package com.cambyze.banking.persistence.model;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.data.mongodb.core.mapping.FieldType;
+
+/**
+ * Entity for the total of the operations of a bank account for a day with operations
+ * <p>
+ * Its id is the id of the bank account and the date, one checkpoint by day with operations. The
+ * balance at the end of a day is the sum of the totals of the checkpoints until this day.
+ * </p>
+ */
+@Document(collection = "balance_checkpoints")
+@CompoundIndex(name = "account_date_idx", def = "{'accountId': 1, 'date': -1}")
+public class BalanceCheckpoint {
+  @Id
+  private String checkpointId;
+  // foreign key to Account
+  private String accountId;
+  private LocalDate date;
+  // Signed sum of the operations of the day
+  @Field(targetType = FieldType.DECIMAL128)
+  private BigDecimal dayAmount;
+  // Number of operations of the day
+  private int opCount;
+  // Interests of the day, set when they are added so that they are added once
+  @Field(targetType = FieldType.DECIMAL128)
+  private BigDecimal interestAmount;
+
+  public BalanceCheckpoint() {
+    super();
+  }
+
+  public BalanceCheckpoint(String accountId, LocalDate date, BigDecimal dayAmount, int opCount) {
+    super();
+    this.checkpointId = idOf(accountId, date);
+    this.accountId = accountId;
+    this.date = date;
+    this.dayAmount = dayAmount;
+    this.opCount = opCount;
+  }
+
+  /**
+   * Id of the checkpoint of a bank account for a day
+   * 
+   * @param accountId the id of the bank account
+   * @param date the day
+   * @return the id of the checkpoint
+   */
+  public static String idOf(String accountId, LocalDate date) {
+    return accountId + ":" + date;
+  }
+
+  // Overriding toString() method for a better description
+  @Override
+  public String toString() {
+    return this.accountId + " / " + this.date + " / " + this.dayAmount + " / " + this.opCount
+        + " operations";
+  }
+
+  public String getCheckpointId() {
+    return checkpointId;
+  }
+
+  public String getAccountId() {
+    return accountId;
+  }
+
+  public LocalDate getDate() {
+    return date;
+  }
+
+  public BigDecimal getDayAmount() {
+    return dayAmount;
+  }
+
+  public int getOpCount() {
+    return opCount;
+  }
+
+  public BigDecimal getInterestAmount() {
+    return interestAmount;
+  }
+
+  public void setInterestAmount(BigDecimal interestAmount) {
+    this.interestAmount = interestAmount;
+  }
+
+}
@@ -18,11 +18,20 @@ public class Constants {
   public static final String ACCOUNT_TYPE_SAVINGS = "2";
   public static final double SAVINGS_ACCOUNT_LIMIT = 5000.0;
   public static final double OVERDRAFT_AMOUNT = 1500.0;
+  // Annual rate of the interests of the savings accounts, credited each day
+  public static final double SAVINGS_ANNUAL_INTEREST_RATE = 0.02;
 
   // Attributes of a banking operations
   public static final String OPERATION_TYPE_DEPOSIT = "1";
   public static final String OPERATION_TYPE_WITHDRAW = "2";
 
+  // Status of a pending transfer: written, its operations being inserted by the writer, or
+  // claimed by the recovery to be finished or cancelled
+  public static final String TRANSFER_WRITING = "WRITING";
+  public static final String TRANSFER_COMMITTING = "COMMITTING";
+  public static final String TRANSFER_FINISHING = "FINISHING";
+  public static final String TRANSFER_CANCELLING = "CANCELLING";
+
   // Type of functional errors
   public static final String SERVICE_OK = "0";
   public static final String INVALID_BANK_ACCOUNT = "-1";
@@ -39,6 +48,11 @@ public class Constants {
   public static final LocalDate MIN_OPERATION_DATE = LocalDate.of(1990, 1, 1);
   public static final LocalDate MAX_OPERATION_DATE = LocalDate.of(2500, 1, 1);
 
+  // Maximum number of operations of a page of the history, a larger size is reduced to it
+  public static final int MAX_PAGE_SIZE = 500;
+  // Maximum number of operations of a batch, the larger batches are refused
+  public static final int MAX_BATCH_SIZE = 1000;
+
   // Text logger
   public static final String ACCOUNT_NOT_EXIST = "The bank account does not exist for the BAN: {}";
 }
@@ -8,6 +8,8 @@ public class Counter {
   @Id
   private String id;
   private long seq;
+  // Number of values reserved by a node but never used because the node stopped
+  private long wasted;
 
   // Constructors, Getters, Setters
   public Counter() {
@@ -35,4 +37,12 @@ public class Counter {
   public void setSeq(long seq) {
     this.seq = seq;
   }
+
+  public long getWasted() {
+    return wasted;
+  }
+
+  public void setWasted(long wasted) {
+    this.wasted = wasted;
+  }
 }
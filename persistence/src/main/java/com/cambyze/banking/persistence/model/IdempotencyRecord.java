@@ -0,0 +1,105 @@
+package com.cambyze.banking.persistence.model;
+
+import java.time.Instant;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Entity for the result of a request sent with an idempotency key
+ * <p>
+ * Its id is the key sent by the client. The record is pending during the execution of the request
+ * then keeps its response, so that the request sent again with the same key returns the same
+ * response without being executed again. The records are removed by Mongo one day after their
+ * creation.
+ * </p>
+ */
+@Document(collection = "idempotency_keys")
+public class IdempotencyRecord {
+
+  public static final String PENDING = "PENDING";
+  public static final String DONE = "DONE";
+
+  @Id
+  private String key;
+  // Fingerprint of the endpoint and of the parameters of the request
+  private String request;
+  private String status;
+  // HTTP status and JSON body of the response, or error message
+  private int httpStatus;
+  private String body;
+  private String errorMessage;
+  @Indexed(expireAfter = "1d")
+  private Instant createdAt;
+
+  public IdempotencyRecord() {
+    super();
+  }
+
+  public IdempotencyRecord(String key, String request) {
+    super();
+    this.key = key;
+    this.request = request;
+    this.status = PENDING;
+    this.createdAt = Instant.now();
+  }
+
+  // Overriding toString() method for a better description
+  @Override
+  public String toString() {
+    return this.key + " / " + this.status + " / " + this.httpStatus + " / " + this.createdAt;
+  }
+
+  public boolean isDone() {
+    return DONE.equals(status);
+  }
+
+  public boolean isError() {
+    return isDone() && errorMessage != null;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public String getRequest() {
+    return request;
+  }
+
+  public String getStatus() {
+    return status;
+  }
+
+  public void setStatus(String status) {
+    this.status = status;
+  }
+
+  public int getHttpStatus() {
+    return httpStatus;
+  }
+
+  public void setHttpStatus(int httpStatus) {
+    this.httpStatus = httpStatus;
+  }
+
+  public String getBody() {
+    return body;
+  }
+
+  public void setBody(String body) {
+    this.body = body;
+  }
+
+  public String getErrorMessage() {
+    return errorMessage;
+  }
+
+  public void setErrorMessage(String errorMessage) {
+    this.errorMessage = errorMessage;
+  }
+
+  public Instant getCreatedAt() {
+    return createdAt;
+  }
+
+}
@@ -0,0 +1,134 @@
+package com.cambyze.banking.persistence.model;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Entity for the progress of the interest accrual of a day on the savings accounts
+ * <p>
+ * Its id is the day of the interests. Each partition is a range of ids of bank accounts with the
+ * id of the last processed bank account, so that a stopped run resumes after it.
+ * </p>
+ */
+@Document(collection = "interest_runs")
+public class InterestRun {
+  @Id
+  private String day;
+  private List<Partition> partitions = new ArrayList<>();
+  private boolean done;
+  private Instant startDate;
+  private Instant endDate;
+
+  public InterestRun() {
+    super();
+  }
+
+  // Overriding toString() method for a better description
+  @Override
+  public String toString() {
+    return "Interest run " + this.day + " / " + this.partitions.size() + " partitions / "
+        + getCreditedAccounts() + " credited accounts / done: " + this.done;
+  }
+
+  /**
+   * Number of credited bank accounts of all the partitions
+   * 
+   * @return the number of credited bank accounts
+   */
+  public long getCreditedAccounts() {
+    return partitions.stream().mapToLong(Partition::getCredited).sum();
+  }
+
+  public String getDay() {
+    return day;
+  }
+
+  public void setDay(String day) {
+    this.day = day;
+  }
+
+  public List<Partition> getPartitions() {
+    return partitions;
+  }
+
+  public void setPartitions(List<Partition> partitions) {
+    this.partitions = partitions;
+  }
+
+  public boolean isDone() {
+    return done;
+  }
+
+  public void setDone(boolean done) {
+    this.done = done;
+  }
+
+  public Instant getStartDate() {
+    return startDate;
+  }
+
+  public void setStartDate(Instant startDate) {
+    this.startDate = startDate;
+  }
+
+  public Instant getEndDate() {
+    return endDate;
+  }
+
+  public void setEndDate(Instant endDate) {
+    this.endDate = endDate;
+  }
+
+  /**
+   * Range of ids of bank accounts processed by one task
+   */
+  public static class Partition {
+    // First id of the range (included)
+    private String minId;
+    // Last id of the range, included only for the last partition
+    private String maxId;
+    private boolean last;
+    // Id of the last processed bank account, null before the first one
+    private String lastId;
+    private boolean done;
+    private long credited;
+
+    public Partition() {
+      super();
+    }
+
+    public Partition(String minId, String maxId, boolean last) {
+      super();
+      this.minId = minId;
+      this.maxId = maxId;
+      this.last = last;
+    }
+
+    public String getMinId() {
+      return minId;
+    }
+
+    public String getMaxId() {
+      return maxId;
+    }
+
+    public boolean isLast() {
+      return last;
+    }
+
+    public String getLastId() {
+      return lastId;
+    }
+
+    public boolean isDone() {
+      return done;
+    }
+
+    public long getCredited() {
+      return credited;
+    }
+  }
+}
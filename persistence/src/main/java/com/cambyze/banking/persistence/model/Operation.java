@@ -5,13 +5,17 @@ import java.text.NumberFormat;
 import java.time.LocalDate;
 import java.util.Locale;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.data.mongodb.core.mapping.FieldType;
 
 
 /**
  * Entity for the banking operations
  */
 @Document(collection = "operations")
+@CompoundIndex(name = "account_date_idx", def = "{'accountId': 1, 'operationDate': -1, '_id': -1}")
 public class Operation {
   @Id
   private String operationId;
@@ -19,9 +23,10 @@ public class Operation {
   private String accountId;
   private LocalDate operationDate;
   private String operationType;
+  @Field(targetType = FieldType.DECIMAL128)
   private BigDecimal amount;
 
-  private static final Locale LOCALE = new Locale("en", "US");
+  private static final Locale LOCALE = Locale.US;
   private static final NumberFormat CURRENCY_FORMATTER = NumberFormat.getCurrencyInstance(LOCALE);
 
 
@@ -0,0 +1,39 @@
+package com.cambyze.banking.persistence.model;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Page of banking operations, the most recent first, with the cursor to read the next page
+ */
+public class OperationPage {
+
+  private List<Operation> operations;
+  // Cursor of the next page: date and id of the last operation of this page, null if no next page
+  private LocalDate nextOperationDate;
+  private String nextOperationId;
+
+  public OperationPage(List<Operation> operations, LocalDate nextOperationDate,
+      String nextOperationId) {
+    super();
+    this.operations = operations;
+    this.nextOperationDate = nextOperationDate;
+    this.nextOperationId = nextOperationId;
+  }
+
+  public List<Operation> getOperations() {
+    return operations;
+  }
+
+  public LocalDate getNextOperationDate() {
+    return nextOperationDate;
+  }
+
+  public String getNextOperationId() {
+    return nextOperationId;
+  }
+
+  public boolean hasNext() {
+    return nextOperationId != null;
+  }
+}
@@ -0,0 +1,154 @@
+package com.cambyze.banking.persistence.model;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.data.mongodb.core.mapping.FieldType;
+
+/**
+ * Entity for a transfer being written out of the transactional mode
+ * <p>
+ * It is inserted before the first write of the transfer and removed after the last one, so that
+ * a transfer interrupted by a crash is finished or cancelled by the recovery. Its id is also set
+ * in the field "transferIds" of the bank accounts whose balance it has updated, and of their
+ * balance checkpoints, to know which writes have been done.
+ * </p>
+ * <p>
+ * Its status is changed by the writer and by the recovery with a conditional update before they
+ * insert its operations or cancel it, so that only one of them decides how it ends.
+ * </p>
+ */
+@Document(collection = "pending_transfers")
+public class PendingTransfer {
+  @Id
+  private String transferId;
+  // foreign keys to Account
+  private String fromAccountId;
+  private String toAccountId;
+  private String fromBan;
+  private String toBan;
+  // Ids of the withdraw and of the deposit, set before their insert
+  private String debitId;
+  private String creditId;
+  private LocalDate operationDate;
+  @Field(targetType = FieldType.DECIMAL128)
+  private BigDecimal amount;
+  @Indexed
+  private Instant createdAt;
+  // Status, with the date of its last change by a claim, null until the first claim
+  private String status;
+  private Instant claimedAt;
+
+  public PendingTransfer() {
+    super();
+  }
+
+  public PendingTransfer(String transferId, Account fromBa, Account toBa, String debitId,
+      String creditId, LocalDate operationDate, BigDecimal amount) {
+    super();
+    this.transferId = transferId;
+    this.fromAccountId = fromBa.getAccountId();
+    this.toAccountId = toBa.getAccountId();
+    this.fromBan = fromBa.getBankAccountNumber();
+    this.toBan = toBa.getBankAccountNumber();
+    this.debitId = debitId;
+    this.creditId = creditId;
+    this.operationDate = operationDate;
+    this.amount = amount;
+    this.createdAt = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    this.status = Constants.TRANSFER_WRITING;
+  }
+
+  // Overriding toString() method for a better description
+  @Override
+  public String toString() {
+    return "Transfer " + this.transferId + " / " + this.fromBan + " -> " + this.toBan + " / "
+        + this.amount + " / " + this.createdAt + " / " + this.status;
+  }
+
+  /**
+   * Withdraw of the transfer on the debited bank account, with its id
+   *
+   * @return the operation
+   */
+  public Operation debit() {
+    Operation op = new Operation(fromAccountId, operationDate, Constants.OPERATION_TYPE_WITHDRAW,
+        amount);
+    op.setOperationId(debitId);
+    return op;
+  }
+
+  /**
+   * Deposit of the transfer on the credited bank account, with its id
+   *
+   * @return the operation
+   */
+  public Operation credit() {
+    Operation op = new Operation(toAccountId, operationDate, Constants.OPERATION_TYPE_DEPOSIT,
+        amount);
+    op.setOperationId(creditId);
+    return op;
+  }
+
+  public String getTransferId() {
+    return transferId;
+  }
+
+  public String getFromAccountId() {
+    return fromAccountId;
+  }
+
+  public String getToAccountId() {
+    return toAccountId;
+  }
+
+  public String getFromBan() {
+    return fromBan;
+  }
+
+  public String getToBan() {
+    return toBan;
+  }
+
+  public String getDebitId() {
+    return debitId;
+  }
+
+  public String getCreditId() {
+    return creditId;
+  }
+
+  public LocalDate getOperationDate() {
+    return operationDate;
+  }
+
+  public BigDecimal getAmount() {
+    return amount;
+  }
+
+  public Instant getCreatedAt() {
+    return createdAt;
+  }
+
+  public String getStatus() {
+    return status;
+  }
+
+  public void setStatus(String status) {
+    this.status = status;
+  }
+
+  public Instant getClaimedAt() {
+    return claimedAt;
+  }
+
+  public void setClaimedAt(Instant claimedAt) {
+    this.claimedAt = claimedAt;
+  }
+
+}
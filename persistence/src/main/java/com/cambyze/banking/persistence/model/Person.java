@@ -1,14 +1,18 @@
 package com.cambyze.banking.persistence.model;
 
+import java.util.Locale;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 @Document(collection = "persons")
 public class Person {
+  // Stored in upper case, see normalizeId, and read by an exact match on the _id index
   @Id
   private String personId;
   private String name;
   private String firstName;
+  // A mail is used by one person only, the persons without mail are not indexed: the unique
+  // index is created by DataMigrations after the removal of the mails used twice
   private String email;
 
   public Person() {
@@ -21,6 +25,16 @@ public class Person {
     return this.personId + " : " + this.name + " + " + this.firstName + " + " + this.email;
   }
 
+  /**
+   * Normalize a person id as stored in the DB
+   *
+   * @param personId the person id typed by the user
+   * @return the id trimmed and in upper case, null if the id is null
+   */
+  public static String normalizeId(String personId) {
+    return personId != null ? personId.trim().toUpperCase(Locale.ROOT) : null;
+  }
+
   public String getId() {
     return this.getPersonId();
   }
@@ -34,7 +48,7 @@ public class Person {
   }
 
   public void setPersonId(String personId) {
-    this.personId = personId;
+    this.personId = normalizeId(personId);
   }
 
   public String getName() {
@@ -0,0 +1,88 @@
+package com.cambyze.banking.persistence.model;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Result of the reconciliation of the balances of the bank accounts with their operations
+ */
+public class ReconciliationReport {
+
+  private long checkedAccounts;
+  private long mismatchCount;
+  // The first mismatches found, at most cambyze.reconciliation.max-reported-mismatches
+  private List<Mismatch> mismatches;
+  private Duration duration;
+
+  public ReconciliationReport(long checkedAccounts, long mismatchCount, List<Mismatch> mismatches,
+      Duration duration) {
+    super();
+    this.checkedAccounts = checkedAccounts;
+    this.mismatchCount = mismatchCount;
+    this.mismatches = mismatches;
+    this.duration = duration;
+  }
+
+  // Overriding toString() method for a better description
+  @Override
+  public String toString() {
+    return "Reconciliation of " + this.checkedAccounts + " bank accounts in " + this.duration
+        + ": " + this.mismatchCount + " mismatches";
+  }
+
+  public long getCheckedAccounts() {
+    return checkedAccounts;
+  }
+
+  public long getMismatchCount() {
+    return mismatchCount;
+  }
+
+  public List<Mismatch> getMismatches() {
+    return mismatches;
+  }
+
+  public Duration getDuration() {
+    return duration;
+  }
+
+  /**
+   * Bank account whose balance is not the sum of its operations
+   */
+  public static class Mismatch {
+    private String bankAccountNumber;
+    private BigDecimal balanceAmount;
+    private BigDecimal ledgerBalance;
+
+    public Mismatch(String bankAccountNumber, BigDecimal balanceAmount, BigDecimal ledgerBalance) {
+      super();
+      this.bankAccountNumber = bankAccountNumber;
+      this.balanceAmount = balanceAmount;
+      this.ledgerBalance = ledgerBalance;
+    }
+
+    // Overriding toString() method for a better description
+    @Override
+    public String toString() {
+      return this.bankAccountNumber + " balance: " + this.balanceAmount + " operations: "
+          + this.ledgerBalance;
+    }
+
+    public String getBankAccountNumber() {
+      return bankAccountNumber;
+    }
+
+    public BigDecimal getBalanceAmount() {
+      return balanceAmount;
+    }
+
+    public BigDecimal getLedgerBalance() {
+      return ledgerBalance;
+    }
+
+    public BigDecimal getDifference() {
+      return balanceAmount.subtract(ledgerBalance);
+    }
+  }
+}
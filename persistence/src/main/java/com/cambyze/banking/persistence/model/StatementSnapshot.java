@@ -0,0 +1,134 @@
+package com.cambyze.banking.persistence.model;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.util.List;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+import org.springframework.data.mongodb.core.mapping.FieldType;
+
+/**
+ * Entity for the bank statement of a closed month, built once at the period close
+ * <p>
+ * Its id is the BAN and the month so that the statement is read with one access by id
+ * </p>
+ */
+@Document(collection = "statements")
+public class StatementSnapshot {
+  @Id
+  private String statementId;
+  private String bankAccountNumber;
+  // Month of the statement as yyyy-MM
+  private String period;
+  private String accountType;
+  // Balance at the end of the month
+  @Field(targetType = FieldType.DECIMAL128)
+  private BigDecimal balanceAmount;
+  // Overdraft of the bank account when the statement was built, not historized by month
+  @Field(targetType = FieldType.DECIMAL128)
+  private BigDecimal overdraftAmount;
+  // Operations of the month, the most recent first
+  private List<Operation> operations;
+  // Operations of the bank account until the end of the month, to detect the ones dated later in
+  // a closed month
+  private long operationCount;
+  private Instant creationDate;
+
+  public StatementSnapshot() {
+    super();
+  }
+
+  /**
+   * Id of the statement of a bank account for a month
+   * 
+   * @param ban the Bank Account Number
+   * @param period the month of the statement
+   * @return the id of the statement
+   */
+  public static String idOf(String ban, YearMonth period) {
+    return Account.normalizeBan(ban) + ":" + period;
+  }
+
+  // Overriding toString() method for a better description
+  @Override
+  public String toString() {
+    return "Statement " + this.statementId + " / " + this.balanceAmount + " / "
+        + this.overdraftAmount + " / " + (this.operations != null ? this.operations.size() : 0)
+        + " operations";
+  }
+
+  public String getStatementId() {
+    return statementId;
+  }
+
+  public void setStatementId(String statementId) {
+    this.statementId = statementId;
+  }
+
+  public String getBankAccountNumber() {
+    return bankAccountNumber;
+  }
+
+  public void setBankAccountNumber(String bankAccountNumber) {
+    this.bankAccountNumber = bankAccountNumber;
+  }
+
+  public String getPeriod() {
+    return period;
+  }
+
+  public void setPeriod(String period) {
+    this.period = period;
+  }
+
+  public String getAccountType() {
+    return accountType;
+  }
+
+  public void setAccountType(String accountType) {
+    this.accountType = accountType;
+  }
+
+  public BigDecimal getBalanceAmount() {
+    return balanceAmount;
+  }
+
+  public void setBalanceAmount(BigDecimal balanceAmount) {
+    this.balanceAmount = balanceAmount;
+  }
+
+  public BigDecimal getOverdraftAmount() {
+    return overdraftAmount;
+  }
+
+  public void setOverdraftAmount(BigDecimal overdraftAmount) {
+    this.overdraftAmount = overdraftAmount;
+  }
+
+  public List<Operation> getOperations() {
+    return operations;
+  }
+
+  public void setOperations(List<Operation> operations) {
+    this.operations = operations;
+  }
+
+  public long getOperationCount() {
+    return operationCount;
+  }
+
+  public void setOperationCount(long operationCount) {
+    this.operationCount = operationCount;
+  }
+
+  public Instant getCreationDate() {
+    return creationDate;
+  }
+
+  public void setCreationDate(Instant creationDate) {
+    this.creationDate = creationDate;
+  }
+
+}
@@ -0,0 +1,363 @@
+package com.cambyze.banking.persistence.services;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bson.types.Decimal128;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import com.cambyze.banking.persistence.model.BalanceCheckpoint;
+import com.cambyze.banking.persistence.model.Operation;
+import com.cambyze.banking.persistence.model.PendingTransfer;
+
+/**
+ * Daily checkpoints of the balance of the bank accounts
+ * <p>
+ * Each write of operations adds their amount to the total of their day with one atomic upsert, so
+ * that the checkpoints are exact whatever the order of the writes and the instance, the lane or
+ * the API which executes them. The balance at a date is the sum of the daily totals until this
+ * date, computed by the DB on one document by day with operations instead of one by operation.
+ * The checkpoints can be rebuilt from the operations with rebuild, and the ones of the operations
+ * written before the checkpoints are rebuilt at the start by backfill.
+ * </p>
+ */
+@Service
+public class BalanceCheckpointService {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BalanceCheckpointService.class);
+
+  private final MongoTemplate mongoTemplate;
+
+  public BalanceCheckpointService(MongoTemplate mongoTemplate) {
+    this.mongoTemplate = mongoTemplate;
+  }
+
+  /**
+   * Add operations of a day to the checkpoints of a bank account
+   * 
+   * @param accountId the id of the bank account
+   * @param date the date of the operations
+   * @param amount the signed sum of the operations
+   * @param opCount the number of operations
+   */
+  public void record(String accountId, LocalDate date, BigDecimal amount, int opCount) {
+    record(accountId, date, amount, opCount, null, null);
+  }
+
+  /**
+   * Add the interests of a day to the checkpoints of a bank account, once
+   * <p>
+   * The checkpoint of the day keeps the interests, so that the interests recorded again by a
+   * resumed run are ignored
+   * </p>
+   * 
+   * @param accountId the id of the bank account
+   * @param date the day of the interests
+   * @param interest the interests
+   * @return false if the interests of this day were already recorded
+   */
+  public boolean recordInterest(String accountId, LocalDate date, BigDecimal interest) {
+    return record(accountId, date, interest, 1, Criteria.where("interestAmount").exists(false),
+        new Update().set("interestAmount", new Decimal128(interest)));
+  }
+
+  /**
+   * Add an operation of a transfer written out of the transactional mode to the checkpoints of a
+   * bank account, once
+   * <p>
+   * The checkpoint of the day keeps the id of the transfer, so that the operation recorded again
+   * by the recovery of the transfer is ignored
+   * </p>
+   * 
+   * @param accountId the id of the bank account
+   * @param date the date of the operation
+   * @param amount the signed amount of the operation
+   * @param transferId the id of the transfer
+   * @return false if the operation was already recorded
+   */
+  public boolean recordTransfer(String accountId, LocalDate date, BigDecimal amount,
+      String transferId) {
+    return record(accountId, date, amount, 1, Criteria.where("transferIds").ne(transferId),
+        new Update().addToSet("transferIds", transferId));
+  }
+
+  /**
+   * Add operations to the checkpoints, once if a guard is given
+   *
+   * @param guard criteria of the checkpoint of the day without these operations, null if none
+   * @param mark update marking the checkpoint of the day with these operations
+   */
+  private boolean record(String accountId, LocalDate date, BigDecimal amount, int opCount,
+      Criteria guard, Update mark) {
+    Query dayQuery = BalanceUpdates.checkpointQuery(accountId, date);
+    if (guard != null) {
+      // The upsert fails on the existing checkpoint with these operations
+      dayQuery.addCriteria(guard);
+    }
+    Update dayUpdate = BalanceUpdates.addToCheckpoint(mark != null ? mark : new Update(),
+        accountId, date, amount, opCount);
+    try {
+      mongoTemplate.upsert(dayQuery, dayUpdate, BalanceCheckpoint.class);
+    } catch (DuplicateKeyException e) {
+      if (guard == null) {
+        throw e;
+      }
+      LOGGER.debug("Operations of the account {} already recorded for the day {}", accountId,
+          date);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Balance of a bank account at the end of a day
+   * 
+   * @param accountId the id of the bank account
+   * @param date the day
+   * @return the sum of the checkpoints until this day, null if there is none
+   */
+  public BigDecimal findClosingBalance(String accountId, LocalDate date) {
+    return findClosingBalances(List.of(accountId), date).get(accountId);
+  }
+
+  /**
+   * Balance of a bank account at the end of a day computed by the DB with the sum of its
+   * operations, used when there is no checkpoint until this day
+   * 
+   * @param accountId the id of the bank account
+   * @param date the day
+   * @return the signed sum of the operations until this day, 0 if there is none
+   */
+  public BigDecimal sumOperations(String accountId, LocalDate date) {
+    return sumOperations(List.of(accountId), date).getOrDefault(accountId, BigDecimal.ZERO);
+  }
+
+  /**
+   * Balances of several bank accounts at the end of a day computed by the DB with the sum of their
+   * operations, read with one aggregation
+   * 
+   * @param accountIds the ids of the bank accounts
+   * @param date the day
+   * @return the signed sum of the operations until this day by id of bank account, without the
+   *         bank accounts without operation until this day
+   */
+  public Map<String, BigDecimal> sumOperations(Collection<String> accountIds, LocalDate date) {
+    Aggregation aggregation = Aggregation.newAggregation(
+        Aggregation.match(
+            Criteria.where("accountId").in(accountIds).and("operationDate").lte(date)),
+        Aggregation.project("accountId").and(BalanceUpdates.signedAmount()).as("signedAmount"),
+        Aggregation.group("accountId").sum("signedAmount").as("closingBalance"));
+    Map<String, BigDecimal> balances = new HashMap<>();
+    for (AccountClosing closing : mongoTemplate
+        .aggregate(aggregation, Operation.class, AccountClosing.class).getMappedResults()) {
+      balances.put(closing.accountId, closing.closingBalance);
+    }
+    return balances;
+  }
+
+  /**
+   * Balance of a bank account at the end of a day and number of its operations until this day,
+   * computed by the DB with one aggregation so that both count the same operations
+   * 
+   * @param accountId the id of the bank account
+   * @param date the day
+   * @return the signed sum and the number of the operations until this day
+   */
+  public OperationTotal totalOperations(String accountId, LocalDate date) {
+    Aggregation aggregation = Aggregation.newAggregation(
+        Aggregation.match(Criteria.where("accountId").is(accountId).and("operationDate").lte(date)),
+        Aggregation.project("accountId").and(BalanceUpdates.signedAmount()).as("signedAmount"),
+        Aggregation.group("accountId").sum("signedAmount").as("balance").count().as("opCount"));
+    OperationTotal total = mongoTemplate.aggregate(aggregation, Operation.class,
+        OperationTotal.class).getUniqueMappedResult();
+    return total != null ? total : new OperationTotal();
+  }
+
+  /**
+   * Balances of several bank accounts at the end of a day, read with one aggregation
+   * 
+   * @param accountIds the ids of the bank accounts
+   * @param date the day
+   * @return the sum of the checkpoints until this day by id of bank account, without the bank
+   *         accounts without checkpoint until this day
+   */
+  public Map<String, BigDecimal> findClosingBalances(Collection<String> accountIds,
+      LocalDate date) {
+    Aggregation aggregation = Aggregation.newAggregation(
+        Aggregation.match(Criteria.where("accountId").in(accountIds).and("date").lte(date)),
+        Aggregation.group("accountId").sum("dayAmount").as("closingBalance"));
+    Map<String, BigDecimal> balances = new HashMap<>();
+    for (AccountClosing closing : mongoTemplate
+        .aggregate(aggregation, BalanceCheckpoint.class, AccountClosing.class)
+        .getMappedResults()) {
+      balances.put(closing.accountId, closing.closingBalance);
+    }
+    return balances;
+  }
+
+  /**
+   * Rebuild the checkpoints of a bank account from its operations
+   * <p>
+   * Used for the bank accounts with operations created before the checkpoints or after an
+   * incident. The signed sum of the operations of each day is computed by the DB.
+   * </p>
+   * 
+   * @param accountId the id of the bank account
+   * @return the number of checkpoints
+   */
+  public int rebuild(String accountId) {
+    Aggregation aggregation = Aggregation.newAggregation(
+        Aggregation.match(Criteria.where("accountId").is(accountId)),
+        Aggregation.project("operationDate").and(BalanceUpdates.signedAmount())
+            .as("signedAmount"),
+        Aggregation.group("operationDate").sum("signedAmount").as("dayAmount").count()
+            .as("opCount"),
+        Aggregation.sort(Sort.Direction.ASC, "_id"));
+    List<DayTotal> days =
+        mongoTemplate.aggregate(aggregation, Operation.class, DayTotal.class).getMappedResults();
+
+    // The recorded interests are kept, their operations are in the sums
+    Map<LocalDate, BigDecimal> interests = new HashMap<>();
+    for (BalanceCheckpoint checkpoint : mongoTemplate.find(Query.query(
+        Criteria.where("accountId").is(accountId).and("interestAmount").exists(true)),
+        BalanceCheckpoint.class)) {
+      interests.put(checkpoint.getDate(), checkpoint.getInterestAmount());
+    }
+    List<BalanceCheckpoint> checkpoints = new ArrayList<>();
+    for (DayTotal day : days) {
+      BalanceCheckpoint checkpoint =
+          new BalanceCheckpoint(accountId, day.date, day.dayAmount, day.opCount);
+      checkpoint.setInterestAmount(interests.get(day.date));
+      checkpoints.add(checkpoint);
+    }
+    mongoTemplate.remove(Query.query(Criteria.where("accountId").is(accountId)),
+        BalanceCheckpoint.class);
+    if (!checkpoints.isEmpty()) {
+      mongoTemplate.bulkOps(BulkMode.UNORDERED, BalanceCheckpoint.class).insert(checkpoints)
+          .execute();
+      markPendingTransfers(accountId);
+    }
+    LOGGER.debug("{} checkpoints rebuilt for the account {}", checkpoints.size(), accountId);
+    return checkpoints.size();
+  }
+
+  /**
+   * Mark the rebuilt checkpoints with the pending transfers whose operation is in their sums, so
+   * that the recovery of these transfers does not record it again
+   */
+  private void markPendingTransfers(String accountId) {
+    for (PendingTransfer transfer : mongoTemplate.find(Query.query(new Criteria().orOperator(
+        Criteria.where("fromAccountId").is(accountId), Criteria.where("toAccountId")
+            .is(accountId))), PendingTransfer.class)) {
+      String operationId = accountId.equals(transfer.getFromAccountId()) ? transfer.getDebitId()
+          : transfer.getCreditId();
+      if (mongoTemplate.exists(Query.query(Criteria.where("_id").is(operationId)),
+          Operation.class)) {
+        mongoTemplate.updateFirst(
+            Query.query(Criteria.where("_id")
+                .is(BalanceCheckpoint.idOf(accountId, transfer.getOperationDate()))),
+            new Update().addToSet("transferIds", transfer.getTransferId()),
+            BalanceCheckpoint.class);
+      }
+    }
+  }
+
+  /**
+   * Rebuild the checkpoints of the bank accounts with operations which are not counted in their
+   * checkpoints
+   * <p>
+   * Executed at the start by DataMigrations for the operations written before the checkpoints and
+   * for the checkpoints with the closing balance of the previous versions instead of the total of
+   * the day. The operations are counted by the DB, the bank accounts whose checkpoints count all
+   * their operations are kept.
+   * </p>
+   * 
+   * @return the number of rebuilt bank accounts
+   */
+  public int backfill() {
+    int rebuilt = 0;
+    for (String accountId : mongoTemplate.findDistinct(
+        Query.query(Criteria.where("dayAmount").exists(false)), "accountId",
+        BalanceCheckpoint.class, String.class)) {
+      rebuild(accountId);
+      rebuilt++;
+    }
+    Map<String, Long> checkpointed = new HashMap<>();
+    for (AccountCount count : mongoTemplate.aggregate(
+        Aggregation.newAggregation(Aggregation.group("accountId").sum("opCount").as("opCount")),
+        BalanceCheckpoint.class, AccountCount.class)) {
+      checkpointed.put(count.accountId, count.opCount);
+    }
+    for (AccountCount count : mongoTemplate.aggregate(
+        Aggregation.newAggregation(Aggregation.group("accountId").count().as("opCount")),
+        Operation.class, AccountCount.class)) {
+      if (count.opCount > checkpointed.getOrDefault(count.accountId, 0L)) {
+        rebuild(count.accountId);
+        rebuilt++;
+      }
+    }
+    return rebuilt;
+  }
+
+  /**
+   * Number of operations of a bank account, result of the aggregations of backfill
+   */
+  static class AccountCount {
+    @Id
+    private String accountId;
+    private long opCount;
+  }
+
+  /**
+   * Closing balance of a bank account, result of the aggregations of findClosingBalances and
+   * sumOperations
+   */
+  static class AccountClosing {
+    @Id
+    private String accountId;
+    private BigDecimal closingBalance;
+  }
+
+  /**
+   * Sum and number of the operations of a bank account, result of the aggregation of
+   * totalOperations
+   */
+  public static class OperationTotal {
+    @Id
+    private String accountId;
+    private BigDecimal balance = BigDecimal.ZERO;
+    private long opCount;
+
+    public BigDecimal getBalance() {
+      return balance;
+    }
+
+    public long getOpCount() {
+      return opCount;
+    }
+  }
+
+  /**
+   * Sum of the operations of a day, result of the aggregation of rebuild
+   */
+  static class DayTotal {
+    @Id
+    private LocalDate date;
+    private BigDecimal dayAmount;
+    private int opCount;
+  }
+}
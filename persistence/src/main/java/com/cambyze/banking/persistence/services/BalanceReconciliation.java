@@ -0,0 +1,333 @@
+package com.cambyze.banking.persistence.services;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import org.bson.types.Decimal128;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOptions;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+import com.cambyze.banking.persistence.model.Account;
+import com.cambyze.banking.persistence.model.Operation;
+import com.cambyze.banking.persistence.model.ReconciliationReport;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Reconciliation of the balances of the bank accounts with the sum of their operations
+ * <p>
+ * The balance and the operation are written separately, so a failure between the two writes
+ * leaves a balance different from the sum of the operations. The sums of the signed amounts by
+ * bank account are computed by one aggregation ($group) read with a cursor, then compared with the
+ * balances by chunks in parallel. A difference is read again before being reported, to ignore the
+ * operations written during the comparison. The bank accounts without operation are read
+ * afterwards with a cursor on the balances different from 0, by chunks checked with one request
+ * on the operations: a balance without operation is reported.
+ * </p>
+ * <p>
+ * The reconciliation is throttled to cambyze.reconciliation.max-accounts-per-second bank accounts
+ * with cambyze.reconciliation.parallelism parallel comparisons, so that it can run in production
+ * without slowing down the APIs. The number of checked bank accounts and of mismatches are published
+ * in the counters "cambyze.reconciliation.accounts" and "cambyze.reconciliation.mismatches", the
+ * progress of the current run in the gauge "cambyze.reconciliation.progress".
+ * </p>
+ */
+@Service
+public class BalanceReconciliation implements MeterBinder {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BalanceReconciliation.class);
+
+  private final MongoTemplate mongoTemplate;
+
+  private final int parallelism;
+
+  private final int chunkSize;
+
+  private final int maxAccountsPerSecond;
+
+  private final int maxReportedMismatches;
+
+  private final AtomicBoolean running = new AtomicBoolean();
+
+  private final AtomicLong checkedAccounts = new AtomicLong();
+
+  private final AtomicLong mismatches = new AtomicLong();
+
+  // Progress of the current run
+  private final AtomicLong runCheckedAccounts = new AtomicLong();
+
+  private final AtomicLong runTotalAccounts = new AtomicLong();
+
+  public BalanceReconciliation(MongoTemplate mongoTemplate,
+      @Value("${cambyze.reconciliation.parallelism:2}") int parallelism,
+      @Value("${cambyze.reconciliation.chunk-size:500}") int chunkSize,
+      @Value("${cambyze.reconciliation.max-accounts-per-second:2000}") int maxAccountsPerSecond,
+      @Value("${cambyze.reconciliation.max-reported-mismatches:100}") int maxReportedMismatches) {
+    this.mongoTemplate = mongoTemplate;
+    this.parallelism = parallelism;
+    this.chunkSize = chunkSize;
+    this.maxAccountsPerSecond = maxAccountsPerSecond;
+    this.maxReportedMismatches = maxReportedMismatches;
+  }
+
+  /**
+   * Compare the balances of all the bank accounts with their operations
+   *
+   * @return the report of the reconciliation, null if a reconciliation is already running
+   */
+  public ReconciliationReport reconcile() {
+    if (!running.compareAndSet(false, true)) {
+      LOGGER.warn("A reconciliation is already running");
+      return null;
+    }
+    long start = System.nanoTime();
+    long runMismatches = mismatches.get();
+    runCheckedAccounts.set(0);
+    runTotalAccounts.set(mongoTemplate.estimatedCount(Account.class));
+    List<ReconciliationReport.Mismatch> reported =
+        Collections.synchronizedList(new ArrayList<>());
+    // Places left in the report, taken by the workers before adding a mismatch
+    AtomicInteger reportSlots = new AtomicInteger(maxReportedMismatches);
+    ExecutorService workers = Executors.newFixedThreadPool(parallelism);
+    // Chunks read in advance of the comparisons
+    Semaphore pendingChunks = new Semaphore(parallelism * 2);
+    List<Future<?>> comparisons = new ArrayList<>();
+    long dispatched = 0;
+    try (Stream<LedgerTotal> ledger = mongoTemplate.aggregateStream(ledgerAggregation(null),
+        Operation.class, LedgerTotal.class)) {
+      Iterator<LedgerTotal> it = ledger.iterator();
+      List<LedgerTotal> chunk = new ArrayList<>(chunkSize);
+      while (it.hasNext()) {
+        chunk.add(it.next());
+        if (chunk.size() == chunkSize || !it.hasNext()) {
+          dispatched += chunk.size();
+          throttle(start, dispatched);
+          pendingChunks.acquire();
+          List<LedgerTotal> totals = chunk;
+          comparisons.add(workers.submit(() -> {
+            try {
+              compare(totals, reported, reportSlots);
+            } finally {
+              pendingChunks.release();
+            }
+          }));
+          chunk = new ArrayList<>(chunkSize);
+        }
+      }
+      // Bank accounts without operation, absent from the sums of the operations
+      Query nonZeroBalances =
+          Query.query(Criteria.where("balanceAmount").ne(new Decimal128(BigDecimal.ZERO)));
+      nonZeroBalances.fields().include("_id", "bankAccountNumber", "balanceAmount");
+      nonZeroBalances.cursorBatchSize(chunkSize);
+      try (Stream<Account> accounts = mongoTemplate.stream(nonZeroBalances, Account.class)) {
+        Iterator<Account> accountIt = accounts.iterator();
+        List<Account> accountChunk = new ArrayList<>(chunkSize);
+        while (accountIt.hasNext()) {
+          accountChunk.add(accountIt.next());
+          if (accountChunk.size() == chunkSize || !accountIt.hasNext()) {
+            dispatched += accountChunk.size();
+            throttle(start, dispatched);
+            pendingChunks.acquire();
+            List<Account> bas = accountChunk;
+            comparisons.add(workers.submit(() -> {
+              try {
+                compareWithoutOperations(bas, reported, reportSlots);
+              } finally {
+                pendingChunks.release();
+              }
+            }));
+            accountChunk = new ArrayList<>(chunkSize);
+          }
+        }
+      }
+      for (Future<?> comparison : comparisons) {
+        comparison.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Reconciliation interrupted", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Reconciliation failed", e.getCause());
+    } finally {
+      workers.shutdownNow();
+      running.set(false);
+    }
+    ReconciliationReport report = new ReconciliationReport(runCheckedAccounts.get(),
+        mismatches.get() - runMismatches, new ArrayList<>(reported),
+        Duration.ofNanos(System.nanoTime() - start));
+    LOGGER.info("{}", report);
+    return report;
+  }
+
+  /**
+   * Sum of the signed amounts of the operations by bank account
+   *
+   * @param accountId the bank account, null for all the bank accounts
+   */
+  private Aggregation ledgerAggregation(String accountId) {
+    Criteria criteria =
+        accountId != null ? Criteria.where("accountId").is(accountId) : new Criteria();
+    return Aggregation
+        .newAggregation(Aggregation.match(criteria),
+            Aggregation.project("accountId").and(BalanceUpdates.signedAmount())
+                .as("signedAmount"),
+            Aggregation.group("accountId").sum("signedAmount").as("ledgerBalance"))
+        .withOptions(
+            AggregationOptions.builder().allowDiskUse(true).cursorBatchSize(chunkSize).build());
+  }
+
+  /**
+   * Wait so that the number of dispatched bank accounts does not exceed the maximum rate
+   */
+  private void throttle(long start, long dispatched) throws InterruptedException {
+    if (maxAccountsPerSecond <= 0) {
+      return;
+    }
+    long minElapsed = TimeUnit.SECONDS.toNanos(dispatched) / maxAccountsPerSecond;
+    long wait = minElapsed - (System.nanoTime() - start);
+    if (wait > 0) {
+      TimeUnit.NANOSECONDS.sleep(wait);
+    }
+  }
+
+  /**
+   * Compare the balances of a chunk of bank accounts, read with one request, with their operations
+   */
+  private void compare(List<LedgerTotal> totals, List<ReconciliationReport.Mismatch> reported,
+      AtomicInteger reportSlots) {
+    Map<String, BigDecimal> ledgerBalances = new HashMap<>();
+    totals.forEach(total -> ledgerBalances.put(total.accountId, total.ledgerBalance));
+    Query query = Query.query(Criteria.where("_id").in(ledgerBalances.keySet()));
+    query.fields().include("_id", "bankAccountNumber", "balanceAmount");
+    for (Account ba : mongoTemplate.find(query, Account.class)) {
+      if (ba.getBalanceAmount().compareTo(ledgerBalances.get(ba.getAccountId())) != 0) {
+        report(recheck(ba), reported, reportSlots);
+      }
+    }
+    checkedAccounts.addAndGet(totals.size());
+    runCheckedAccounts.addAndGet(totals.size());
+  }
+
+  /**
+   * Check that a chunk of bank accounts whose balance is not 0 have operations, with one request
+   * <p>
+   * Only the bank accounts without operation are counted, the other ones are compared with the
+   * sums of their operations.
+   * </p>
+   */
+  private void compareWithoutOperations(List<Account> bas,
+      List<ReconciliationReport.Mismatch> reported, AtomicInteger reportSlots) {
+    List<String> ids = bas.stream().map(Account::getAccountId).toList();
+    Set<String> withOperations = new HashSet<>(mongoTemplate.findDistinct(
+        Query.query(Criteria.where("accountId").in(ids)), "accountId", Operation.class,
+        String.class));
+    int withoutOperations = 0;
+    for (Account ba : bas) {
+      if (!withOperations.contains(ba.getAccountId())) {
+        withoutOperations++;
+        report(recheck(ba), reported, reportSlots);
+      }
+    }
+    checkedAccounts.addAndGet(withoutOperations);
+    runCheckedAccounts.addAndGet(withoutOperations);
+  }
+
+  /**
+   * Count and report a mismatch confirmed by recheck
+   */
+  private void report(ReconciliationReport.Mismatch mismatch,
+      List<ReconciliationReport.Mismatch> reported, AtomicInteger reportSlots) {
+    if (mismatch != null) {
+      mismatches.incrementAndGet();
+      LOGGER.warn("Balance different from the operations: {}", mismatch);
+      if (reportSlots.getAndDecrement() > 0) {
+        reported.add(mismatch);
+      }
+    }
+  }
+
+  /**
+   * Compare again the balance of a bank account with its operations
+   *
+   * @return the mismatch or null if the balance is now the sum of the operations
+   */
+  private ReconciliationReport.Mismatch recheck(Account ba) {
+    Account currentBa = mongoTemplate.findById(ba.getAccountId(), Account.class);
+    LedgerTotal total = mongoTemplate
+        .aggregate(ledgerAggregation(ba.getAccountId()), Operation.class, LedgerTotal.class)
+        .getUniqueMappedResult();
+    BigDecimal ledgerBalance = total != null ? total.ledgerBalance : BigDecimal.ZERO;
+    if (currentBa == null || currentBa.getBalanceAmount().compareTo(ledgerBalance) == 0) {
+      return null;
+    }
+    return new ReconciliationReport.Mismatch(currentBa.getBankAccountNumber(),
+        currentBa.getBalanceAmount(), ledgerBalance);
+  }
+
+  public long getCheckedAccounts() {
+    return checkedAccounts.get();
+  }
+
+  public long getMismatches() {
+    return mismatches.get();
+  }
+
+  /**
+   * Progress of the current or of the last run
+   *
+   * @return the ratio of checked bank accounts, between 0 and 1
+   */
+  public double getProgress() {
+    long total = runTotalAccounts.get();
+    return total > 0 ? Math.min(1.0, (double) runCheckedAccounts.get() / total) : 0.0;
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    FunctionCounter
+        .builder("cambyze.reconciliation.accounts", this,
+            BalanceReconciliation::getCheckedAccounts)
+        .description("Bank accounts compared with their operations").register(registry);
+    FunctionCounter
+        .builder("cambyze.reconciliation.mismatches", this, BalanceReconciliation::getMismatches)
+        .description("Balances different from the sum of the operations").register(registry);
+    Gauge.builder("cambyze.reconciliation.progress", this, BalanceReconciliation::getProgress)
+        .description("Ratio of the bank accounts checked by the current reconciliation")
+        .register(registry);
+  }
+
+  /**
+   * Sum of the operations of a bank account, result of the aggregation of the operations
+   */
+  static class LedgerTotal {
+    @Id
+    private String accountId;
+    private BigDecimal ledgerBalance;
+  }
+}
@@ -0,0 +1,152 @@
+package com.cambyze.banking.persistence.services;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import org.bson.types.Decimal128;
+import org.springframework.data.mongodb.core.aggregation.AggregationExpression;
+import org.springframework.data.mongodb.core.aggregation.ArithmeticOperators;
+import org.springframework.data.mongodb.core.aggregation.ComparisonOperators;
+import org.springframework.data.mongodb.core.aggregation.ConditionalOperators;
+import org.springframework.data.mongodb.core.aggregation.ConvertOperators;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import com.cambyze.banking.persistence.model.Account;
+import com.cambyze.banking.persistence.model.BalanceCheckpoint;
+import com.cambyze.banking.persistence.model.Constants;
+
+/**
+ * Queries and updates of the atomic modifications of a bank account, shared by the blocking and
+ * the reactive persistence
+ */
+public final class BalanceUpdates {
+
+  private BalanceUpdates() {
+    throw new IllegalStateException("Utility class");
+  }
+
+  /**
+   * Bank account to update with an amount, only if the rules of the account allow it: a positive
+   * amount on a savings account must not exceed Constants.SAVINGS_ACCOUNT_LIMIT and a negative
+   * amount must be covered by the balance plus the overdraft amount
+   * 
+   * @param ba the bank account to update
+   * @param amount the signed amount to add to the balance
+   * @return the query of the bank account
+   */
+  public static Query incrementQuery(Account ba, BigDecimal amount) {
+    Criteria criteria = Criteria.where("_id").is(ba.getAccountId());
+    if (amount.signum() > 0 && Constants.ACCOUNT_TYPE_SAVINGS.equals(ba.getAccountType())) {
+      BigDecimal maxBalance = BigDecimal.valueOf(Constants.SAVINGS_ACCOUNT_LIMIT).subtract(amount);
+      criteria = criteria.and("balanceAmount").lte(new Decimal128(maxBalance));
+    } else if (amount.signum() < 0) {
+      criteria = criteria.andOperator(Criteria.expr(ComparisonOperators.Gte
+          .valueOf(ArithmeticOperators.Add.valueOf("balanceAmount").add("overdraftAmount"))
+          .greaterThanEqualToValue(new Decimal128(amount.negate()))));
+    }
+    return Query.query(criteria);
+  }
+
+  /**
+   * Bank account to update with a sequence of operations, only if the rules of the account allow
+   * each operation in the order of the sequence, and not only their sum
+   * 
+   * @param ba the bank account to update
+   * @param lowest the lowest sum of the first operations of the sequence, 0 or negative
+   * @param highest the highest sum of the first operations of the sequence, 0 or positive
+   * @return the query of the bank account
+   */
+  public static Query sequenceQuery(Account ba, BigDecimal lowest, BigDecimal highest) {
+    Query query = incrementQuery(ba, lowest.min(BigDecimal.ZERO));
+    if (highest.signum() > 0 && Constants.ACCOUNT_TYPE_SAVINGS.equals(ba.getAccountType())) {
+      BigDecimal maxBalance =
+          BigDecimal.valueOf(Constants.SAVINGS_ACCOUNT_LIMIT).subtract(highest);
+      query.addCriteria(Criteria.where("balanceAmount").lte(new Decimal128(maxBalance)));
+    }
+    return query;
+  }
+
+  /**
+   * Addition of an amount to the balance, with the increment of the version
+   * 
+   * @param amount the signed amount to add to the balance
+   * @return the update
+   */
+  public static Update incrementUpdate(BigDecimal amount) {
+    return new Update().inc("balanceAmount", new Decimal128(amount)).inc("version", 1);
+  }
+
+  /**
+   * Bank account to update only if it is still at the version of ba
+   * 
+   * @param ba the bank account as it has been read
+   * @return the query of the bank account
+   */
+  public static Query versionQuery(Account ba) {
+    return Query
+        .query(Criteria.where("_id").is(ba.getAccountId()).and("version").is(ba.getVersion()));
+  }
+
+  /**
+   * New overdraft amount, with the increment of the version
+   * 
+   * @param overdraftAmount the overdraft amount
+   * @return the update
+   */
+  public static Update overdraftUpdate(BigDecimal overdraftAmount) {
+    return new Update().set("overdraftAmount", new Decimal128(overdraftAmount)).inc("version", 1);
+  }
+
+  /**
+   * Checkpoint of a bank account for a day
+   * 
+   * @param accountId the id of the bank account
+   * @param date the day
+   * @return the query of the checkpoint
+   */
+  public static Query checkpointQuery(String accountId, LocalDate date) {
+    return Query.query(Criteria.where("_id").is(BalanceCheckpoint.idOf(accountId, date)));
+  }
+
+  /**
+   * Addition of operations to the total of their day, to execute as an upsert so that the first
+   * operations of the day insert the checkpoint
+   * 
+   * @param accountId the id of the bank account
+   * @param date the date of the operations
+   * @param amount the signed sum of the operations
+   * @param opCount the number of operations
+   * @return the update
+   */
+  public static Update checkpointUpdate(String accountId, LocalDate date, BigDecimal amount,
+      int opCount) {
+    return addToCheckpoint(new Update(), accountId, date, amount, opCount);
+  }
+
+  /**
+   * Add the update of checkpointUpdate to another update of the checkpoint
+   */
+  static Update addToCheckpoint(Update update, String accountId, LocalDate date,
+      BigDecimal amount, int opCount) {
+    return update.inc("dayAmount", new Decimal128(amount)).inc("opCount", opCount)
+        .setOnInsert("accountId", accountId).setOnInsert("date", date);
+  }
+
+  /**
+   * Amount of an operation in an aggregation of the operations, negative for a withdraw
+   * <p>
+   * The amount is converted to Decimal128, so that the amounts stored as strings by the previous
+   * versions and not migrated yet are not ignored by $sum
+   * </p>
+   * 
+   * @return the expression of the signed amount
+   */
+  public static AggregationExpression signedAmount() {
+    AggregationExpression amount = ConvertOperators.valueOf("amount").convertToDecimal();
+    return ConditionalOperators
+        .when(Criteria.where("operationType").is(Constants.OPERATION_TYPE_WITHDRAW))
+        .thenValueOf(ArithmeticOperators.Multiply.valueOf(amount).multiplyBy(-1))
+        .otherwiseValueOf(amount);
+  }
+
+}
@@ -0,0 +1,117 @@
+package com.cambyze.banking.persistence.services;
+
+import java.time.Duration;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import com.cambyze.banking.persistence.model.Account;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+/**
+ * Bounded cache of the bank accounts by BAN, in front of the DB
+ * <p>
+ * The entries are evicted by size and by time to live, with the properties
+ * "cambyze.account-cache.maximum-size" and "cambyze.account-cache.expire-after-write". The cache
+ * stores and returns copies because the callers modify the accounts.
+ */
+@Component
+public class BankAccountCache {
+
+  private final Cache<String, Account> cache;
+
+  public BankAccountCache(@Value("${cambyze.account-cache.maximum-size:10000}") long maximumSize,
+      @Value("${cambyze.account-cache.expire-after-write:30s}") Duration expireAfterWrite) {
+    this.cache = Caffeine.newBuilder().maximumSize(maximumSize)
+        .expireAfterWrite(expireAfterWrite).recordStats().build();
+  }
+
+  /**
+   * Find a bank account in the cache
+   * 
+   * @param ban Bank Account Number
+   * @return a copy of the cached bank account else null
+   */
+  public Account get(String ban) {
+    if (ban == null) {
+      return null;
+    }
+    Account ba = cache.getIfPresent(key(ban));
+    return ba != null ? copy(ba) : null;
+  }
+
+  /**
+   * Add or replace a bank account in the cache
+   * <p>
+   * A cached bank account is not replaced by an older version, which could be written by a slower
+   * concurrent request
+   * 
+   * @param ba the bank account
+   */
+  public void put(Account ba) {
+    if (ba != null && ba.getBankAccountNumber() != null) {
+      cache.asMap().merge(key(ba.getBankAccountNumber()), copy(ba),
+          (cached, updated) -> isOlder(updated, cached) ? cached : updated);
+    }
+  }
+
+  /**
+   * Remove a bank account from the cache
+   * 
+   * @param ban Bank Account Number
+   */
+  public void invalidate(String ban) {
+    if (ban != null) {
+      cache.invalidate(key(ban));
+    }
+  }
+
+  /**
+   * Statistics of the cache: hits, misses, evictions...
+   * 
+   * @return the statistics since the start
+   */
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  /**
+   * Approximate number of cached bank accounts
+   * 
+   * @return the number of entries
+   */
+  public long size() {
+    return cache.estimatedSize();
+  }
+
+  /**
+   * The underlying cache, typically to bind metrics
+   * 
+   * @return the Caffeine cache
+   */
+  public Cache<String, Account> getNativeCache() {
+    return cache;
+  }
+
+  private static String key(String ban) {
+    return Account.normalizeBan(ban);
+  }
+
+  private static boolean isOlder(Account ba, Account other) {
+    return ba.getVersion() != null && other.getVersion() != null
+        && ba.getVersion() < other.getVersion();
+  }
+
+  private static Account copy(Account ba) {
+    Account copy = new Account(ba.getPersonId());
+    copy.setAccountId(ba.getAccountId());
+    copy.setBankAccountNumber(ba.getBankAccountNumber());
+    copy.setAccountType(ba.getAccountType());
+    copy.setBalanceAmount(ba.getBalanceAmount());
+    copy.setOverdraftAmount(ba.getOverdraftAmount());
+    copy.setVersion(ba.getVersion());
+    copy.setLastInterestDate(ba.getLastInterestDate());
+    copy.setLastInterestOperationId(ba.getLastInterestOperationId());
+    return copy;
+  }
+}
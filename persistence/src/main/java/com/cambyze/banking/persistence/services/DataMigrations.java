@@ -0,0 +1,186 @@
+package com.cambyze.banking.persistence.services;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOptions;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.aggregation.ConvertOperators;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+import com.cambyze.banking.persistence.model.Account;
+import com.cambyze.banking.persistence.model.Operation;
+import com.cambyze.banking.persistence.model.Person;
+import jakarta.annotation.PostConstruct;
+
+/**
+ * Migrations of the documents written by the previous versions, executed at the start before the
+ * requests are served
+ * <p>
+ * Each migration only selects the documents still in the previous format, so it can be executed
+ * at each start. The amounts are converted before the balance checkpoints of the operations
+ * written before the checkpoints are rebuilt, which must be done while no operation is written,
+ * during the deployment. The unique index of the mails is only created when no mail is used by
+ * several persons: the duplicates are reported, and removed only when
+ * "cambyze.migrations.deduplicate-mails" is true, after their review. Disabled with
+ * "cambyze.migrations.enabled" when the migrations are executed by the deployment.
+ * </p>
+ */
+@Component
+public class DataMigrations {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DataMigrations.class);
+
+  // BSON type of the amounts stored by the previous versions
+  private static final int BSON_STRING = 2;
+
+  private final MongoTemplate mongoTemplate;
+
+  private final BalanceCheckpointService balanceCheckpointService;
+
+  private final boolean enabled;
+
+  private final boolean deduplicateMails;
+
+  public DataMigrations(MongoTemplate mongoTemplate,
+      BalanceCheckpointService balanceCheckpointService,
+      @Value("${cambyze.migrations.enabled:true}") boolean enabled,
+      @Value("${cambyze.migrations.deduplicate-mails:false}") boolean deduplicateMails) {
+    this.mongoTemplate = mongoTemplate;
+    this.balanceCheckpointService = balanceCheckpointService;
+    this.enabled = enabled;
+    this.deduplicateMails = deduplicateMails;
+  }
+
+  @PostConstruct
+  public void migrate() {
+    if (!enabled) {
+      return;
+    }
+    long amounts = migrateAmounts();
+    if (amounts > 0) {
+      LOGGER.info("{} documents with amounts stored as strings converted to Decimal128", amounts);
+    }
+    int accounts = balanceCheckpointService.backfill();
+    if (accounts > 0) {
+      LOGGER.info("Balance checkpoints rebuilt for {} bank accounts", accounts);
+    }
+    if (deduplicateMails) {
+      long persons = deduplicateMails();
+      if (persons > 0) {
+        LOGGER.warn("Mail removed from {} persons using the mail of another person", persons);
+      }
+    } else if (reportDuplicateMails() > 0) {
+      LOGGER.error("Unique index of the mails not created: remove the duplicates or set"
+          + " cambyze.migrations.deduplicate-mails to true");
+      return;
+    }
+    createMailIndex();
+  }
+
+  /**
+   * Convert the amounts stored as strings to Decimal128, so that the guarded updates of the
+   * balances and the sums of the operations compare and add them as numbers
+   *
+   * @return the number of converted fields
+   */
+  public long migrateAmounts() {
+    return convertToDecimal(Account.class, "balanceAmount")
+        + convertToDecimal(Account.class, "overdraftAmount")
+        + convertToDecimal(Operation.class, "amount");
+  }
+
+  /**
+   * Keep each mail on one person only, the one with the lowest id, before the creation of the
+   * unique index of the mails
+   * <p>
+   * The previous versions allowed a mail on several persons. The mail of the other persons is
+   * moved to the field "duplicateEmail", so that it is not lost and does not log in.
+   * </p>
+   *
+   * @return the number of persons whose mail is removed
+   */
+  public long deduplicateMails() {
+    long removed = 0;
+    try (Stream<Document> duplicates = mongoTemplate
+        .aggregateStream(duplicateMailsAggregation(), Person.class, Document.class)) {
+      Iterator<Document> it = duplicates.iterator();
+      while (it.hasNext()) {
+        List<Object> personIds = it.next().getList("personIds", Object.class);
+        removed += mongoTemplate.updateMulti(
+            Query.query(Criteria.where("_id").in(personIds.subList(1, personIds.size()))),
+            new Update().rename("email", "duplicateEmail"), Person.class).getModifiedCount();
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * Log the persons using the same mail, without modifying them
+   *
+   * @return the number of mails used by several persons
+   */
+  public long reportDuplicateMails() {
+    long mails = 0;
+    try (Stream<Document> duplicates = mongoTemplate
+        .aggregateStream(duplicateMailsAggregation(), Person.class, Document.class)) {
+      Iterator<Document> it = duplicates.iterator();
+      while (it.hasNext()) {
+        LOGGER.error("Mail used by several persons: {}", it.next().getList("personIds",
+            Object.class));
+        mails++;
+      }
+    }
+    return mails;
+  }
+
+  /**
+   * Ids of the persons of each mail used by several persons, by ascending id
+   */
+  private Aggregation duplicateMailsAggregation() {
+    return Aggregation
+        .newAggregation(Aggregation.match(Criteria.where("email").type(BSON_STRING)),
+            Aggregation.sort(Sort.Direction.ASC, "_id"),
+            Aggregation.group("email").push("_id").as("personIds").count().as("count"),
+            Aggregation.match(Criteria.where("count").gt(1)))
+        .withOptions(AggregationOptions.builder().allowDiskUse(true).build());
+  }
+
+  /**
+   * Create the unique index of the mails, the persons without mail are not indexed
+   * <p>
+   * A mail written twice since the deduplication by an instance of a previous version fails the
+   * creation: the error is logged and the application starts without the index, created at the
+   * next start.
+   * </p>
+   */
+  public void createMailIndex() {
+    try {
+      mongoTemplate.indexOps(Person.class).ensureIndex(
+          new Index("email", Sort.Direction.ASC).named("email").unique().sparse());
+    } catch (DataAccessException e) {
+      LOGGER.error("Unique index of the mails not created: {}", e.getMessage());
+    }
+  }
+
+  /**
+   * Convert a field stored as a string to Decimal128 in all the documents of a collection
+   */
+  private long convertToDecimal(Class<?> entityClass, String field) {
+    Query legacy = Query.query(Criteria.where(field).type(BSON_STRING));
+    AggregationUpdate update = AggregationUpdate.update().set(field)
+        .toValue(ConvertOperators.valueOf(field).convertToDecimal());
+    return mongoTemplate.updateMulti(legacy, update, entityClass).getModifiedCount();
+  }
+}
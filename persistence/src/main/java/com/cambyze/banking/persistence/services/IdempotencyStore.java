@@ -0,0 +1,139 @@
+package com.cambyze.banking.persistence.services;
+
+import java.time.Duration;
+import java.time.Instant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import com.cambyze.banking.persistence.model.IdempotencyRecord;
+
+/**
+ * Results of the requests sent with an idempotency key, shared by all the instances with the DB
+ * <p>
+ * A key is claimed by the insert of a pending record: the unique _id makes sure that only one
+ * instance executes the request. A pending record older than "cambyze.idempotency.lease" is the
+ * one of an execution interrupted by a crash and can be claimed again: the execution of a request
+ * renews the lease of its key until its response is stored.
+ * </p>
+ */
+@Service
+public class IdempotencyStore {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(IdempotencyStore.class);
+
+  // Attempts when the record disappears between the insert and the read (release or expiry)
+  private static final int MAX_CLAIM_ATTEMPTS = 3;
+
+  private final MongoTemplate mongoTemplate;
+
+  private final Duration lease;
+
+  public IdempotencyStore(MongoTemplate mongoTemplate,
+      @Value("${cambyze.idempotency.lease:1m}") Duration lease) {
+    this.mongoTemplate = mongoTemplate;
+    this.lease = lease;
+  }
+
+  /**
+   * Claim a key to execute its request
+   *
+   * @param key the idempotency key
+   * @param request the fingerprint of the request
+   * @return null if the request must be executed by the caller, else the existing record, pending
+   *         in another execution or done
+   */
+  public IdempotencyRecord claim(String key, String request) {
+    for (int attempt = 0; attempt < MAX_CLAIM_ATTEMPTS; attempt++) {
+      try {
+        mongoTemplate.insert(new IdempotencyRecord(key, request));
+        return null;
+      } catch (DuplicateKeyException e) {
+        if (takeOver(key, request)) {
+          LOGGER.warn("Idempotency key {} taken over after the lease of {}", key, lease);
+          return null;
+        }
+        IdempotencyRecord existing = mongoTemplate.findById(key, IdempotencyRecord.class);
+        if (existing != null) {
+          return existing;
+        }
+      }
+    }
+    throw new IllegalStateException("Idempotency key " + key + " can not be claimed");
+  }
+
+  /**
+   * Take over a pending record older than the lease, only for the same request: a key reused for
+   * another request keeps its fingerprint and is rejected by the caller
+   */
+  private boolean takeOver(String key, String request) {
+    Instant now = Instant.now();
+    Query stale = Query.query(Criteria.where("_id").is(key).and("status")
+        .is(IdempotencyRecord.PENDING).and("request").is(request).and("createdAt")
+        .lt(now.minus(lease)));
+    Update update = new Update().set("createdAt", now);
+    return mongoTemplate.updateFirst(stale, update, IdempotencyRecord.class)
+        .getModifiedCount() > 0;
+  }
+
+  /**
+   * Renew the lease of a claimed key during the execution of its request, so that it is not taken
+   * over by another instance
+   *
+   * @param key the idempotency key
+   * @return false if the key is no longer claimed
+   */
+  public boolean renew(String key) {
+    Query pending = Query.query(
+        Criteria.where("_id").is(key).and("status").is(IdempotencyRecord.PENDING));
+    return mongoTemplate.updateFirst(pending, new Update().set("createdAt", Instant.now()),
+        IdempotencyRecord.class).getModifiedCount() > 0;
+  }
+
+  public Duration getLease() {
+    return lease;
+  }
+
+  /**
+   * Read the record of a key
+   *
+   * @param key the idempotency key
+   * @return the record, null if the key is unknown or expired
+   */
+  public IdempotencyRecord find(String key) {
+    return mongoTemplate.findById(key, IdempotencyRecord.class);
+  }
+
+  /**
+   * Store the response of a claimed key
+   *
+   * @param record the record with its HTTP status and its body or error message
+   * @return false if the key was no longer claimed, the response is then not stored
+   */
+  public boolean complete(IdempotencyRecord record) {
+    record.setStatus(IdempotencyRecord.DONE);
+    Query pending = Query.query(Criteria.where("_id").is(record.getKey()).and("status")
+        .is(IdempotencyRecord.PENDING));
+    Update update = new Update().set("status", IdempotencyRecord.DONE)
+        .set("httpStatus", record.getHttpStatus()).set("body", record.getBody())
+        .set("errorMessage", record.getErrorMessage());
+    return mongoTemplate.updateFirst(pending, update, IdempotencyRecord.class)
+        .getModifiedCount() > 0;
+  }
+
+  /**
+   * Release a claimed key without response, so that the request can be sent again
+   *
+   * @param key the idempotency key
+   */
+  public void release(String key) {
+    mongoTemplate.remove(Query.query(
+        Criteria.where("_id").is(key).and("status").is(IdempotencyRecord.PENDING)),
+        IdempotencyRecord.class);
+  }
+}
@@ -0,0 +1,346 @@
+package com.cambyze.banking.persistence.services;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import com.cambyze.banking.persistence.model.Account;
+import com.cambyze.banking.persistence.model.Constants;
+import com.cambyze.banking.persistence.model.InterestRun;
+import com.cambyze.banking.persistence.model.Operation;
+import com.mongodb.bulk.BulkWriteError;
+
+/**
+ * Batch crediting the daily interests of all the savings accounts
+ * <p>
+ * The savings accounts are split by ranges of ids ($bucketAuto) processed in parallel in a
+ * fork-join pool. Each range is read with a DB cursor by chunks: the balances at the end of the day
+ * are read in the daily checkpoints with one aggregation, or summed from the operations for the
+ * bank accounts without checkpoint, the balances are updated with one bulk write and the interests
+ * are inserted as deposits with another one. The interests are added once to the checkpoints.
+ * </p>
+ * <p>
+ * The progress of each range is stored in the collection "interest_runs" after each chunk, so that
+ * a stopped run resumes after the last processed bank account. A bank account is credited only
+ * once a day: its update sets its lastInterestDate and a new id for its interest operation, which
+ * is inserted with this id at each execution. The interests are limited so that the balance does
+ * not exceed Constants.SAVINGS_ACCOUNT_LIMIT.
+ * </p>
+ */
+@Service
+public class InterestAccrualBatch {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(InterestAccrualBatch.class);
+
+  private static final int DUPLICATE_KEY = 11000;
+
+  private static final BigDecimal DAYS_PER_YEAR = BigDecimal.valueOf(365);
+
+  private static final BigDecimal ANNUAL_RATE =
+      BigDecimal.valueOf(Constants.SAVINGS_ANNUAL_INTEREST_RATE);
+
+  private final MongoTemplate mongoTemplate;
+
+  private final BalanceCheckpointService balanceCheckpointService;
+
+  private final BankAccountCache bankAccountCache;
+
+  private final int parallelism;
+
+  private final int partitionCount;
+
+  private final int chunkSize;
+
+  public InterestAccrualBatch(MongoTemplate mongoTemplate,
+      BalanceCheckpointService balanceCheckpointService, BankAccountCache bankAccountCache,
+      @Value("${cambyze.interest.parallelism:0}") int parallelism,
+      @Value("${cambyze.interest.partitions:0}") int partitionCount,
+      @Value("${cambyze.interest.chunk-size:500}") int chunkSize) {
+    this.mongoTemplate = mongoTemplate;
+    this.balanceCheckpointService = balanceCheckpointService;
+    this.bankAccountCache = bankAccountCache;
+    this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+    // More partitions than tasks so that a slow range does not delay the end of the run
+    this.partitionCount = partitionCount > 0 ? partitionCount : this.parallelism * 4;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Credit the interests of a day on all the savings accounts, or resume the stopped run of this
+   * day
+   *
+   * @param day the day of the interests
+   * @return the run with the number of credited bank accounts by partition
+   */
+  public InterestRun run(LocalDate day) {
+    InterestRun run = mongoTemplate.findById(day.toString(), InterestRun.class);
+    if (run == null) {
+      run = createRun(day);
+    } else if (run.isDone()) {
+      LOGGER.info("Interests already credited: {}", run);
+      return run;
+    } else {
+      LOGGER.info("Resume of the run: {}", run);
+    }
+
+    List<Callable<Long>> tasks = new ArrayList<>();
+    for (int i = 0; i < run.getPartitions().size(); i++) {
+      if (!run.getPartitions().get(i).isDone()) {
+        int index = i;
+        InterestRun.Partition partition = run.getPartitions().get(i);
+        tasks.add(() -> processPartition(day, index, partition));
+      }
+    }
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    long credited = 0;
+    try {
+      for (Future<Long> result : pool.invokeAll(tasks)) {
+        credited += result.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interest run interrupted for the day " + day, e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Interest run failed for the day " + day, e.getCause());
+    } finally {
+      pool.shutdown();
+    }
+
+    mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(run.getDay())),
+        new Update().set("done", true).set("endDate", Instant.now()), InterestRun.class);
+    InterestRun doneRun = mongoTemplate.findById(run.getDay(), InterestRun.class);
+    LOGGER.info("{} savings accounts credited by this execution, {}", credited, doneRun);
+    return doneRun;
+  }
+
+  /**
+   * Resume the runs stopped before a day, from the oldest one
+   * <p>
+   * A run which fails again is logged and left to the next execution, so that it does not prevent
+   * the interests of the following days.
+   * </p>
+   *
+   * @param day the first day not resumed
+   * @return the resumed runs which are done
+   */
+  public List<InterestRun> resumeStoppedRuns(LocalDate day) {
+    Query stopped = Query
+        .query(Criteria.where("done").is(false).and("_id").lt(day.toString()))
+        .with(Sort.by(Sort.Direction.ASC, "_id"));
+    List<InterestRun> resumed = new ArrayList<>();
+    for (InterestRun run : mongoTemplate.find(stopped, InterestRun.class)) {
+      try {
+        resumed.add(run(LocalDate.parse(run.getDay())));
+      } catch (RuntimeException e) {
+        LOGGER.error("Interest run of the day {} not resumed", run.getDay(), e);
+      }
+    }
+    return resumed;
+  }
+
+  /**
+   * Split the savings accounts in ranges of ids of the same size and store the new run
+   */
+  private InterestRun createRun(LocalDate day) {
+    Aggregation aggregation = Aggregation.newAggregation(
+        Aggregation.match(Criteria.where("accountType").is(Constants.ACCOUNT_TYPE_SAVINGS)),
+        Aggregation.bucketAuto("_id", partitionCount));
+    List<Document> buckets =
+        mongoTemplate.aggregate(aggregation, Account.class, Document.class).getMappedResults();
+    InterestRun run = new InterestRun();
+    run.setDay(day.toString());
+    run.setStartDate(Instant.now());
+    for (int i = 0; i < buckets.size(); i++) {
+      Document bounds = buckets.get(i).get("_id", Document.class);
+      run.getPartitions().add(new InterestRun.Partition(bounds.get("min").toString(),
+          bounds.get("max").toString(), i == buckets.size() - 1));
+    }
+    try {
+      mongoTemplate.insert(run);
+    } catch (DuplicateKeyException e) {
+      // Run created at the same time by another node
+      return mongoTemplate.findById(run.getDay(), InterestRun.class);
+    }
+    LOGGER.info("New interest run: {}", run);
+    return run;
+  }
+
+  /**
+   * Credit the interests of the savings accounts of a range, chunk by chunk
+   *
+   * @return the number of credited bank accounts
+   */
+  private long processPartition(LocalDate day, int index, InterestRun.Partition partition) {
+    Criteria ids = partition.getLastId() != null ? Criteria.where("_id").gt(partition.getLastId())
+        : Criteria.where("_id").gte(partition.getMinId());
+    ids = partition.isLast() ? ids.lte(partition.getMaxId()) : ids.lt(partition.getMaxId());
+    Query query = Query
+        .query(Criteria.where("accountType").is(Constants.ACCOUNT_TYPE_SAVINGS).andOperator(ids))
+        .with(Sort.by(Sort.Direction.ASC, "_id")).cursorBatchSize(chunkSize);
+
+    long credited = 0;
+    List<Account> chunk = new ArrayList<>(chunkSize);
+    try (Stream<Account> accounts = mongoTemplate.stream(query, Account.class)) {
+      Iterator<Account> it = accounts.iterator();
+      while (it.hasNext()) {
+        chunk.add(it.next());
+        if (chunk.size() == chunkSize || !it.hasNext()) {
+          long chunkCredited = processChunk(day, chunk);
+          credited += chunkCredited;
+          saveProgress(day, index, chunk.get(chunk.size() - 1).getAccountId(), chunkCredited);
+          chunk.clear();
+        }
+      }
+    }
+    mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(day.toString())),
+        new Update().set("partitions." + index + ".done", true), InterestRun.class);
+    LOGGER.debug("Partition {} of the day {}: {} credited accounts", index, day, credited);
+    return credited;
+  }
+
+  private void saveProgress(LocalDate day, int index, String lastId, long credited) {
+    mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(day.toString())),
+        new Update().set("partitions." + index + ".lastId", lastId)
+            .inc("partitions." + index + ".credited", credited),
+        InterestRun.class);
+  }
+
+  /**
+   * Credit the interests of a chunk of savings accounts
+   *
+   * @return the number of bank accounts credited by this call
+   */
+  private long processChunk(LocalDate day, List<Account> chunk) {
+    Map<String, Account> accountsById = new LinkedHashMap<>();
+    chunk.forEach(ba -> accountsById.put(ba.getAccountId(), ba));
+    Map<String, BigDecimal> closingBalances =
+        balanceCheckpointService.findClosingBalances(accountsById.keySet(), day);
+    if (closingBalances.size() < accountsById.size()) {
+      // Without checkpoint until the day, the balance is the sum of the operations
+      Set<String> withoutCheckpoint = new HashSet<>(accountsById.keySet());
+      withoutCheckpoint.removeAll(closingBalances.keySet());
+      closingBalances.putAll(balanceCheckpointService.sumOperations(withoutCheckpoint, day));
+    }
+
+    Map<String, BigDecimal> interests = new LinkedHashMap<>();
+    BulkOperations updates = mongoTemplate.bulkOps(BulkMode.UNORDERED, Account.class);
+    int updateCount = 0;
+    for (Account ba : chunk) {
+      BigDecimal interest = interestOf(closingBalances.get(ba.getAccountId()));
+      if (interest.signum() > 0) {
+        interests.put(ba.getAccountId(), interest);
+        if (!day.equals(ba.getLastInterestDate())) {
+          Query query = BalanceUpdates.incrementQuery(ba, interest)
+              .addCriteria(Criteria.where("lastInterestDate").ne(day));
+          updates.updateOne(query, BalanceUpdates.incrementUpdate(interest)
+              .set("lastInterestDate", day)
+              .set("lastInterestOperationId", new ObjectId().toHexString()));
+          updateCount++;
+        }
+      }
+    }
+    if (updateCount > 0) {
+      updates.execute();
+    }
+    if (interests.isEmpty()) {
+      return 0;
+    }
+
+    // Credited bank accounts, by this chunk or before a stop of the run, whose operation may be
+    // missing
+    Query creditedQuery = Query.query(
+        Criteria.where("_id").in(interests.keySet()).and("lastInterestDate").is(day));
+    creditedQuery.fields().include("_id", "bankAccountNumber", "lastInterestOperationId");
+    List<Operation> ops = new ArrayList<>();
+    for (Account ba : mongoTemplate.find(creditedQuery, Account.class)) {
+      Operation op = new Operation(ba.getAccountId(), day, Constants.OPERATION_TYPE_DEPOSIT,
+          interests.get(ba.getAccountId()));
+      op.setOperationId(ba.getLastInterestOperationId() != null
+          ? ba.getLastInterestOperationId()
+          : legacyInterestOperationId(ba.getAccountId(), day));
+      ops.add(op);
+      bankAccountCache.invalidate(accountsById.get(ba.getAccountId()).getBankAccountNumber());
+    }
+    if (ops.isEmpty()) {
+      return 0;
+    }
+    Set<Integer> alreadyInserted = new HashSet<>();
+    try {
+      mongoTemplate.bulkOps(BulkMode.UNORDERED, Operation.class).insert(ops).execute();
+    } catch (BulkOperationException e) {
+      for (BulkWriteError error : e.getErrors()) {
+        if (error.getCode() != DUPLICATE_KEY) {
+          throw e;
+        }
+        alreadyInserted.add(error.getIndex());
+      }
+    }
+    // Also for the operations inserted before a stop of the run, the interests recorded before
+    // the stop are ignored by the checkpoint
+    for (Operation op : ops) {
+      balanceCheckpointService.recordInterest(op.getAccountId(), day, op.getAmount());
+    }
+    return (long) ops.size() - alreadyInserted.size();
+  }
+
+  /**
+   * Interests of a day for a balance, limited so that the balance does not exceed
+   * Constants.SAVINGS_ACCOUNT_LIMIT
+   *
+   * @param balance the balance at the end of the day, null if unknown
+   * @return the interests rounded to the cent, 0 if there is none
+   */
+  static BigDecimal interestOf(BigDecimal balance) {
+    if (balance == null || balance.signum() <= 0) {
+      return BigDecimal.ZERO;
+    }
+    BigDecimal interest = balance.multiply(ANNUAL_RATE).divide(DAYS_PER_YEAR, 2,
+        RoundingMode.HALF_UP);
+    BigDecimal available = BigDecimal.valueOf(Constants.SAVINGS_ACCOUNT_LIMIT).subtract(balance);
+    return interest.min(available).max(BigDecimal.ZERO);
+  }
+
+  /**
+   * Id of the interest operation of a bank account credited by a previous version, without
+   * lastInterestOperationId
+   * <p>
+   * Made of the time of the day and of the last 8 bytes of the id of the bank account, which are
+   * not unique: only used to resume the run of a previous version.
+   * </p>
+   */
+  private static String legacyInterestOperationId(String accountId, LocalDate day) {
+    ByteBuffer bytes = ByteBuffer.wrap(new ObjectId(accountId).toByteArray());
+    bytes.putInt(0, (int) day.atStartOfDay().toEpochSecond(ZoneOffset.UTC));
+    return new ObjectId(bytes.array()).toHexString();
+  }
+}
@@ -0,0 +1,315 @@
+package com.cambyze.banking.persistence.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+import com.cambyze.banking.persistence.model.Person;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Bloom filter of the mails of the persons, in front of the DB
+ * <p>
+ * A mail absent from the filter is surely not used by a person, so most of the logins with an
+ * unknown mail are answered without any request. A mail present in the filter may be a false
+ * positive and is read in the DB. The filter is built when the application is ready, by reading the
+ * mails of all the persons with a cursor, then updated by the creations of persons and rebuilt
+ * periodically to follow the growth of the persons collection.
+ * </p>
+ * <p>
+ * The size of the filter is computed from "cambyze.mail-filter.expected-persons" (at least twice
+ * the number of persons at each build) and "cambyze.mail-filter.false-positive-rate". The observed
+ * false positive rate is published in the gauge "cambyze.mail-filter.false-positive-rate".
+ * </p>
+ * <p>
+ * The filter only knows the persons created by this instance since the last build: a person created
+ * by another instance is refused by the logins of this instance until the next build. The filter is
+ * therefore disabled by default and is only enabled with "cambyze.mail-filter.enabled" when one
+ * instance creates the persons of the DB.
+ * </p>
+ */
+@Component
+public class MailBloomFilter implements MeterBinder {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MailBloomFilter.class);
+
+  private final MongoTemplate mongoTemplate;
+
+  private final boolean enabled;
+
+  private final long expectedPersons;
+
+  private final double falsePositiveRate;
+
+  // Null until the first build: every mail may then exist
+  private volatile Bits current;
+
+  // Filter being built, it receives the mails of the persons created during the build
+  private volatile Bits building;
+
+  private final AtomicLong negatives = new AtomicLong();
+
+  private final AtomicLong positives = new AtomicLong();
+
+  private final AtomicLong falsePositives = new AtomicLong();
+
+  private final AtomicLong builds = new AtomicLong();
+
+  // Lock rather than synchronized, which would pin a virtual thread during the DB access
+  private final Lock buildLock = new ReentrantLock();
+
+  public MailBloomFilter(MongoTemplate mongoTemplate,
+      @Value("${cambyze.mail-filter.enabled:false}") boolean enabled,
+      @Value("${cambyze.mail-filter.expected-persons:1000000}") long expectedPersons,
+      @Value("${cambyze.mail-filter.false-positive-rate:0.01}") double falsePositiveRate) {
+    this.mongoTemplate = mongoTemplate;
+    this.enabled = enabled;
+    this.expectedPersons = expectedPersons;
+    this.falsePositiveRate = falsePositiveRate;
+  }
+
+  /**
+   * Build the filter when the application is ready
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  public void onApplicationReady() {
+    rebuild();
+  }
+
+  /**
+   * Build a new filter with the mails of all the persons then replace the current one
+   */
+  public void rebuild() {
+    if (!enabled) {
+      return;
+    }
+    buildLock.lock();
+    try {
+      build();
+    } finally {
+      buildLock.unlock();
+    }
+  }
+
+  private void build() {
+    long start = System.nanoTime();
+    long persons = mongoTemplate.estimatedCount(Person.class);
+    Bits next = new Bits(Math.max(expectedPersons, 2 * persons), falsePositiveRate);
+    building = next;
+    Query query = new Query();
+    query.fields().include("email");
+    try (Stream<Person> stream = mongoTemplate.stream(query, Person.class)) {
+      stream.forEach(per -> next.add(per.getEmail()));
+    } catch (RuntimeException e) {
+      building = null;
+      throw e;
+    }
+    current = next;
+    building = null;
+    builds.incrementAndGet();
+    LOGGER.info("Filter of the mails built with {} persons in {} ms: {} bits, {} hashes",
+        next.count.get(), (System.nanoTime() - start) / 1_000_000, next.numBits, next.numHashes);
+  }
+
+  /**
+   * Add the mail of a new person
+   *
+   * @param mail the mail
+   */
+  public void put(String mail) {
+    if (mail == null) {
+      return;
+    }
+    Bits bits;
+    do {
+      bits = current;
+      if (bits != null) {
+        bits.add(mail);
+      }
+      Bits next = building;
+      if (next != null) {
+        next.add(mail);
+      }
+      // Added again if the filter has been replaced meanwhile
+    } while (bits != current);
+  }
+
+  /**
+   * Check if a mail may be used by a person
+   *
+   * @param mail the mail
+   * @return false if no person surely uses the mail, true if the mail must be read in the DB
+   */
+  public boolean mightContain(String mail) {
+    Bits bits = current;
+    if (bits == null || mail == null) {
+      return true;
+    }
+    if (bits.mightContain(mail)) {
+      positives.incrementAndGet();
+      return true;
+    }
+    negatives.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Record a mail present in the filter but not used by any person
+   */
+  public void recordFalsePositive() {
+    falsePositives.incrementAndGet();
+  }
+
+  public boolean isReady() {
+    return current != null;
+  }
+
+  public long getNegatives() {
+    return negatives.get();
+  }
+
+  public long getPositives() {
+    return positives.get();
+  }
+
+  public long getFalsePositives() {
+    return falsePositives.get();
+  }
+
+  /**
+   * Observed false positive rate: ratio of the unknown mails present in the filter
+   *
+   * @return the rate since the start, 0 without unknown mail
+   */
+  public double getObservedFalsePositiveRate() {
+    long fp = falsePositives.get();
+    long unknown = fp + negatives.get();
+    return unknown > 0 ? (double) fp / unknown : 0.0;
+  }
+
+  /**
+   * False positive rate expected from the number of mails in the current filter
+   *
+   * @return the expected rate, 1 before the first build
+   */
+  public double getExpectedFalsePositiveRate() {
+    Bits bits = current;
+    return bits != null ? bits.expectedFalsePositiveRate() : 1.0;
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    FunctionCounter
+        .builder("cambyze.mail-filter.checks", this, MailBloomFilter::getNegatives)
+        .tag("result", "absent").description("Mails checked with the filter")
+        .register(registry);
+    FunctionCounter
+        .builder("cambyze.mail-filter.checks", this, MailBloomFilter::getPositives)
+        .tag("result", "present").description("Mails checked with the filter")
+        .register(registry);
+    FunctionCounter
+        .builder("cambyze.mail-filter.false-positives", this,
+            MailBloomFilter::getFalsePositives)
+        .description("Mails present in the filter but not used by any person").register(registry);
+    FunctionCounter.builder("cambyze.mail-filter.builds", builds, AtomicLong::get)
+        .description("Builds of the filter").register(registry);
+    Gauge
+        .builder("cambyze.mail-filter.false-positive-rate", this,
+            MailBloomFilter::getObservedFalsePositiveRate)
+        .description("Observed ratio of the unknown mails present in the filter")
+        .register(registry);
+    Gauge
+        .builder("cambyze.mail-filter.expected-false-positive-rate", this,
+            MailBloomFilter::getExpectedFalsePositiveRate)
+        .description("False positive rate expected from the number of mails in the filter")
+        .register(registry);
+  }
+
+  /**
+   * Bit array of the filter with the double hashing of Kirsch and Mitzenmacher
+   */
+  private static class Bits {
+
+    private final AtomicLongArray words;
+
+    private final long numBits;
+
+    private final int numHashes;
+
+    // Number of added mails, including the duplicates
+    private final AtomicLong count = new AtomicLong();
+
+    Bits(long expectedInsertions, double falsePositiveRate) {
+      long n = Math.max(1, expectedInsertions);
+      long bits = (long) (-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+      // The bits are stored in an int-indexed array of longs
+      int numWords = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (bits + 63) / 64));
+      this.words = new AtomicLongArray(numWords);
+      this.numBits = 64L * numWords;
+      this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+    }
+
+    void add(String mail) {
+      long hash1 = hash(mail);
+      long hash2 = mix(hash1);
+      for (int i = 0; i < numHashes; i++) {
+        long bit = Long.remainderUnsigned(hash1 + i * hash2, numBits);
+        int word = (int) (bit >>> 6);
+        long mask = 1L << bit;
+        long value;
+        do {
+          value = words.get(word);
+        } while ((value & mask) == 0 && !words.compareAndSet(word, value, value | mask));
+      }
+      count.incrementAndGet();
+    }
+
+    boolean mightContain(String mail) {
+      long hash1 = hash(mail);
+      long hash2 = mix(hash1);
+      for (int i = 0; i < numHashes; i++) {
+        long bit = Long.remainderUnsigned(hash1 + i * hash2, numBits);
+        if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    double expectedFalsePositiveRate() {
+      return Math.pow(1 - Math.exp(-(double) numHashes * count.get() / numBits), numHashes);
+    }
+
+    // 64 bits FNV-1a of the chars of the mail
+    private static long hash(String mail) {
+      long hash = 0xcbf29ce484222325L;
+      for (int i = 0; i < mail.length(); i++) {
+        hash ^= mail.charAt(i);
+        hash *= 0x100000001b3L;
+      }
+      return hash;
+    }
+
+    // Finalizer of MurmurHash3, never 0 so that the probes are not all the same bit
+    private static long mix(long hash) {
+      hash ^= hash >>> 33;
+      hash *= 0xff51afd7ed558ccdL;
+      hash ^= hash >>> 33;
+      hash *= 0xc4ceb9fe1a85ec53L;
+      hash ^= hash >>> 33;
+      return hash | 1;
+    }
+  }
+}
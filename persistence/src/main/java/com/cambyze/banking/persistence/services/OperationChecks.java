@@ -0,0 +1,48 @@
+package com.cambyze.banking.persistence.services;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.cambyze.banking.persistence.model.Constants;
+
+/**
+ * Checks of the data of a new banking operation, shared by the blocking and the reactive
+ * persistence so that both refuse the same operations with the same return codes
+ */
+public final class OperationChecks {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(OperationChecks.class);
+
+  private OperationChecks() {
+    throw new IllegalStateException("Utility class");
+  }
+
+  /**
+   * Check the date, the type and the amount of a new banking operation
+   * 
+   * @param opDate Date of the operation
+   * @param opType Type of the operation (deposit, withdraw)
+   * @param opAmount Amount of the operation, rounded to two decimals
+   * @return the error code, null if the operation is valid
+   */
+  public static String check(LocalDate opDate, String opType, BigDecimal opAmount) {
+    if (opDate == null || opDate.isBefore(Constants.MIN_OPERATION_DATE)
+        || opDate.isAfter(Constants.MAX_OPERATION_DATE)) {
+      LOGGER.error("Operation not created because the date is invalid: {}", opDate);
+      return Constants.INVALID_DATE;
+    } // condition opDate
+
+    if (!Constants.OPERATION_TYPE_DEPOSIT.equals(opType)
+        && !Constants.OPERATION_TYPE_WITHDRAW.equals(opType)) {
+      LOGGER.error("Operation not created because the operation type is wrong: {}", opType);
+      return Constants.INVALID_OPERATION_TYPE;
+    } // condition opType
+
+    if (opAmount == null || opAmount.longValue() <= 0.0) {
+      LOGGER.error("Operation not created because the amount is invalid");
+      return Constants.INVALID_AMOUNT;
+    } // condition opAmount
+    return null;
+  }
+}
@@ -0,0 +1,277 @@
+package com.cambyze.banking.persistence.services;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+import com.cambyze.banking.persistence.model.Operation;
+import com.mongodb.bulk.BulkWriteError;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Group commit of the inserts of the operations
+ * <p>
+ * When "cambyze.operation-write-behind.enabled" is true, the operations to insert are queued and a
+ * dedicated thread inserts them with one bulk insert as soon as
+ * "cambyze.operation-write-behind.max-batch-size" operations are waiting or
+ * "cambyze.operation-write-behind.max-delay" has elapsed since the first one. The caller receives
+ * a future completed by the acknowledgment of the insert of its operation, so an operation is
+ * never reported as created before it is written.
+ * </p>
+ * <p>
+ * The future is waited for out of the lanes of the bank accounts (see
+ * PersistenceServices.submitBankingOperation): a lane waiting for its own insert would send at
+ * most one operation by batch and wait "max-delay" for each operation.
+ * </p>
+ */
+@Component
+public class OperationWriteBehind implements MeterBinder {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(OperationWriteBehind.class);
+
+  private final MongoTemplate mongoTemplate;
+
+  private final boolean enabled;
+
+  private final int maxBatchSize;
+
+  private final Duration maxDelay;
+
+  private final BlockingQueue<PendingInsert> queue = new LinkedBlockingQueue<>();
+
+  private final AtomicLong flushes = new AtomicLong();
+
+  private final AtomicLong insertedOperations = new AtomicLong();
+
+  private volatile boolean running;
+
+  private Thread flusher;
+
+  public OperationWriteBehind(MongoTemplate mongoTemplate,
+      @Value("${cambyze.operation-write-behind.enabled:false}") boolean enabled,
+      @Value("${cambyze.operation-write-behind.max-batch-size:500}") int maxBatchSize,
+      @Value("${cambyze.operation-write-behind.max-delay:2ms}") Duration maxDelay,
+      @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads) {
+    this.mongoTemplate = mongoTemplate;
+    this.enabled = enabled;
+    this.maxBatchSize = Math.max(1, maxBatchSize);
+    this.maxDelay = maxDelay;
+    if (enabled) {
+      running = true;
+      Thread.Builder threadBuilder =
+          virtualThreads ? Thread.ofVirtual() : Thread.ofPlatform().daemon();
+      flusher = threadBuilder.name("operation-write-behind").start(this::flushLoop);
+      LOGGER.info("Write-behind of the operations by batches of {} or every {}", maxBatchSize,
+          maxDelay);
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Queue an operation to insert
+   * 
+   * @param op the operation, its id is assigned if it has none
+   * @return the id of the operation once it is inserted
+   */
+  public CompletableFuture<String> submit(Operation op) {
+    if (op.getId() == null) {
+      op.setOperationId(new ObjectId().toHexString());
+    }
+    PendingInsert pending = new PendingInsert(op);
+    if (running) {
+      queue.add(pending);
+    } else {
+      // Stopped or disabled: the operation is inserted directly
+      flush(List.of(pending));
+    }
+    return pending.future;
+  }
+
+  /**
+   * Insert an operation with the next batch and wait for the acknowledgment
+   * 
+   * @param op the operation to insert
+   */
+  public void insert(Operation op) {
+    try {
+      submit(op).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw e;
+    }
+  }
+
+  private void flushLoop() {
+    List<PendingInsert> batch = new ArrayList<>(maxBatchSize);
+    while (running || !queue.isEmpty()) {
+      try {
+        PendingInsert first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + maxDelay.toNanos();
+        while (batch.size() < maxBatchSize) {
+          long remaining = deadline - System.nanoTime();
+          PendingInsert next =
+              remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        running = false;
+      }
+      if (!batch.isEmpty()) {
+        flush(batch);
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Insert a batch of operations with one unordered bulk insert then complete the callers
+   * <p>
+   * When the bulk insert is interrupted without the errors of its operations, the operations
+   * already inserted are read so that only the callers of the missing ones receive the failure.
+   * </p>
+   * 
+   * @param batch the operations to insert
+   */
+  private void flush(List<PendingInsert> batch) {
+    List<Operation> ops = new ArrayList<>(batch.size());
+    for (PendingInsert pending : batch) {
+      ops.add(pending.operation);
+    }
+    RuntimeException[] failures = new RuntimeException[batch.size()];
+    try {
+      mongoTemplate.bulkOps(BulkMode.UNORDERED, Operation.class).insert(ops).execute();
+    } catch (BulkOperationException e) {
+      for (BulkWriteError error : e.getErrors()) {
+        failures[error.getIndex()] = e;
+      }
+    } catch (RuntimeException e) {
+      Set<String> inserted = findInsertedOperations(ops);
+      for (int i = 0; i < ops.size(); i++) {
+        if (!inserted.contains(ops.get(i).getId())) {
+          failures[i] = e;
+        }
+      }
+      LOGGER.error("Batch of {} operations interrupted, {} operations not inserted: {}",
+          batch.size(), batch.size() - inserted.size(), e.getMessage());
+    }
+    flushes.incrementAndGet();
+    for (int i = 0; i < batch.size(); i++) {
+      PendingInsert pending = batch.get(i);
+      if (failures[i] != null) {
+        pending.future.completeExceptionally(failures[i]);
+      } else {
+        insertedOperations.incrementAndGet();
+        pending.future.complete(pending.operation.getId());
+      }
+    }
+    LOGGER.debug("Flush of {} operations", batch.size());
+  }
+
+  /**
+   * Ids of the operations of an interrupted batch found in the DB, none if they can not be read
+   */
+  private Set<String> findInsertedOperations(List<Operation> ops) {
+    Set<String> found = new HashSet<>();
+    try {
+      Query query = Query.query(
+          Criteria.where("_id").in(ops.stream().map(Operation::getId).toList()));
+      query.fields().include("_id");
+      mongoTemplate.find(query, Operation.class).forEach(op -> found.add(op.getId()));
+    } catch (RuntimeException e) {
+      LOGGER.error("Operations of the interrupted batch not read", e);
+    }
+    return found;
+  }
+
+  /**
+   * Insert the waiting operations then stop the thread
+   */
+  @PreDestroy
+  public void shutdown() throws InterruptedException {
+    running = false;
+    if (flusher != null) {
+      flusher.join(TimeUnit.SECONDS.toMillis(10));
+    }
+    // Operations queued during the stop
+    List<PendingInsert> remaining = new ArrayList<>();
+    queue.drainTo(remaining);
+    if (!remaining.isEmpty()) {
+      flush(remaining);
+    }
+  }
+
+  /**
+   * Number of bulk inserts since the start
+   * 
+   * @return the number of flushes
+   */
+  public long getFlushes() {
+    return flushes.get();
+  }
+
+  /**
+   * Number of operations inserted since the start
+   * 
+   * @return the number of operations
+   */
+  public long getInsertedOperations() {
+    return insertedOperations.get();
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    FunctionCounter
+        .builder("cambyze.operation.write.behind.flushes", this, OperationWriteBehind::getFlushes)
+        .description("Bulk inserts of the operations").register(registry);
+    FunctionCounter
+        .builder("cambyze.operation.write.behind.operations", this,
+            OperationWriteBehind::getInsertedOperations)
+        .description("Operations inserted by the bulk inserts").register(registry);
+  }
+
+  /**
+   * Operation waiting for its insert with the future of its caller
+   */
+  private static class PendingInsert {
+    private final Operation operation;
+    private final CompletableFuture<String> future = new CompletableFuture<>();
+
+    PendingInsert(Operation operation) {
+      this.operation = operation;
+    }
+  }
+
+}
@@ -0,0 +1,50 @@
+package com.cambyze.banking.persistence.services;
+
+import java.util.List;
+import org.springframework.stereotype.Component;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * Metrics of the cache of the bank accounts and of the sequences
+ * <p>
+ * The binder is applied by Spring Boot to the registry of the application when there is one
+ * (actuator)
+ * </p>
+ */
+@Component
+public class PersistenceMetrics implements MeterBinder {
+
+  // Keys of the sequences used by PersistenceServices
+  private static final List<String> SEQUENCE_KEYS = List.of("person", "bank_account_number");
+
+  private final BankAccountCache bankAccountCache;
+
+  private final SequenceGeneratorService sequenceGeneratorService;
+
+  public PersistenceMetrics(BankAccountCache bankAccountCache,
+      SequenceGeneratorService sequenceGeneratorService) {
+    this.bankAccountCache = bankAccountCache;
+    this.sequenceGeneratorService = sequenceGeneratorService;
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    CaffeineCacheMetrics.monitor(registry, bankAccountCache.getNativeCache(), "bankAccounts");
+    for (String key : SEQUENCE_KEYS) {
+      FunctionCounter
+          .builder("cambyze.sequence.blocks.fetched", sequenceGeneratorService,
+              s -> s.getBlocksFetched(key))
+          .description("Blocks of values reserved in the DB by this node").tag("sequence", key)
+          .register(registry);
+      FunctionCounter
+          .builder("cambyze.sequence.values.wasted", sequenceGeneratorService,
+              s -> s.getValuesWasted(key))
+          .description("Reserved values lost by the restarts of the nodes").tag("sequence", key)
+          .register(registry);
+    }
+  }
+
+}
@@ -1,21 +1,60 @@
 package com.cambyze.banking.persistence.services;
 
 import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations.BulkMode;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.support.TransactionTemplate;
+import com.mongodb.bulk.BulkWriteError;
+import com.cambyze.banking.persistence.config.TransactionConfiguration;
 import com.cambyze.banking.persistence.dao.BankAccountRepository;
 import com.cambyze.banking.persistence.dao.BankingOperationRepository;
 import com.cambyze.banking.persistence.dao.PersonAccountRepository;
 import com.cambyze.banking.persistence.dao.PersonRepository;
+import com.cambyze.banking.persistence.dao.StatementSnapshotRepository;
 import com.cambyze.banking.persistence.model.Account;
 import com.cambyze.banking.persistence.model.Constants;
 import com.cambyze.banking.persistence.model.Operation;
+import com.cambyze.banking.persistence.model.OperationPage;
+import com.cambyze.banking.persistence.model.PendingTransfer;
 import com.cambyze.banking.persistence.model.Person;
+import com.cambyze.banking.persistence.model.StatementSnapshot;
 
 /**
  * Services to expose for the business services
@@ -36,49 +75,168 @@ public class PersistenceServices {
   @Autowired
   private PersonAccountRepository personAcountRepository;
 
+  private MongoTemplate mongoTemplate;
+
+  private BankAccountCache bankAccountCache;
+
+  private OperationWriteBehind operationWriteBehind;
+
+  private StatementSnapshotRepository statementSnapshotRepository;
+
+  private BalanceCheckpointService balanceCheckpointService;
+
+  private MailBloomFilter mailBloomFilter;
+
+  // Only in the transactional mode, see TransactionConfiguration
+  @Autowired(required = false)
+  @Qualifier(TransactionConfiguration.TRANSACTION_TEMPLATE)
+  private TransactionTemplate transactionTemplate;
+
+  // Number of operations read by the DB cursor at each round trip of the exports
+  @Value("${cambyze.operation-export.batch-size:200}")
+  private int exportBatchSize = 200;
 
   @Autowired
   public PersistenceServices(BankAccountRepository bankAccountRepository,
       BankingOperationRepository bankingOperationRepository,
-      SequenceGeneratorService sequenceGeneratorService, PersonRepository personRepository) {
+      SequenceGeneratorService sequenceGeneratorService, PersonRepository personRepository,
+      MongoTemplate mongoTemplate, BankAccountCache bankAccountCache,
+      OperationWriteBehind operationWriteBehind,
+      StatementSnapshotRepository statementSnapshotRepository,
+      BalanceCheckpointService balanceCheckpointService, MailBloomFilter mailBloomFilter) {
     this.bankAccountRepository = bankAccountRepository;
     this.bankingOperationRepository = bankingOperationRepository;
     this.sequenceGeneratorService = sequenceGeneratorService;
     this.personRepository = personRepository;
+    this.mongoTemplate = mongoTemplate;
+    this.bankAccountCache = bankAccountCache;
+    this.operationWriteBehind = operationWriteBehind;
+    this.statementSnapshotRepository = statementSnapshotRepository;
+    this.balanceCheckpointService = balanceCheckpointService;
+    this.mailBloomFilter = mailBloomFilter;
   }
 
   /*
    * create a new Person
    * 
-   * @return userId
+   * @return userId, null if the mail is already in use
    */
   public String createNewPerson(String name, String firstName, String email) {
     LOGGER.debug("Create New Person with name: {}, firstName: {}, email: {}", name, firstName,
         email);
+    Person per = newPerson(name, firstName, email);
+    try {
+      mongoTemplate.insert(per);
+    } catch (DuplicateKeyException e) {
+      LOGGER.debug("The mail {} is already in use", email);
+      return null;
+    }
+    mailBloomFilter.put(email);
+    LOGGER.debug("New person created: {}", per);
+    return per.getPersonId();
+  }
+
+  /**
+   * Create a new person with an everyday bank account
+   * <p>
+   * The ids are taken from the blocks of the sequences and the person and the bank account are
+   * inserted without any read: the mail already in use is refused by the unique index on the mail.
+   * In the transactional mode, both inserts are done in one transaction, else the person is
+   * removed if the bank account can't be inserted.
+   * </p>
+   * 
+   * @return the id of the new person, null if the mail is already in use
+   */
+  public String createNewPersonWithBankAccount(String name, String firstName, String email) {
+    Person per = newPerson(name, firstName, email);
+    Account ba = newBankAccount(per.getPersonId(), Constants.ACCOUNT_TYPE_BANK);
+    try {
+      if (transactionTemplate != null) {
+        transactionTemplate.executeWithoutResult(status -> {
+          mongoTemplate.insert(per);
+          insertBankAccountOfNewPerson(per, ba);
+        });
+      } else {
+        mongoTemplate.insert(per);
+        insertBankAccountOfNewPerson(per, ba);
+      }
+    } catch (DuplicateKeyException e) {
+      LOGGER.debug("The mail {} is already in use", email);
+      return null;
+    }
+    mailBloomFilter.put(email);
+    bankAccountCache.put(ba);
+    LOGGER.debug("New person created: {} with the bank account: {}", per, ba);
+    return per.getPersonId();
+  }
+
+  /**
+   * Insert the bank account of a new person, the person is removed if the insert fails
+   */
+  private void insertBankAccountOfNewPerson(Person per, Account ba) {
+    try {
+      mongoTemplate.insert(ba);
+    } catch (RuntimeException e) {
+      LOGGER.error("Bank account not created for the new person {}: {}", per.getPersonId(),
+          e.getMessage());
+      // In the transactional mode, the person is removed by the rollback
+      if (transactionTemplate == null) {
+        mongoTemplate.remove(per);
+      }
+      if (e instanceof DuplicateKeyException) {
+        // Not reported as a mail already in use
+        throw new IllegalStateException("BAN already in use: " + ba.getBankAccountNumber(), e);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Build a new person with a new id
+   */
+  private Person newPerson(String name, String firstName, String email) {
     Person per = new Person();
     long seq = sequenceGeneratorService.getNextSequence("person");
-    String externalRef = String.format("CLI-%08d", seq);
-    per.setId(externalRef);
+    per.setId(String.format("CLI-%08d", seq));
     per.setName(name);
     per.setFirstName(firstName);
     per.setEmail(email);
-    personRepository.save(per);
-    LOGGER.debug("New person created: {}", per);
-    return per.getPersonId();
+    return per;
+  }
+
+  /**
+   * Build a new bank account with a new BAN
+   */
+  private Account newBankAccount(String personId, String accountType) {
+    Account ba = new Account(personId);
+    long seq = sequenceGeneratorService.getNextSequence("bank_account_number");
+    ba.setBankAccountNumber(String.format("CAMBYZEBANK-%08d", seq));
+    ba.setAccountType(accountType);
+    return ba;
   }
 
   /**
    * Find the persons by their mail
+   * <p>
+   * The mails surely unknown by the filter of the mails are not read in the DB
+   * </p>
    * 
    * @param mail
    * @return list of persons with the mail else an empty list
    */
   public List<Person> findPersonByMail(String mail) {
+    if (!mailBloomFilter.mightContain(mail)) {
+      LOGGER.debug("No Person for the mail: {} (filter)", mail);
+      return Collections.emptyList();
+    }
     List<Person> pers = personRepository.findByEmail(mail);
     if (pers != null && !pers.isEmpty()) {
       LOGGER.debug("Retrieve {} persons with the mail {}", pers.size(), mail);
       return pers;
     } else {
+      if (mailBloomFilter.isReady()) {
+        mailBloomFilter.recordFalsePositive();
+      }
       LOGGER.debug("No Person for the mail: {}", mail);
       return Collections.emptyList();
     }
@@ -91,7 +249,8 @@ public class PersistenceServices {
    * @return the person with this id else return null
    */
   public Person findPersonByid(String id) {
-    Person per = personRepository.findByPersonIdIgnoreCase(id);
+    String personId = Person.normalizeId(id);
+    Person per = personId != null ? personRepository.findById(personId).orElse(null) : null;
     if (per != null) {
       LOGGER.debug("Retrieve Person: {}", per);
       return per;
@@ -103,6 +262,8 @@ public class PersistenceServices {
 
   /**
    * generate a String who resume Account
+   * <p>
+   * The person is read in the DB: for the logs, use Account.toString() instead
    * 
    * @param ba
    * @return String to display personId, AccountNumber, AccountType, OverdraftAmount
@@ -119,6 +280,9 @@ public class PersistenceServices {
   /**
    * 
    * generate a String who resume the operations
+   * <p>
+   * The bank account and the person are read in the DB: for the logs, use Operation.toString()
+   * instead
    * 
    * @param op
    * @return String to display personId, banNumber, overdraftAmount
@@ -177,11 +341,9 @@ public class PersistenceServices {
     LOGGER.debug("[findBankAccountsByPerson] id: {} START", personId);
     Person lazyPer = findPersonByid(personId);
     if (lazyPer != null && lazyPer.getId() != null) {
-      Account ba = new Account(lazyPer.getId());
-      long seq = sequenceGeneratorService.getNextSequence("bank_account_number");
-      String externalRef = String.format("CAMBYZEBANK-%08d", seq);
-      ba.setBankAccountNumber(externalRef);
+      Account ba = newBankAccount(lazyPer.getId(), Constants.ACCOUNT_TYPE_BANK);
       bankAccountRepository.save(ba);
+      bankAccountCache.put(ba);
       return ba.getBankAccountNumber();
     } else {
       return "";
@@ -196,15 +358,22 @@ public class PersistenceServices {
    * <p>
    * It is a lazy mode service then the list of operations is empty
    * </p>
+   * <p>
+   * The bank account is read in the cache first
+   * </p>
    * 
    * @param ban Bank Account Number
    * @return the bank account as entity Account or null if not exists
    */
   public Account findBankAccountByBAN(String ban) {
     // Lazy mode
-    Account ba = bankAccountRepository.findByBankAccountNumberIgnoreCase(ban);
+    Account ba = bankAccountCache.get(ban);
+    if (ba == null && ban != null) {
+      ba = bankAccountRepository.findByBankAccountNumber(Account.normalizeBan(ban));
+      bankAccountCache.put(ba);
+    }
     if (ba != null) {
-      LOGGER.debug("Retrieve account: {}", accountToString(ba));
+      LOGGER.debug("Retrieve account: {}", ba);
       return ba;
     } else {
       LOGGER.debug("No account for the ban: {}", ban);
@@ -213,8 +382,54 @@ public class PersistenceServices {
 
   }
 
+  /**
+   * <p>
+   * Find bank accounts by their bank account numbers
+   * </p>
+   * <p>
+   * The bank accounts are read in the cache first then the missing ones with one request
+   * </p>
+   * 
+   * @param bans Bank Account Numbers
+   * @return the existing bank accounts by their BAN in upper case
+   */
+  public Map<String, Account> findBankAccountsByBAN(Collection<String> bans) {
+    Map<String, Account> accounts = new HashMap<>();
+    Set<String> missingBans = new HashSet<>();
+    for (String ban : bans) {
+      if (ban != null) {
+        String key = Account.normalizeBan(ban);
+        Account ba = bankAccountCache.get(key);
+        if (ba != null) {
+          accounts.put(key, ba);
+        } else {
+          missingBans.add(key);
+        }
+      }
+    }
+    if (!missingBans.isEmpty()) {
+      for (Account ba : mongoTemplate.find(
+          Query.query(Criteria.where("bankAccountNumber").in(missingBans)), Account.class)) {
+        bankAccountCache.put(ba);
+        accounts.put(ba.getBankAccountNumber(), ba);
+      }
+    }
+    LOGGER.debug("Retrieve {} accounts for {} BAN", accounts.size(), bans.size());
+    return accounts;
+  }
+
   /**
    * Create a new banking operation
+   * <p>
+   * The balance of the bank account is updated atomically in the DB, in a single round trip, and
+   * only if the savings limit (deposit) or the balance plus the overdraft (withdraw) allow it. The
+   * new balance is then set in the bank account sent as parameter.
+   * <p>
+   * In the transactional mode, the update of the balance and the insert of the operation are
+   * committed together, else the operation is inserted after the update of the balance, with the
+   * next group of inserts when the write-behind is enabled, and the update is cancelled if the
+   * insert fails. Only the transactional mode is safe against a stop of the process between both
+   * writes: the balance is then different from its operations until the reconciliation.
    * 
    * @param ba Bank Account of the operation to create
    * @param opDate Date of the operation
@@ -225,13 +440,536 @@ public class PersistenceServices {
    *         <ul>
    *         <li>Constants.INVALID_BANK_ACCOUNT</li>
    *         <li>Constants.INVALID_OPERATION_TYPE</li>
-   *         <li>Constants.INVALID_BANK_ACCOUNT</li>
+   *         <li>Constants.INVALID_AMOUNT</li>
    *         <li>Constants.INVALID_DATE</li>
+   *         <li>Constants.SAVINGS_LIMIT_REACHED</li>
+   *         <li>Constants.INSUFFICIENT_BALANCE</li>
+   *         <li>Constants.TECHNICAL_ERROR</li>
    *         <ul>
    */
   public String createNewBankingOperation(Account ba, LocalDate opDate, String opType,
       BigDecimal opAmount) {
-    Operation op;
+    return submitBankingOperation(ba, opDate, opType, opAmount).join();
+  }
+
+  /**
+   * Create a new banking operation without waiting for the insert of the operation
+   * <p>
+   * Same rules and results as createNewBankingOperation, the balance and its daily checkpoint are
+   * updated before the method returns. When the write-behind is enabled out of the transactional
+   * mode, the result is completed by the next group of inserts, so that the caller can wait for it
+   * without blocking the lane of the bank account. If the insert fails, the updates of the balance
+   * and of the checkpoint are cancelled and the result is Constants.TECHNICAL_ERROR. Otherwise the
+   * result is already completed.
+   * </p>
+   * 
+   * @param ba Bank Account of the operation to create
+   * @param opDate Date of the operation
+   * @param opType Type of operation, must be Constants.OPERATION_TYPE_DEPOSIT or
+   *        Constants.OPERATION_TYPE_WITHDRAW
+   * @param opAmount the amount of the operation
+   * @return the internal id of the operation or the error code, as createNewBankingOperation
+   */
+  public CompletableFuture<String> submitBankingOperation(Account ba, LocalDate opDate,
+      String opType, BigDecimal opAmount) {
+    String errorCode = checkOperation(ba, opDate, opType, opAmount);
+    if (errorCode != null) {
+      return CompletableFuture.completedFuture(errorCode);
+    }
+    Operation op = new Operation(ba.getAccountId(), opDate, opType, opAmount);
+    BigDecimal signedAmount =
+        Constants.OPERATION_TYPE_WITHDRAW.equals(opType) ? opAmount.negate() : opAmount;
+    boolean writeBehind = transactionTemplate == null && operationWriteBehind.isEnabled();
+    Account updatedBa;
+    try {
+      if (transactionTemplate != null) {
+        updatedBa = transactionTemplate.execute(status -> writeOperation(ba, signedAmount, op));
+      } else if (writeBehind) {
+        updatedBa = incrementBalance(ba, signedAmount);
+        if (updatedBa != null) {
+          balanceCheckpointService.record(ba.getAccountId(), opDate, signedAmount, 1);
+        }
+      } else {
+        updatedBa = writeOperation(ba, signedAmount, op);
+      }
+    } catch (DataAccessException | TransactionException e) {
+      bankAccountCache.invalidate(ba.getBankAccountNumber());
+      LOGGER.error("Operation not created, the writes failed for the BAN: {}: {}",
+          ba.getBankAccountNumber(), e.getMessage());
+      return CompletableFuture.completedFuture(Constants.TECHNICAL_ERROR);
+    }
+    if (updatedBa == null) {
+      // the cached bank account may be obsolete
+      bankAccountCache.invalidate(ba.getBankAccountNumber());
+      if (Constants.OPERATION_TYPE_DEPOSIT.equals(opType)) {
+        LOGGER.error("Operation not created because the savings limit is reached for the BAN: {}",
+            ba.getBankAccountNumber());
+        return CompletableFuture.completedFuture(Constants.SAVINGS_LIMIT_REACHED);
+      } else {
+        LOGGER.error("Operation not created because the balance is insufficient for the BAN: {}",
+            ba.getBankAccountNumber());
+        return CompletableFuture.completedFuture(Constants.INSUFFICIENT_BALANCE);
+      }
+    } // condition updatedBa
+    refreshBankAccount(ba, updatedBa);
+    LOGGER.debug("New situation of the bank account: {}", ba);
+
+    if (writeBehind) {
+      return operationWriteBehind.submit(op).handle((opId, failure) -> {
+        if (failure == null) {
+          return opId;
+        }
+        RuntimeException cause = failure instanceof RuntimeException runtimeException
+            ? runtimeException
+            : new IllegalStateException(failure);
+        LOGGER.error("Operation not inserted for the BAN: {}: {}", ba.getBankAccountNumber(),
+            cause.getMessage());
+        bankAccountCache.invalidate(ba.getBankAccountNumber());
+        revertIncrement(ba, signedAmount, cause);
+        try {
+          balanceCheckpointService.record(ba.getAccountId(), opDate, signedAmount.negate(), -1);
+        } catch (RuntimeException e) {
+          LOGGER.error("Checkpoint of the BAN {} not cancelled on {}", ba.getBankAccountNumber(),
+              opDate, e);
+        }
+        return Constants.TECHNICAL_ERROR;
+      });
+    }
+    if (op.getId() != null && !op.getId().isEmpty()) {
+      return CompletableFuture.completedFuture(op.getId());
+    } else {
+      return CompletableFuture.completedFuture(Constants.TECHNICAL_ERROR);
+    } // condition op.getID
+  }
+
+  /**
+   * Create a transfer between two bank accounts: a withdraw on the debited bank account and a
+   * deposit of the same amount on the credited bank account
+   * <p>
+   * The debited balance is updated with the rules of a withdraw, then the credited balance with
+   * the rules of a deposit, and both operations are inserted with one request. In the
+   * transactional mode, all the writes are done in one transaction, else the transfer is recorded
+   * as a PendingTransfer until its last write: the debit is cancelled when the credit is refused,
+   * all the writes are cancelled when one fails, and a transfer interrupted by a crash or whose
+   * cancellation fails is finished or cancelled by recoverTransfers. The caller must serialize the
+   * commands of both bank accounts, see BankingServices.createTransfer.
+   * </p>
+   * 
+   * @param fromBa the debited bank account, its balance is updated
+   * @param toBa the credited bank account, its balance is updated
+   * @param opDate date of both operations
+   * @param amount amount of the transfer
+   * @return the id of the withdraw else the error code as for createNewBankingOperation
+   */
+  public String createNewTransfer(Account fromBa, Account toBa, LocalDate opDate,
+      BigDecimal amount) {
+    String errorCode = checkOperation(fromBa, opDate, Constants.OPERATION_TYPE_WITHDRAW, amount);
+    if (errorCode == null) {
+      errorCode = checkOperation(toBa, opDate, Constants.OPERATION_TYPE_DEPOSIT, amount);
+    }
+    if (errorCode == null && fromBa.getAccountId().equals(toBa.getAccountId())) {
+      LOGGER.error("Transfer not created because both bank accounts are the same");
+      errorCode = Constants.INVALID_BANK_ACCOUNT;
+    }
+    if (errorCode != null) {
+      return errorCode;
+    }
+    Operation debit =
+        new Operation(fromBa.getAccountId(), opDate, Constants.OPERATION_TYPE_WITHDRAW, amount);
+    Operation credit =
+        new Operation(toBa.getAccountId(), opDate, Constants.OPERATION_TYPE_DEPOSIT, amount);
+    Account[] updatedBas;
+    try {
+      if (transactionTemplate != null) {
+        updatedBas = transactionTemplate.execute(status -> {
+          Account[] updated = writeTransfer(fromBa, toBa, debit, credit);
+          if (updated[1] == null) {
+            // The debit is cancelled by the rollback
+            status.setRollbackOnly();
+          }
+          return updated;
+        });
+      } else {
+        updatedBas = writePendingTransfer(fromBa, toBa, debit, credit);
+      }
+    } catch (DataAccessException | TransactionException e) {
+      bankAccountCache.invalidate(fromBa.getBankAccountNumber());
+      bankAccountCache.invalidate(toBa.getBankAccountNumber());
+      LOGGER.error("Transfer not created from the BAN: {} to the BAN: {}: {}",
+          fromBa.getBankAccountNumber(), toBa.getBankAccountNumber(), e.getMessage());
+      return Constants.TECHNICAL_ERROR;
+    }
+    if (updatedBas[0] == null) {
+      bankAccountCache.invalidate(fromBa.getBankAccountNumber());
+      LOGGER.error("Transfer not created because the balance is insufficient for the BAN: {}",
+          fromBa.getBankAccountNumber());
+      return Constants.INSUFFICIENT_BALANCE;
+    }
+    if (updatedBas[1] == null) {
+      bankAccountCache.invalidate(fromBa.getBankAccountNumber());
+      bankAccountCache.invalidate(toBa.getBankAccountNumber());
+      LOGGER.error("Transfer not created because the savings limit is reached for the BAN: {}",
+          toBa.getBankAccountNumber());
+      return Constants.SAVINGS_LIMIT_REACHED;
+    }
+    refreshBankAccount(fromBa, updatedBas[0]);
+    refreshBankAccount(toBa, updatedBas[1]);
+    LOGGER.debug("Transfer of {} from {} to {}", amount, fromBa, toBa);
+    return debit.getId();
+  }
+
+  /**
+   * Update both balances of a transfer then insert its operations if both updates are allowed, in
+   * a transaction
+   * 
+   * @return the updated debited and credited bank accounts, null when the update is refused and
+   *         the credited bank account is not updated when the debit is refused
+   */
+  private Account[] writeTransfer(Account fromBa, Account toBa, Operation debit,
+      Operation credit) {
+    BigDecimal amount = debit.getAmount();
+    Account debitedBa = incrementBalance(fromBa, amount.negate());
+    if (debitedBa == null) {
+      return new Account[] {null, null};
+    }
+    Account creditedBa = incrementBalance(toBa, amount);
+    if (creditedBa == null) {
+      return new Account[] {debitedBa, null};
+    }
+    bankingOperationRepository.saveAll(List.of(debit, credit));
+    balanceCheckpointService.record(fromBa.getAccountId(), debit.getOperationDate(),
+        amount.negate(), 1);
+    balanceCheckpointService.record(toBa.getAccountId(), credit.getOperationDate(), amount, 1);
+    return new Account[] {debitedBa, creditedBa};
+  }
+
+  /**
+   * Update both balances of a transfer then insert its operations if both updates are allowed, out
+   * of a transaction
+   * <p>
+   * The transfer is recorded before its first write and each balance update sets its id in the
+   * bank account. The debit is cancelled when the credit is refused and all the writes are
+   * cancelled when one fails. A cancellation which fails leaves the transfer to recoverTransfers.
+   * The operations are inserted and the transfer is cancelled only after the claim of the
+   * transfer: when the recovery has claimed it first, the writer follows its decision.
+   * </p>
+   * 
+   * @return the updated debited and credited bank accounts, null when the update is refused and
+   *         the credited bank account is not updated when the debit is refused
+   */
+  private Account[] writePendingTransfer(Account fromBa, Account toBa, Operation debit,
+      Operation credit) {
+    BigDecimal amount = debit.getAmount();
+    debit.setOperationId(new ObjectId().toHexString());
+    credit.setOperationId(new ObjectId().toHexString());
+    PendingTransfer transfer = new PendingTransfer(new ObjectId().toHexString(), fromBa, toBa,
+        debit.getId(), credit.getId(), debit.getOperationDate(), amount);
+    mongoTemplate.insert(transfer);
+    Account debitedBa;
+    Account creditedBa = null;
+    boolean committed = false;
+    try {
+      debitedBa = incrementBalance(fromBa, amount.negate(), transfer.getTransferId());
+      if (debitedBa != null) {
+        creditedBa = incrementBalance(toBa, amount, transfer.getTransferId());
+      }
+      committed =
+          creditedBa != null && claimTransfer(transfer, Constants.TRANSFER_COMMITTING);
+      if (committed) {
+        bankingOperationRepository.saveAll(List.of(debit, credit));
+      }
+    } catch (RuntimeException e) {
+      cancelPendingTransfer(transfer, e);
+      throw e;
+    }
+    if (creditedBa == null) {
+      cancelPendingTransfer(transfer, null);
+      return new Account[] {debitedBa, null};
+    }
+    if (!committed) {
+      // Claimed first by the recovery
+      if (followRecovery(transfer)) {
+        LOGGER.warn("Transfer {} finished by the recovery", transfer);
+        return new Account[] {debitedBa, creditedBa};
+      }
+      throw new OptimisticLockingFailureException(
+          "Transfer " + transfer.getTransferId() + " cancelled by the recovery");
+    }
+    try {
+      finishTransfer(transfer);
+    } catch (RuntimeException e) {
+      // The operations are written: the checkpoints are recorded by the recovery
+      LOGGER.error("Transfer {} written, finished by the recovery", transfer, e);
+    }
+    return new Account[] {debitedBa, creditedBa};
+  }
+
+  /**
+   * Cancel a transfer written out of a transaction, left to the recovery if the cancellation fails
+   * 
+   * @param transfer the transfer
+   * @param cause the failure of the write, null if the write has been refused
+   */
+  private void cancelPendingTransfer(PendingTransfer transfer, RuntimeException cause) {
+    try {
+      if (claimTransfer(transfer, Constants.TRANSFER_CANCELLING)) {
+        cancelTransfer(transfer);
+      } else {
+        followRecovery(transfer);
+      }
+    } catch (RuntimeException e) {
+      LOGGER.error("Transfer {} not cancelled, cancelled by the recovery", transfer, e);
+      if (cause != null) {
+        cause.addSuppressed(e);
+      } else {
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Change the status of a pending transfer, only if it is still the one read with the transfer
+   * <p>
+   * The writer and the recovery claim a transfer before they insert its operations or cancel it,
+   * so that only one of them decides how it ends.
+   * </p>
+   * 
+   * @param transfer the transfer, updated with its new status if it is claimed
+   * @param status the new status
+   * @return true if the transfer is claimed
+   */
+  private boolean claimTransfer(PendingTransfer transfer, String status) {
+    Instant claimedAt = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+    boolean claimed = mongoTemplate.updateFirst(
+        Query.query(Criteria.where("_id").is(transfer.getTransferId()).and("status")
+            .is(transfer.getStatus()).and("claimedAt").is(transfer.getClaimedAt())),
+        new Update().set("status", status).set("claimedAt", claimedAt), PendingTransfer.class)
+        .getModifiedCount() == 1;
+    if (claimed) {
+      transfer.setStatus(status);
+      transfer.setClaimedAt(claimedAt);
+    }
+    return claimed;
+  }
+
+  /**
+   * Decision of the recovery on a transfer claimed while it was written
+   * <p>
+   * When the recovery cancels it, the balance updates done by the writer after the cancellation
+   * are cancelled too. A balance is only updated if it still has the id of the transfer.
+   * </p>
+   * 
+   * @param transfer the transfer
+   * @return true if the recovery finishes the transfer
+   */
+  private boolean followRecovery(PendingTransfer transfer) {
+    PendingTransfer current =
+        mongoTemplate.findById(transfer.getTransferId(), PendingTransfer.class);
+    boolean finished = current != null
+        ? Constants.TRANSFER_FINISHING.equals(current.getStatus())
+        : mongoTemplate.exists(Query.query(Criteria.where("_id").is(transfer.getDebitId())),
+            Operation.class);
+    if (!finished) {
+      revertTransferIncrement(transfer.getToAccountId(), transfer.getAmount(),
+          transfer.getTransferId());
+      revertTransferIncrement(transfer.getFromAccountId(), transfer.getAmount().negate(),
+          transfer.getTransferId());
+    }
+    bankAccountCache.invalidate(transfer.getFromBan());
+    bankAccountCache.invalidate(transfer.getToBan());
+    return finished;
+  }
+
+  /**
+   * Remove the operations of a pending transfer and cancel its balance updates, then remove it
+   * <p>
+   * A balance is only updated if it has the id of the transfer, which is removed with the same
+   * update, so that the cancellation can be executed again.
+   * </p>
+   */
+  private void cancelTransfer(PendingTransfer transfer) {
+    String transferId = transfer.getTransferId();
+    mongoTemplate.remove(Query.query(
+        Criteria.where("_id").in(transfer.getDebitId(), transfer.getCreditId())),
+        Operation.class);
+    revertTransferIncrement(transfer.getToAccountId(), transfer.getAmount(), transferId);
+    revertTransferIncrement(transfer.getFromAccountId(), transfer.getAmount().negate(),
+        transferId);
+    mongoTemplate.remove(Query.query(Criteria.where("_id").is(transferId)),
+        PendingTransfer.class);
+    bankAccountCache.invalidate(transfer.getFromBan());
+    bankAccountCache.invalidate(transfer.getToBan());
+    LOGGER.debug("Transfer cancelled: {}", transfer);
+  }
+
+  private void revertTransferIncrement(String accountId, BigDecimal amount, String transferId) {
+    mongoTemplate.updateFirst(
+        Query.query(Criteria.where("_id").is(accountId).and("transferIds").is(transferId)),
+        BalanceUpdates.incrementUpdate(amount.negate()).pull("transferIds", transferId),
+        Account.class);
+  }
+
+  /**
+   * Record the operations of a pending transfer in the checkpoints, remove its id from the bank
+   * accounts then remove it
+   * <p>
+   * Each write is done once, so that it can be executed again.
+   * </p>
+   */
+  private void finishTransfer(PendingTransfer transfer) {
+    String transferId = transfer.getTransferId();
+    balanceCheckpointService.recordTransfer(transfer.getFromAccountId(),
+        transfer.getOperationDate(), transfer.getAmount().negate(), transferId);
+    balanceCheckpointService.recordTransfer(transfer.getToAccountId(),
+        transfer.getOperationDate(), transfer.getAmount(), transferId);
+    mongoTemplate.updateMulti(
+        Query.query(Criteria.where("_id").in(transfer.getFromAccountId(), transfer.getToAccountId())
+            .and("transferIds").is(transferId)),
+        new Update().pull("transferIds", transferId), Account.class);
+    mongoTemplate.remove(Query.query(Criteria.where("_id").is(transferId)),
+        PendingTransfer.class);
+  }
+
+  /**
+   * Finish or cancel the transfers written out of a transaction and interrupted by a crash or by
+   * a failed cancellation
+   * <p>
+   * A transfer whose operations are being inserted, or whose both balances are updated, is
+   * finished: its missing operations are inserted. Else it is cancelled. The transfer is claimed
+   * with this decision before any write, so that its writer or another recovery can't end it
+   * differently, and a claim older than the delay is resumed with the same decision. The delay
+   * must be longer than the slowest transfer, so that a transfer still being written is rarely
+   * recovered.
+   * </p>
+   * 
+   * @param delay the age of the pending transfers to recover
+   * @return the number of recovered transfers
+   */
+  public int recoverTransfers(Duration delay) {
+    Instant cutoff = Instant.now().minus(delay);
+    Query stale = Query.query(new Criteria().orOperator(Criteria.where("claimedAt").lt(cutoff),
+        Criteria.where("claimedAt").is(null).and("createdAt").lt(cutoff)));
+    int recovered = 0;
+    for (PendingTransfer transfer : mongoTemplate.find(stale, PendingTransfer.class)) {
+      try {
+        if (!claimTransfer(transfer, recoveryDecision(transfer))) {
+          // Claimed by its writer or by another recovery
+          continue;
+        }
+        if (Constants.TRANSFER_FINISHING.equals(transfer.getStatus())) {
+          bankingOperationRepository.saveAll(List.of(transfer.debit(), transfer.credit()));
+          finishTransfer(transfer);
+          bankAccountCache.invalidate(transfer.getFromBan());
+          bankAccountCache.invalidate(transfer.getToBan());
+          LOGGER.warn("Interrupted transfer finished: {}", transfer);
+        } else {
+          cancelTransfer(transfer);
+          LOGGER.warn("Interrupted transfer cancelled: {}", transfer);
+        }
+        recovered++;
+      } catch (RuntimeException e) {
+        LOGGER.error("Transfer {} not recovered", transfer, e);
+      }
+    }
+    return recovered;
+  }
+
+  /**
+   * Status to claim to recover a pending transfer: finished or cancelled
+   */
+  private String recoveryDecision(PendingTransfer transfer) {
+    if (Constants.TRANSFER_COMMITTING.equals(transfer.getStatus())
+        || Constants.TRANSFER_FINISHING.equals(transfer.getStatus())) {
+      return Constants.TRANSFER_FINISHING;
+    }
+    if (Constants.TRANSFER_CANCELLING.equals(transfer.getStatus())) {
+      return Constants.TRANSFER_CANCELLING;
+    }
+    long operations = mongoTemplate.count(Query.query(
+        Criteria.where("_id").in(transfer.getDebitId(), transfer.getCreditId())),
+        Operation.class);
+    long updatedBalances = mongoTemplate.count(Query.query(Criteria.where("_id")
+        .in(transfer.getFromAccountId(), transfer.getToAccountId()).and("transferIds")
+        .is(transfer.getTransferId())), Account.class);
+    return operations == 2 || updatedBalances == 2 ? Constants.TRANSFER_FINISHING
+        : Constants.TRANSFER_CANCELLING;
+  }
+
+  /**
+   * Cancel the increment of a balance whose operation is not written, out of a transaction
+   * <p>
+   * Without the rules of the account: the balance allowed the increment. In a transaction, the
+   * increment is cancelled by the rollback.
+   * </p>
+   * 
+   * @param ba the bank account
+   * @param amount the signed amount added to the balance
+   * @param cause the failure of the write, null if the write has been refused
+   */
+  private void revertIncrement(Account ba, BigDecimal amount, RuntimeException cause) {
+    try {
+      mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(ba.getAccountId())),
+          BalanceUpdates.incrementUpdate(amount.negate()), Account.class);
+    } catch (RuntimeException e) {
+      // Found by the reconciliation of the balances
+      LOGGER.error("Increment of {} not cancelled on the BAN {}: the balance is different from"
+          + " its operations", amount, ba.getBankAccountNumber(), e);
+      if (cause != null) {
+        cause.addSuppressed(e);
+      } else {
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Copy the updated balance in the bank account of the caller and in the cache
+   */
+  private void refreshBankAccount(Account ba, Account updatedBa) {
+    ba.setBalanceAmount(updatedBa.getBalanceAmount());
+    ba.setOverdraftAmount(updatedBa.getOverdraftAmount());
+    ba.setVersion(updatedBa.getVersion());
+    bankAccountCache.put(ba);
+  }
+
+  /**
+   * Update the balance of a bank account then insert the operation if the update is allowed
+   * <p>
+   * Out of a transaction, the update of the balance is cancelled if the insert fails. The daily
+   * checkpoint of the balance is updated after the insert
+   * 
+   * @param ba the bank account of the operation
+   * @param amount the signed amount to add to the balance
+   * @param op the operation to insert
+   * @return the updated bank account or null if the rules of the account forbid the update
+   */
+  private Account writeOperation(Account ba, BigDecimal amount, Operation op) {
+    Account updatedBa = incrementBalance(ba, amount);
+    if (updatedBa != null) {
+      try {
+        bankingOperationRepository.save(op);
+      } catch (RuntimeException e) {
+        if (transactionTemplate == null) {
+          revertIncrement(ba, amount, e);
+        }
+        throw e;
+      }
+      balanceCheckpointService.record(ba.getAccountId(), op.getOperationDate(), amount, 1);
+    }
+    return updatedBa;
+  }
+
+  /**
+   * Check the data of a new banking operation
+   * 
+   * @param ba Bank Account of the operation to create
+   * @param opDate Date of the operation
+   * @param opType Type of operation
+   * @param opAmount Amount of the operation
+   * @return null if the operation is valid else the error code
+   */
+  private String checkOperation(Account ba, LocalDate opDate, String opType,
+      BigDecimal opAmount) {
     if (ba == null || ba.getAccountId() == null || ba.getBankAccountNumber() == null
         || !ba.getBankAccountNumber().startsWith("CAMBYZEBANK")) {
       LOGGER.error("Operation not created because the bank account is invalid");
@@ -239,40 +977,305 @@ public class PersistenceServices {
       return Constants.INVALID_BANK_ACCOUNT;
     } // condition bank account
 
-    if (opDate == null || opDate.isBefore(Constants.MIN_OPERATION_DATE)
-        || opDate.isAfter(Constants.MAX_OPERATION_DATE)) {
-      LOGGER.error("Operation not created because the date is invalid: {}", opDate);
-      return Constants.INVALID_DATE;
-    } // condition opDate
+    return OperationChecks.check(opDate, opType, opAmount);
+  }
 
+  /**
+   * Create a batch of banking operations on several bank accounts
+   * <p>
+   * Each operation is checked with the same rules as createNewBankingOperation, in the order of the
+   * list, against the balance of its bank account read in the DB. Then the balance of each bank
+   * account is updated atomically with the sum of its accepted operations, only if the balance in
+   * the DB still allows each of them in their order, and all the accepted operations are inserted
+   * with one unordered bulk write. The amounts of the operations not inserted are removed from the
+   * balances, these operations are answered with a technical error. In the transactional mode, all
+   * the writes are done in one transaction: when one fails, none of the operations is created. The
+   * caller must serialize the commands of the bank accounts, see BankingServices.createOperations.
+   * 
+   * @param accounts the bank accounts of the operations by their id
+   * @param ops the operations to create, with the id of their bank account, at most
+   *        Constants.MAX_BATCH_SIZE
+   * @return for each operation, at the same index, its internal id or the error code as for
+   *         createNewBankingOperation
+   */
+  public List<String> createNewBankingOperations(Map<String, Account> accounts,
+      List<Operation> ops) {
+    if (ops.size() > Constants.MAX_BATCH_SIZE) {
+      throw new IllegalArgumentException("Batch of " + ops.size() + " operations, more than "
+          + Constants.MAX_BATCH_SIZE);
+    }
+    String[] results = new String[ops.size()];
+    if (transactionTemplate == null) {
+      writeBankingOperations(accounts, ops, results, false);
+      return Arrays.asList(results);
+    }
+    try {
+      transactionTemplate.executeWithoutResult(
+          status -> writeBankingOperations(accounts, ops, results, true));
+    } catch (DataAccessException | TransactionException e) {
+      LOGGER.error("Batch of {} operations not created, the transaction failed: {}", ops.size(),
+          e.getMessage());
+      accounts.values().forEach(ba -> bankAccountCache.invalidate(ba.getBankAccountNumber()));
+      for (int i = 0; i < results.length; i++) {
+        if (results[i] == null || !results[i].startsWith("-")) {
+          results[i] = Constants.TECHNICAL_ERROR;
+        }
+      }
+    }
+    return Arrays.asList(results);
+  }
 
-    if (!Constants.OPERATION_TYPE_DEPOSIT.equals(opType)
-        && !Constants.OPERATION_TYPE_WITHDRAW.equals(opType)) {
-      LOGGER.error("Operation not created because the operation type is wrong: {}", opType);
-      return Constants.INVALID_OPERATION_TYPE;
-    } // condition opType
+  /**
+   * Checks and writes of a batch of banking operations, see createNewBankingOperations
+   * <p>
+   * In a transaction, a failed insert is thrown so that the transaction is rolled back, instead
+   * of the removal of its amount from the balance.
+   * </p>
+   */
+  private void writeBankingOperations(Map<String, Account> accounts, List<Operation> ops,
+      String[] results, boolean inTransaction) {
+    // Indexes of the accepted operations by bank account, signed sum of these operations and its
+    // lowest and highest values in the order of the list
+    Map<String, List<Integer>> acceptedByAccount = new LinkedHashMap<>();
+    Map<String, BigDecimal> balances = new HashMap<>();
+    Map<String, BigDecimal> variations = new HashMap<>();
+    Map<String, BigDecimal> lowest = new HashMap<>();
+    Map<String, BigDecimal> highest = new HashMap<>();
+    refreshBalances(accounts.values());
 
-    if (opAmount != null && opAmount.longValue() > 0.0) {
-      op = new Operation(ba.getAccountId(), opDate, opType, opAmount);
-    } else {
-      LOGGER.error("Operation not created because the amount is invalid");
-      return Constants.INVALID_AMOUNT;
-    } // condition opAmount
-    if (Constants.OPERATION_TYPE_DEPOSIT.equals(opType)) {
-      ba.setBalanceAmount(ba.getBalanceAmount().add(opAmount));
-    } else {
-      opAmount = opAmount.negate();
-      ba.setBalanceAmount(ba.getBalanceAmount().add(opAmount));
+    for (int i = 0; i < ops.size(); i++) {
+      Operation op = ops.get(i);
+      Account ba = op.getAccountId() != null ? accounts.get(op.getAccountId()) : null;
+      results[i] =
+          checkOperation(ba, op.getOperationDate(), op.getOperationType(), op.getAmount());
+      if (results[i] == null) {
+        BigDecimal signedAmount = Constants.OPERATION_TYPE_DEPOSIT.equals(op.getOperationType())
+            ? op.getAmount()
+            : op.getAmount().negate();
+        BigDecimal newBalance =
+            balances.getOrDefault(ba.getAccountId(), ba.getBalanceAmount()).add(signedAmount);
+        results[i] = checkBalance(ba, signedAmount, newBalance);
+        if (results[i] == null) {
+          balances.put(ba.getAccountId(), newBalance);
+          BigDecimal variation =
+              variations.merge(ba.getAccountId(), signedAmount, BigDecimal::add);
+          lowest.merge(ba.getAccountId(), variation.min(BigDecimal.ZERO), BigDecimal::min);
+          highest.merge(ba.getAccountId(), variation.max(BigDecimal.ZERO), BigDecimal::max);
+          acceptedByAccount.computeIfAbsent(ba.getAccountId(), k -> new ArrayList<>()).add(i);
+        }
+      }
     }
-    bankingOperationRepository.save(op);
-    bankAccountRepository.save(ba);
 
-    LOGGER.debug("New situation of the bank account: {}", accountToString(ba));
-    if (op.getId() != null && !op.getId().isEmpty()) {
-      return op.getId();
-    } else {
-      return Constants.TECHNICAL_ERROR;
-    } // condition op.getID
+    // One atomic update of the balance by bank account
+    List<Operation> toInsert = new ArrayList<>();
+    List<Integer> insertedIndexes = new ArrayList<>();
+    for (Map.Entry<String, List<Integer>> entry : acceptedByAccount.entrySet()) {
+      Account ba = accounts.get(entry.getKey());
+      BigDecimal variation = variations.get(entry.getKey());
+      Account updatedBa = mongoTemplate.findAndModify(
+          BalanceUpdates.sequenceQuery(ba, lowest.get(entry.getKey()),
+              highest.get(entry.getKey())),
+          BalanceUpdates.incrementUpdate(variation),
+          FindAndModifyOptions.options().returnNew(true), Account.class);
+      if (updatedBa == null) {
+        // the balance has been modified since it has been read
+        bankAccountCache.invalidate(ba.getBankAccountNumber());
+        String errorCode = lowest.get(entry.getKey()).signum() < 0
+            ? Constants.INSUFFICIENT_BALANCE
+            : Constants.SAVINGS_LIMIT_REACHED;
+        LOGGER.error("Operations not created for the BAN: {}, error: {}",
+            ba.getBankAccountNumber(), errorCode);
+        entry.getValue().forEach(i -> results[i] = errorCode);
+      } else {
+        ba.setBalanceAmount(updatedBa.getBalanceAmount());
+        ba.setVersion(updatedBa.getVersion());
+        bankAccountCache.put(ba);
+        for (Integer i : entry.getValue()) {
+          Operation op = ops.get(i);
+          op.setOperationId(new ObjectId().toHexString());
+          toInsert.add(op);
+          insertedIndexes.add(i);
+        }
+      }
+    }
+
+    // One bulk write for all the operations
+    if (!toInsert.isEmpty()) {
+      for (Integer i : insertedIndexes) {
+        results[i] = ops.get(i).getId();
+      }
+      try {
+        mongoTemplate.bulkOps(BulkMode.UNORDERED, Operation.class).insert(toInsert).execute();
+      } catch (BulkOperationException e) {
+        if (inTransaction) {
+          throw e;
+        }
+        List<Integer> failedIndexes = new ArrayList<>();
+        for (BulkWriteError error : e.getErrors()) {
+          int i = insertedIndexes.get(error.getIndex());
+          LOGGER.error("Operation not inserted: {} / {}", ops.get(i), error.getMessage());
+          failedIndexes.add(i);
+        }
+        revertOperations(accounts, ops, failedIndexes, results, e);
+      } catch (RuntimeException e) {
+        if (inTransaction) {
+          throw e;
+        }
+        LOGGER.error("Bulk write of a batch of {} operations interrupted", toInsert.size(), e);
+        revertOperations(accounts, ops, findMissingOperations(ops, insertedIndexes), results, e);
+      }
+      recordCheckpoints(ops, insertedIndexes, results);
+    }
+    LOGGER.debug("Batch of {} operations, {} created", ops.size(), toInsert.size());
+  }
+
+  /**
+   * Read the balances of bank accounts in the DB, the cached ones may be outdated by the other
+   * instances
+   */
+  private void refreshBalances(Collection<Account> accounts) {
+    Map<String, Account> accountsById = new HashMap<>();
+    accounts.forEach(ba -> accountsById.put(ba.getAccountId(), ba));
+    Query query = Query.query(Criteria.where("_id").in(accountsById.keySet()));
+    query.fields().include("_id", "balanceAmount", "overdraftAmount", "version");
+    for (Account dbBa : mongoTemplate.find(query, Account.class)) {
+      Account ba = accountsById.get(dbBa.getAccountId());
+      ba.setBalanceAmount(dbBa.getBalanceAmount());
+      ba.setOverdraftAmount(dbBa.getOverdraftAmount());
+      ba.setVersion(dbBa.getVersion());
+      bankAccountCache.put(ba);
+    }
+  }
+
+  /**
+   * Indexes of the operations of a batch absent from the DB after an interrupted bulk write, all
+   * the operations if they can not be read
+   */
+  private List<Integer> findMissingOperations(List<Operation> ops,
+      List<Integer> insertedIndexes) {
+    List<String> ids = insertedIndexes.stream().map(i -> ops.get(i).getId()).toList();
+    Set<String> found = new HashSet<>();
+    try {
+      Query query = Query.query(Criteria.where("_id").in(ids));
+      query.fields().include("_id");
+      mongoTemplate.find(query, Operation.class).forEach(op -> found.add(op.getId()));
+    } catch (RuntimeException e) {
+      LOGGER.error("Operations of the interrupted bulk write not read", e);
+    }
+    return insertedIndexes.stream().filter(i -> !found.contains(ops.get(i).getId())).toList();
+  }
+
+  /**
+   * Remove from the balances the amounts of the operations of a batch which are not inserted, with
+   * one update by bank account, and answer these operations with a technical error
+   */
+  private void revertOperations(Map<String, Account> accounts, List<Operation> ops,
+      List<Integer> failedIndexes, String[] results, RuntimeException cause) {
+    Map<String, BigDecimal> amounts = new LinkedHashMap<>();
+    for (Integer i : failedIndexes) {
+      Operation op = ops.get(i);
+      BigDecimal signedAmount = Constants.OPERATION_TYPE_DEPOSIT.equals(op.getOperationType())
+          ? op.getAmount()
+          : op.getAmount().negate();
+      amounts.merge(op.getAccountId(), signedAmount, BigDecimal::add);
+      results[i] = Constants.TECHNICAL_ERROR;
+    }
+    for (Map.Entry<String, BigDecimal> entry : amounts.entrySet()) {
+      Account ba = accounts.get(entry.getKey());
+      bankAccountCache.invalidate(ba.getBankAccountNumber());
+      revertIncrement(ba, entry.getValue(), cause);
+    }
+  }
+
+  /**
+   * Update the daily checkpoints of the balance with the inserted operations of a batch, with one
+   * update by bank account and day
+   */
+  private void recordCheckpoints(List<Operation> ops, List<Integer> insertedIndexes,
+      String[] results) {
+    Map<String, Map<LocalDate, BigDecimal>> amounts = new LinkedHashMap<>();
+    Map<String, Map<LocalDate, Integer>> counts = new HashMap<>();
+    for (Integer i : insertedIndexes) {
+      Operation op = ops.get(i);
+      if (!Constants.TECHNICAL_ERROR.equals(results[i])) {
+        BigDecimal signedAmount = Constants.OPERATION_TYPE_DEPOSIT.equals(op.getOperationType())
+            ? op.getAmount()
+            : op.getAmount().negate();
+        amounts.computeIfAbsent(op.getAccountId(), k -> new LinkedHashMap<>())
+            .merge(op.getOperationDate(), signedAmount, BigDecimal::add);
+        counts.computeIfAbsent(op.getAccountId(), k -> new HashMap<>())
+            .merge(op.getOperationDate(), 1, Integer::sum);
+      }
+    }
+    amounts.forEach((accountId, days) -> days.forEach((date, amount) -> balanceCheckpointService
+        .record(accountId, date, amount, counts.get(accountId).get(date))));
+  }
+
+  /**
+   * Balance of a bank account at the end of a day, read in the daily checkpoints
+   * <p>
+   * Without checkpoint until this day, the balance is the sum of the operations until this day
+   * computed by the DB
+   * </p>
+   * 
+   * @param ba the bank account
+   * @param date the day
+   * @return the balance at the end of the day
+   */
+  public BigDecimal findBalanceAt(Account ba, LocalDate date) {
+    BigDecimal balance = balanceCheckpointService.findClosingBalance(ba.getAccountId(), date);
+    if (balance == null) {
+      balance = balanceCheckpointService.sumOperations(ba.getAccountId(), date);
+    }
+    LOGGER.debug("Balance of the BAN {} at {}: {}", ba.getBankAccountNumber(), date, balance);
+    return balance;
+  }
+
+  /**
+   * Check the new balance of a bank account after an operation
+   * 
+   * @param ba the bank account
+   * @param signedAmount amount of the operation, negative for a withdraw
+   * @param newBalance the balance after the operation
+   * @return null if the rules of the bank account are respected else the error code
+   */
+  private String checkBalance(Account ba, BigDecimal signedAmount, BigDecimal newBalance) {
+    if (signedAmount.signum() > 0 && Constants.ACCOUNT_TYPE_SAVINGS.equals(ba.getAccountType())
+        && newBalance.compareTo(BigDecimal.valueOf(Constants.SAVINGS_ACCOUNT_LIMIT)) > 0) {
+      return Constants.SAVINGS_LIMIT_REACHED;
+    }
+    if (signedAmount.signum() < 0 && newBalance.add(ba.getOverdraftAmount()).signum() < 0) {
+      return Constants.INSUFFICIENT_BALANCE;
+    }
+    return null;
+  }
+
+  /**
+   * Add atomically an amount to the balance of a bank account with a findAndModify
+   * <p>
+   * The update is conditioned by the rules of the account: a positive amount on a savings account
+   * must not exceed Constants.SAVINGS_ACCOUNT_LIMIT and a negative amount must be covered by the
+   * balance plus the overdraft amount. The version of the account is incremented so that a
+   * concurrent update based on the previous version fails
+   * 
+   * @param ba the bank account to update
+   * @param amount the signed amount to add to the balance
+   * @return the updated bank account or null if the rules of the account forbid the update
+   */
+  private Account incrementBalance(Account ba, BigDecimal amount) {
+    return mongoTemplate.findAndModify(BalanceUpdates.incrementQuery(ba, amount),
+        BalanceUpdates.incrementUpdate(amount), FindAndModifyOptions.options().returnNew(true),
+        Account.class);
+  }
+
+  /**
+   * Update the balance of a bank account for a transfer written out of a transaction, with the id
+   * of the transfer
+   */
+  private Account incrementBalance(Account ba, BigDecimal amount, String transferId) {
+    return mongoTemplate.findAndModify(BalanceUpdates.incrementQuery(ba, amount),
+        BalanceUpdates.incrementUpdate(amount).addToSet("transferIds", transferId),
+        FindAndModifyOptions.options().returnNew(true), Account.class);
   }
 
   /**
@@ -303,20 +1306,261 @@ public class PersistenceServices {
     return Collections.emptyList();
   }
 
+  /**
+   * 
+   * Returns the operations of a bank account between two dates, sorted by the DB with the most
+   * recent first
+   * 
+   * @param ban the Bank Account Number
+   * @param fromDate first date of the operations (included), Constants.MIN_OPERATION_DATE if null
+   * @param toDate last date of the operations (included), Constants.MAX_OPERATION_DATE if null
+   * @return the list of operations else an empty list
+   */
+  public List<Operation> findBankingOperationsOfBankAccount(String ban, LocalDate fromDate,
+      LocalDate toDate) {
+    // Lazy mode
+    Account lazyBa = findBankAccountByBAN(ban);
+    if (lazyBa != null && lazyBa.getAccountId() != null) {
+      List<Operation> operations = bankingOperationRepository.findByAccountIdAndOperationDateRange(
+          lazyBa.getAccountId(), fromDate != null ? fromDate : Constants.MIN_OPERATION_DATE,
+          toDate != null ? toDate : Constants.MAX_OPERATION_DATE);
+      if (operations != null && !operations.isEmpty()) {
+        LOGGER.debug(
+            "[findBankingOperationsOfBankAccount] Nb of operations of {} between {} and {} = {}",
+            ban, fromDate, toDate, operations.size());
+        return operations;
+      }
+    }
+    LOGGER.debug("[findBankingOperationsOfBankAccount] No operations for the account {}", ban);
+    return Collections.emptyList();
+  }
+
+  /**
+   * Reads all the operations of a bank account, the most recent first, with a DB cursor
+   * <p>
+   * The operations are read by batches of cambyze.operation-export.batch-size and given one by one
+   * to the action: they are never all in memory, whatever their number
+   * </p>
+   * 
+   * @param ba the bank account
+   * @param action the action executed on each operation
+   * @return the number of operations read
+   */
+  public long forEachBankingOperation(Account ba, Consumer<Operation> action) {
+    Query query = Query.query(Criteria.where("accountId").is(ba.getAccountId()))
+        .with(Sort.by(Sort.Direction.DESC, "operationDate", "_id"))
+        .cursorBatchSize(exportBatchSize);
+    long count = 0;
+    try (Stream<Operation> operations = mongoTemplate.stream(query, Operation.class)) {
+      Iterator<Operation> it = operations.iterator();
+      while (it.hasNext()) {
+        action.accept(it.next());
+        count++;
+      }
+    }
+    LOGGER.debug("[forEachBankingOperation] Nb of operations read for the account {} = {}",
+        ba.getBankAccountNumber(), count);
+    return count;
+  }
+
+  /**
+   * 
+   * Returns a page of the operations of a bank account, the most recent first
+   * <p>
+   * The pagination uses the date and the id of the last operation read (keyset pagination) then
+   * each page is read with the index on the account and the date, whatever its position.
+   * 
+   * @param ban the Bank Account Number
+   * @param afterDate date of the last operation of the previous page, null for the first page
+   * @param afterId id of the last operation of the previous page, null for the first page
+   * @param size maximum number of operations of the page, at most Constants.MAX_PAGE_SIZE
+   * @return the page of operations, empty if the bank account does not exist
+   */
+  public OperationPage findBankingOperationsPage(String ban, LocalDate afterDate, String afterId,
+      int size) {
+    Account lazyBa = findBankAccountByBAN(ban);
+    if (lazyBa == null || lazyBa.getAccountId() == null || size <= 0) {
+      LOGGER.debug("[findBankingOperationsPage] No operations for the account {}", ban);
+      return new OperationPage(Collections.emptyList(), null, null);
+    }
+    int pageSize = Math.min(size, Constants.MAX_PAGE_SIZE);
+    Criteria criteria = Criteria.where("accountId").is(lazyBa.getAccountId());
+    if (afterDate != null && afterId != null) {
+      criteria = criteria.orOperator(Criteria.where("operationDate").lt(afterDate),
+          Criteria.where("operationDate").is(afterDate).and("_id").lt(afterId));
+    }
+    // One more operation is read to know if there is a next page
+    Query query = Query.query(criteria)
+        .with(Sort.by(Sort.Direction.DESC, "operationDate", "_id")).limit(pageSize + 1);
+    List<Operation> operations = new ArrayList<>(mongoTemplate.find(query, Operation.class));
+    if (operations.size() > pageSize) {
+      operations.remove(pageSize);
+      Operation last = operations.get(pageSize - 1);
+      return new OperationPage(operations, last.getOperationDate(), last.getId());
+    }
+    return new OperationPage(operations, null, null);
+  }
+
   /**
    * 
    * Create a new Overdraft
+   * <p>
+   * The bank account is updated only if it has not been modified since it has been read, i.e. if
+   * its version in the DB is still the version of ba
    * 
    * @param ba
    * @param overDraftAmount
+   * @throws OptimisticLockingFailureException if the bank account has been modified since it has
+   *         been read
    */
   public void createOverdraft(Account ba, BigDecimal overDraftAmount) {
-    ba.setOverdraftAmount(overDraftAmount);
-    bankAccountRepository.save(ba);
+    Account updatedBa = mongoTemplate.findAndModify(BalanceUpdates.versionQuery(ba),
+        BalanceUpdates.overdraftUpdate(overDraftAmount),
+        FindAndModifyOptions.options().returnNew(true), Account.class);
+    if (updatedBa == null) {
+      bankAccountCache.invalidate(ba.getBankAccountNumber());
+      throw new OptimisticLockingFailureException("The bank account " + ba.getBankAccountNumber()
+          + " has been modified since its version " + ba.getVersion());
+    }
+    ba.setOverdraftAmount(updatedBa.getOverdraftAmount());
+    ba.setBalanceAmount(updatedBa.getBalanceAmount());
+    ba.setVersion(updatedBa.getVersion());
+    bankAccountCache.put(ba);
     LOGGER.debug("New overdraft amount : {} for the BAN: {}", ba.getOverdraftAmount(),
         ba.getBankAccountNumber());
   }
 
+  /**
+   * Reads all the bank accounts with a DB cursor, without loading them all in memory
+   * 
+   * @param action the action executed on each bank account
+   * @return the number of bank accounts read
+   */
+  public long forEachBankAccount(Consumer<Account> action) {
+    Query query = new Query().cursorBatchSize(exportBatchSize);
+    long count = 0;
+    try (Stream<Account> accounts = mongoTemplate.stream(query, Account.class)) {
+      Iterator<Account> it = accounts.iterator();
+      while (it.hasNext()) {
+        action.accept(it.next());
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Find the stored bank statement of a bank account for a closed month
+   * 
+   * @param ban the Bank Account Number
+   * @param period the month of the statement
+   * @return the statement or null if it has not been built
+   */
+  public StatementSnapshot findStatementSnapshot(String ban, YearMonth period) {
+    return statementSnapshotRepository.findById(StatementSnapshot.idOf(ban, period)).orElse(null);
+  }
+
+  /**
+   * Find the stored bank statement of a bank account for a closed month, rebuilt if operations
+   * have been dated in the month or before it since it was built
+   * <p>
+   * The operations dated in a closed month, e.g. the interests of its last day credited after the
+   * statements of the month or the operations created with a past date, are detected by the number
+   * of operations until the end of the month.
+   * </p>
+   * 
+   * @param ba the bank account
+   * @param period the month of the statement
+   * @return the statement or null if it has not been built
+   */
+  public StatementSnapshot findCurrentStatementSnapshot(Account ba, YearMonth period) {
+    StatementSnapshot snapshot = findStatementSnapshot(ba.getBankAccountNumber(), period);
+    if (snapshot != null && snapshot.getOperationCount() != mongoTemplate.count(
+        Query.query(Criteria.where("accountId").is(ba.getAccountId()).and("operationDate")
+            .lte(period.atEndOfMonth())),
+        Operation.class)) {
+      LOGGER.info("Statement rebuilt after new operations in its month: {}", snapshot);
+      snapshot = createStatementSnapshot(ba, period);
+    }
+    return snapshot;
+  }
+
+  /**
+   * First month with a bank statement for a bank account
+   * <p>
+   * It is the month of the creation of the bank account, read in its id, or the month of its first
+   * operation if an operation is dated before
+   * </p>
+   * 
+   * @param ba the bank account
+   * @return the first month of the statements
+   */
+  public YearMonth findFirstStatementPeriod(Account ba) {
+    YearMonth first = YearMonth.now();
+    if (ObjectId.isValid(ba.getAccountId())) {
+      first = YearMonth.from(LocalDate.ofInstant(
+          new ObjectId(ba.getAccountId()).getDate().toInstant(), ZoneId.systemDefault()));
+    }
+    Query firstOperation = Query.query(Criteria.where("accountId").is(ba.getAccountId()))
+        .with(Sort.by(Sort.Direction.ASC, "operationDate")).limit(1);
+    Operation op = mongoTemplate.findOne(firstOperation, Operation.class);
+    if (op != null && op.getOperationDate() != null) {
+      YearMonth opPeriod = YearMonth.from(op.getOperationDate());
+      if (opPeriod.isBefore(first)) {
+        first = opPeriod;
+      }
+    }
+    return first;
+  }
+
+  /**
+   * Build and store the bank statement of a bank account for a closed month
+   * 
+   * @param ba the bank account
+   * @param period the month of the statement, before the current month
+   * @return the stored statement
+   * @see #buildStatementSnapshot(Account, YearMonth)
+   */
+  public StatementSnapshot createStatementSnapshot(Account ba, YearMonth period) {
+    StatementSnapshot snapshot = buildStatementSnapshot(ba, period);
+    statementSnapshotRepository.save(snapshot);
+    LOGGER.debug("New statement: {}", snapshot);
+    return snapshot;
+  }
+
+  /**
+   * Build the bank statement of a bank account for a closed month without storing it
+   * <p>
+   * The balance at the end of the month is the sum of the operations until the end of the month,
+   * computed by the DB with their number, so that it does not depend on the writes in progress. The
+   * overdraft amount is the one of the bank account when the statement is built, the changes of the
+   * overdraft are not historized.
+   * </p>
+   * 
+   * @param ba the bank account
+   * @param period the month of the statement, before the current month
+   * @return the statement
+   */
+  public StatementSnapshot buildStatementSnapshot(Account ba, YearMonth period) {
+    // Read in the DB and not in the cache to have the last overdraft
+    Account currentBa = bankAccountRepository.findById(ba.getAccountId()).orElse(ba);
+    LocalDate lastDate = period.atEndOfMonth();
+    BalanceCheckpointService.OperationTotal total =
+        balanceCheckpointService.totalOperations(ba.getAccountId(), lastDate);
+    StatementSnapshot snapshot = new StatementSnapshot();
+    snapshot.setStatementId(StatementSnapshot.idOf(ba.getBankAccountNumber(), period));
+    snapshot.setBankAccountNumber(ba.getBankAccountNumber());
+    snapshot.setPeriod(period.toString());
+    snapshot.setAccountType(currentBa.getAccountType());
+    snapshot.setBalanceAmount(total.getBalance());
+    snapshot.setOverdraftAmount(currentBa.getOverdraftAmount());
+    snapshot.setOperations(bankingOperationRepository.findByAccountIdAndOperationDateRange(
+        ba.getAccountId(), period.atDay(1), lastDate));
+    snapshot.setOperationCount(total.getOpCount());
+    snapshot.setCreationDate(Instant.now());
+    return snapshot;
+  }
+
   /**
    * Create a new saving account for a person
    * 
@@ -324,12 +1568,9 @@ public class PersistenceServices {
    * @return the created BAN
    */
   public String createSavingsAccount(String personId) {
-    Account ba = new Account(personId);
-    long seq = sequenceGeneratorService.getNextSequence("bank_account_number");
-    String externalRef = String.format("CAMBYZEBANK-%08d", seq);
-    ba.setBankAccountNumber(externalRef);
-    ba.setAccountType(Constants.ACCOUNT_TYPE_SAVINGS);
+    Account ba = newBankAccount(personId, Constants.ACCOUNT_TYPE_SAVINGS);
     bankAccountRepository.save(ba);
+    bankAccountCache.put(ba);
     LOGGER.debug("New savings account : {} for the BAN: {}", ba.getAccountType(),
         ba.getBankAccountNumber());
     return ba.getBankAccountNumber();
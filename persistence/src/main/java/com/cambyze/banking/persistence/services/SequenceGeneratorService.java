@@ -1,5 +1,12 @@
 package com.cambyze.banking.persistence.services;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
@@ -7,24 +14,138 @@ import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 import com.cambyze.banking.persistence.model.Counter;
+import jakarta.annotation.PreDestroy;
 
+/**
+ * Generator of sequences with a hi/lo allocation
+ * <p>
+ * Each node reserves a block of values with one $inc on the counters collection, then hands the
+ * values out locally. The block size is configured by key with SequenceProperties.
+ */
 @Service
 public class SequenceGeneratorService {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(SequenceGeneratorService.class);
+
   private final MongoTemplate mongoTemplate;
 
-  public SequenceGeneratorService(MongoTemplate mongoTemplate) {
+  private final SequenceProperties sequenceProperties;
+
+  // Current block of values by key
+  private final Map<String, SequenceBlock> blocks = new ConcurrentHashMap<>();
+
+  // Statistics by key
+  private final Map<String, SequenceStats> stats = new ConcurrentHashMap<>();
+
+  // Lock rather than synchronized, which would pin a virtual thread during the DB access
+  private final Lock fetchLock = new ReentrantLock();
+
+  public SequenceGeneratorService(MongoTemplate mongoTemplate,
+      SequenceProperties sequenceProperties) {
     this.mongoTemplate = mongoTemplate;
+    this.sequenceProperties = sequenceProperties;
   }
 
   public long getNextSequence(String key) {
+    while (true) {
+      SequenceBlock block = blocks.get(key);
+      if (block != null) {
+        long value = block.next.getAndIncrement();
+        if (value <= block.max) {
+          return value;
+        }
+      }
+      fetchLock.lock();
+      try {
+        // Another thread may have already fetched a new block
+        if (blocks.get(key) == block) {
+          blocks.put(key, fetchBlock(key));
+        }
+      } finally {
+        fetchLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Reserve a new block of values in the DB
+   * 
+   * @param key key of the sequence
+   * @return the reserved block
+   */
+  private SequenceBlock fetchBlock(String key) {
+    int blockSize = sequenceProperties.getBlockSize(key);
     Counter counter = mongoTemplate.findAndModify(Query.query(Criteria.where("_id").is(key)),
-        new Update().inc("seq", 1), FindAndModifyOptions.options().returnNew(true).upsert(true),
-        Counter.class);
+        new Update().inc("seq", blockSize),
+        FindAndModifyOptions.options().returnNew(true).upsert(true), Counter.class);
 
     if (counter == null) {
       throw new IllegalStateException("Failed to generate sequence for key: " + key);
     }
-    return counter.getSeq();
+    SequenceStats keyStats = stats.computeIfAbsent(key, k -> new SequenceStats());
+    keyStats.blocksFetched.incrementAndGet();
+    keyStats.valuesWasted.set(counter.getWasted());
+    LOGGER.debug("New block of {} values for the sequence {} up to {}", blockSize, key,
+        counter.getSeq());
+    return new SequenceBlock(counter.getSeq() - blockSize + 1, counter.getSeq());
+  }
+
+  /**
+   * Record in the DB the reserved values which will never be used
+   */
+  @PreDestroy
+  public void releaseBlocks() {
+    blocks.forEach((key, block) -> {
+      long unused = block.max - block.next.get() + 1;
+      if (unused > 0) {
+        LOGGER.info("{} values of the sequence {} are lost with the shutdown", unused, key);
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(key)),
+            new Update().inc("wasted", unused), Counter.class);
+      }
+    });
+    blocks.clear();
+  }
+
+  /**
+   * Number of blocks fetched in the DB by this node since its start
+   * 
+   * @param key key of the sequence
+   * @return the number of blocks
+   */
+  public long getBlocksFetched(String key) {
+    SequenceStats keyStats = stats.get(key);
+    return keyStats != null ? keyStats.blocksFetched.get() : 0;
+  }
+
+  /**
+   * Number of values lost by the restarts of all the nodes, as known at the last block fetched
+   * 
+   * @param key key of the sequence
+   * @return the number of values
+   */
+  public long getValuesWasted(String key) {
+    SequenceStats keyStats = stats.get(key);
+    return keyStats != null ? keyStats.valuesWasted.get() : 0;
+  }
+
+  /**
+   * Range of reserved values [next, max]
+   */
+  private static class SequenceBlock {
+    private final AtomicLong next;
+    private final long max;
+
+    SequenceBlock(long first, long max) {
+      this.next = new AtomicLong(first);
+      this.max = max;
+    }
+  }
+
+  /**
+   * Statistics of a sequence
+   */
+  private static class SequenceStats {
+    private final AtomicLong blocksFetched = new AtomicLong();
+    private final AtomicLong valuesWasted = new AtomicLong();
   }
 }
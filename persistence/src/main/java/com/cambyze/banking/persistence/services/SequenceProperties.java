@@ -0,0 +1,48 @@
+package com.cambyze.banking.persistence.services;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Configuration of the sequences, with the properties "cambyze.sequence.*"
+ * <p>
+ * Example: cambyze.sequence.block-sizes.person=1000
+ */
+@Component
+@ConfigurationProperties(prefix = "cambyze.sequence")
+public class SequenceProperties {
+
+  // Number of values reserved with one DB access when the key has no specific block size
+  private int defaultBlockSize = 1;
+
+  // Number of values reserved with one DB access by key ("person", "bank_account_number", ...)
+  private Map<String, Integer> blockSizes = new HashMap<>();
+
+  public int getDefaultBlockSize() {
+    return defaultBlockSize;
+  }
+
+  public void setDefaultBlockSize(int defaultBlockSize) {
+    this.defaultBlockSize = defaultBlockSize;
+  }
+
+  public Map<String, Integer> getBlockSizes() {
+    return blockSizes;
+  }
+
+  public void setBlockSizes(Map<String, Integer> blockSizes) {
+    this.blockSizes = blockSizes;
+  }
+
+  /**
+   * Block size to use for a key
+   * 
+   * @param key key of the sequence
+   * @return the configured block size for the key else the default one, at least 1
+   */
+  public int getBlockSize(String key) {
+    return Math.max(1, blockSizes.getOrDefault(key, defaultBlockSize));
+  }
+}
@@ -1,25 +1,66 @@
 package com.cambyze.banking.persistence;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import java.math.BigDecimal;
+import java.time.Duration;
 import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import com.cambyze.banking.persistence.model.Account;
+import com.cambyze.banking.persistence.model.BalanceCheckpoint;
 import com.cambyze.banking.persistence.model.Constants;
+import com.cambyze.banking.persistence.model.IdempotencyRecord;
+import com.cambyze.banking.persistence.model.InterestRun;
 import com.cambyze.banking.persistence.model.Operation;
+import com.cambyze.banking.persistence.model.OperationPage;
+import com.cambyze.banking.persistence.model.PendingTransfer;
 import com.cambyze.banking.persistence.model.Person;
+import com.cambyze.banking.persistence.model.ReconciliationReport;
+import com.cambyze.banking.persistence.services.BalanceCheckpointService;
+import com.cambyze.banking.persistence.services.BalanceReconciliation;
+import com.cambyze.banking.persistence.services.DataMigrations;
+import com.cambyze.banking.persistence.services.IdempotencyStore;
+import com.cambyze.banking.persistence.services.InterestAccrualBatch;
+import com.cambyze.banking.persistence.services.MailBloomFilter;
+import com.cambyze.banking.persistence.services.OperationWriteBehind;
 import com.cambyze.banking.persistence.services.PersistenceServices;
+import com.cambyze.banking.persistence.services.SequenceGeneratorService;
+import com.cambyze.banking.persistence.services.SequenceProperties;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
 
 
-@SpringBootTest
+// One instance creates the persons of the test DB
+@SpringBootTest(properties = "cambyze.mail-filter.enabled=true")
 class PersistenceApplicationTests {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(PersistenceApplicationTests.class);
@@ -27,26 +68,122 @@ class PersistenceApplicationTests {
   @Autowired
   private PersistenceServices persistenceServices;
 
+  @Autowired
+  private MongoTemplate mongoTemplate;
+
+  @Autowired
+  private BalanceCheckpointService balanceCheckpointService;
+
+  @Autowired
+  private InterestAccrualBatch interestAccrualBatch;
+
+  @Autowired
+  private BalanceReconciliation balanceReconciliation;
+
+  @Autowired
+  private MailBloomFilter mailBloomFilter;
+
+  @Autowired
+  private DataMigrations dataMigrations;
+
+  @Autowired
+  private IdempotencyStore idempotencyStore;
+
+  @Autowired
+  private SequenceGeneratorService sequenceGeneratorService;
+
+  @Autowired
+  private SequenceProperties sequenceProperties;
+
   @Test
   void testPersonServices() {
     LOGGER.debug("[testPersonServices] Test services");
-    String personId = persistenceServices.createNewPerson("DOE", "John", "john.doe@gmail.com");
+    String mail = uniqueMail("john.doe");
+    String personId = persistenceServices.createNewPerson("DOE", "John", mail);
     LOGGER.debug("[testPersonServices] New client: {}", personId);
     assertNotNull(personId);
     assertTrue(personId.startsWith("CLI-"));
     Person per = persistenceServices.findPersonByid(personId);
     assertNotNull(per);
+    assertNotNull(persistenceServices.findPersonByid(" " + personId.toLowerCase(Locale.ROOT)));
     per = persistenceServices.findPersonByid("0");
     assertNull(per);
-    List<Person> lPer = persistenceServices.findPersonByMail("john.doe@gmail.com");
-    LOGGER.debug("Find person by personID: {} : {}", "john.doe@gmail.com", lPer);
+    assertNull(persistenceServices.findPersonByid(null));
+    // The mail is used by one person only
+    assertNull(persistenceServices.createNewPerson("DOE", "Johnny", mail));
+    assertEquals(1, persistenceServices.findPersonByMail(mail).size());
+    List<Person> lPer = persistenceServices.findPersonByMail(mail);
+    LOGGER.debug("Find person by personID: {} : {}", mail, lPer);
     assertNotNull(lPer);
   }
 
+  @Test
+  void testSequenceBlocks() throws Exception {
+    LOGGER.debug("[testSequenceBlocks] Test the hi/lo allocation of the sequences");
+    String key = "test-" + UUID.randomUUID();
+    sequenceProperties.getBlockSizes().put(key, 10);
+    int threads = 8;
+    int valuesByThread = 25;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<List<Long>>> futures = new ArrayList<>();
+    try {
+      for (int t = 0; t < threads; t++) {
+        futures.add(executor.submit(() -> {
+          List<Long> values = new ArrayList<>();
+          for (int i = 0; i < valuesByThread; i++) {
+            values.add(sequenceGeneratorService.getNextSequence(key));
+          }
+          return values;
+        }));
+      }
+      Set<Long> values = new HashSet<>();
+      for (Future<List<Long>> future : futures) {
+        values.addAll(future.get());
+      }
+      // Unique values without gap, the blocks are used up before the next one is fetched
+      assertEquals(threads * valuesByThread, values.size());
+      assertEquals(1L, values.stream().mapToLong(Long::longValue).min().getAsLong());
+      assertEquals(threads * valuesByThread,
+          values.stream().mapToLong(Long::longValue).max().getAsLong());
+      assertEquals(threads * valuesByThread / 10, sequenceGeneratorService.getBlocksFetched(key));
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // New block fetched after the last value of the previous one
+    assertEquals(201L, sequenceGeneratorService.getNextSequence(key));
+    assertEquals(21L, sequenceGeneratorService.getBlocksFetched(key));
+    // The 9 values left in the block are recorded as wasted and known at the next fetch
+    sequenceGeneratorService.releaseBlocks();
+    assertEquals(211L, sequenceGeneratorService.getNextSequence(key));
+    assertEquals(9L, sequenceGeneratorService.getValuesWasted(key));
+  }
+
+  @Test
+  void testMailBloomFilter() {
+    LOGGER.debug("[testMailBloomFilter] Test the filter of the mails");
+    mailBloomFilter.rebuild();
+    assertTrue(mailBloomFilter.isReady());
+    String mail = uniqueMail("jill.doe");
+    assertNotNull(persistenceServices.createNewPerson("DOE", "Jill", mail));
+    assertTrue(mailBloomFilter.mightContain(mail));
+    assertEquals(1, persistenceServices.findPersonByMail(mail).size());
+
+    // An unknown mail is absent from the filter or counted as a false positive
+    long unknownMails = mailBloomFilter.getNegatives() + mailBloomFilter.getFalsePositives();
+    assertTrue(persistenceServices.findPersonByMail("nobody.doe@gmail.com").isEmpty());
+    assertEquals(unknownMails + 1,
+        mailBloomFilter.getNegatives() + mailBloomFilter.getFalsePositives());
+    // The persons created before a rebuild are still known
+    mailBloomFilter.rebuild();
+    assertTrue(mailBloomFilter.mightContain(mail));
+    assertTrue(mailBloomFilter.getExpectedFalsePositiveRate() < 0.01);
+  }
+
   @Test
   void testAccountServices() {
     LOGGER.debug("[testAccountServices] Test Services");
-    String personId = persistenceServices.createNewPerson("DOE", "John", "john.doe2@gmail.com");
+    String personId = persistenceServices.createNewPerson("DOE", "John", uniqueMail("john.doe2"));
     Person per = persistenceServices.findPersonByid(personId);
     String ban = persistenceServices.createNewBankAccount(personId);
     LOGGER.debug(
@@ -56,6 +193,11 @@ class PersistenceApplicationTests {
     List<Account> acs = persistenceServices.findBankAccountsByPerson(per.getId());
     assertTrue(acs != null && !acs.isEmpty());
     Account ba = persistenceServices.findBankAccountByBAN(ban);
+    Account lowerCaseBa = persistenceServices.findBankAccountByBAN(ban.toLowerCase(Locale.ROOT));
+    assertEquals(ba.getAccountId(), lowerCaseBa.getAccountId());
+    // The BAN is read by an exact match on a unique index
+    assertTrue(mongoTemplate.indexOps(Account.class).getIndexInfo().stream().anyMatch(
+        index -> index.isUnique() && index.isIndexForFields(List.of("bankAccountNumber"))));
     persistenceServices.createNewBankingOperation(ba, LocalDate.now(),
         Constants.OPERATION_TYPE_DEPOSIT, BigDecimal.valueOf(100.0));
     List<Operation> ops =
@@ -76,7 +218,7 @@ class PersistenceApplicationTests {
     persistenceServices.createNewBankingOperation(ba, LocalDate.now(),
         Constants.OPERATION_TYPE_DEPOSIT, BigDecimal.valueOf(100.0));
     assertTrue(opId == String.valueOf(Constants.INVALID_BANK_ACCOUNT));
-    String personId = persistenceServices.createNewPerson("DOE", "John", "john.doe25@gmail.com");
+    String personId = persistenceServices.createNewPerson("DOE", "John", uniqueMail("john.doe25"));
     String ban = persistenceServices.createNewBankAccount(personId);
     ba = persistenceServices.findBankAccountByBAN(ban);
     if (ba != null) {
@@ -91,6 +233,11 @@ class PersistenceApplicationTests {
       assertNotNull(opId);
       opId = persistenceServices.createNewBankingOperation(ba, LocalDate.now(),
           Constants.OPERATION_TYPE_DEPOSIT, BigDecimal.valueOf(1050.36));
+      // Without the write-behind, the result is known when the method returns
+      CompletableFuture<String> submitted = persistenceServices.submitBankingOperation(ba,
+          LocalDate.now(), Constants.OPERATION_TYPE_WITHDRAW, BigDecimal.valueOf(50.36));
+      assertTrue(submitted.isDone() && !submitted.join().startsWith("-"));
+      assertEquals(0, BigDecimal.valueOf(1100.0).compareTo(ba.getBalanceAmount()));
       List<Operation> ops =
           persistenceServices.findBankingOperationsOfBankAccount(ba.getBankAccountNumber());
       LOGGER.debug("[testOperationServices] Nb of operations retrieved: {}", ops.size());
@@ -105,10 +252,421 @@ class PersistenceApplicationTests {
     }
   }
 
+  @Test
+  void testAtomicBalanceServices() {
+    LOGGER.debug("[testAtomicBalanceServices] Test atomic balance update");
+    String personId = persistenceServices.createNewPerson("DOE", "Jane", uniqueMail("jane.doe"));
+    String ban = persistenceServices.createNewBankAccount(personId);
+    Account ba = persistenceServices.findBankAccountByBAN(ban);
+    String opId = persistenceServices.createNewBankingOperation(ba, LocalDate.now(),
+        Constants.OPERATION_TYPE_DEPOSIT, BigDecimal.valueOf(100.0));
+    assertTrue(!opId.startsWith("-"));
+    assertEquals(0, BigDecimal.valueOf(100.0).compareTo(ba.getBalanceAmount()));
+    // No overdraft then the withdraw is refused and the balance is unchanged
+    opId = persistenceServices.createNewBankingOperation(ba, LocalDate.now(),
+        Constants.OPERATION_TYPE_WITHDRAW, BigDecimal.valueOf(150.0));
+    assertEquals(Constants.INSUFFICIENT_BALANCE, opId);
+    ba = persistenceServices.findBankAccountByBAN(ban);
+    assertEquals(0, BigDecimal.valueOf(100.0).compareTo(ba.getBalanceAmount()));
+
+    ban = persistenceServices.createSavingsAccount(personId);
+    ba = persistenceServices.findBankAccountByBAN(ban);
+    opId = persistenceServices.createNewBankingOperation(ba, LocalDate.now(),
+        Constants.OPERATION_TYPE_DEPOSIT, BigDecimal.valueOf(Constants.SAVINGS_ACCOUNT_LIMIT + 1));
+    assertEquals(Constants.SAVINGS_LIMIT_REACHED, opId);
+  }
+
+  @Test
+  void testBatchOperationServices() {
+    LOGGER.debug("[testBatchOperationServices] Test batch of operations");
+    String personId = persistenceServices.createNewPerson("DOE", "Joe", uniqueMail("joe.doe"));
+    String ban = persistenceServices.createNewBankAccount(personId);
+    String savingsBan = persistenceServices.createSavingsAccount(personId);
+    Map<String, Account> accountsByBan =
+        persistenceServices.findBankAccountsByBAN(List.of(ban, savingsBan));
+    assertEquals(2, accountsByBan.size());
+    Account ba = accountsByBan.get(ban.toUpperCase(Locale.ROOT));
+    Account savings = accountsByBan.get(savingsBan.toUpperCase(Locale.ROOT));
+    Map<String, Account> accountsById =
+        Map.of(ba.getAccountId(), ba, savings.getAccountId(), savings);
+
+    List<Operation> ops = List.of(
+        new Operation(ba.getAccountId(), LocalDate.now(), Constants.OPERATION_TYPE_DEPOSIT,
+            BigDecimal.valueOf(100.0)),
+        new Operation(ba.getAccountId(), LocalDate.now(), Constants.OPERATION_TYPE_WITHDRAW,
+            BigDecimal.valueOf(150.0)),
+        new Operation(ba.getAccountId(), LocalDate.now(), Constants.OPERATION_TYPE_WITHDRAW,
+            BigDecimal.valueOf(40.0)),
+        new Operation(savings.getAccountId(), LocalDate.now(), Constants.OPERATION_TYPE_DEPOSIT,
+            BigDecimal.valueOf(-1.0)),
+        new Operation(savings.getAccountId(), LocalDate.now(), Constants.OPERATION_TYPE_DEPOSIT,
+            BigDecimal.valueOf(Constants.SAVINGS_ACCOUNT_LIMIT + 1)));
+    List<String> results = persistenceServices.createNewBankingOperations(accountsById, ops);
+    assertEquals(5, results.size());
+    assertTrue(!results.get(0).startsWith("-"));
+    assertEquals(Constants.INSUFFICIENT_BALANCE, results.get(1));
+    assertTrue(!results.get(2).startsWith("-"));
+    assertEquals(Constants.INVALID_AMOUNT, results.get(3));
+    assertEquals(Constants.SAVINGS_LIMIT_REACHED, results.get(4));
+
+    ba = persistenceServices.findBankAccountByBAN(ban);
+    assertEquals(0, BigDecimal.valueOf(60.0).compareTo(ba.getBalanceAmount()));
+    assertEquals(2, persistenceServices.findBankingOperationsOfBankAccount(ban).size());
+
+    // The operations are checked against the balance of the DB, not an outdated one
+    ba.setBalanceAmount(BigDecimal.valueOf(1000.0));
+    results = persistenceServices.createNewBankingOperations(Map.of(ba.getAccountId(), ba),
+        List.of(new Operation(ba.getAccountId(), LocalDate.now(),
+            Constants.OPERATION_TYPE_WITHDRAW, BigDecimal.valueOf(100.0))));
+    assertEquals(Constants.INSUFFICIENT_BALANCE, results.get(0));
+    assertEquals(0, BigDecimal.valueOf(60.0).compareTo(ba.getBalanceAmount()));
+
+    // The batches larger than the maximum are refused before any update
+    List<Operation> largeBatch = new ArrayList<>();
+    for (int i = 0; i <= Constants.MAX_BATCH_SIZE; i++) {
+      largeBatch.add(new Operation(ba.getAccountId(), LocalDate.now(),
+          Constants.OPERATION_TYPE_DEPOSIT, BigDecimal.ONE));
+    }
+    assertThrows(IllegalArgumentException.class,
+        () -> persistenceServices.createNewBankingOperations(accountsById, largeBatch));
+    assertEquals(2, persistenceServices.findBankingOperationsOfBankAccount(ban).size());
+  }
+
+  @Test
+  void testOperationPageServices() {
+    LOGGER.debug("[testOperationPageServices] Test pages of operations");
+    String personId = persistenceServices.createNewPerson("DOE", "Jim", uniqueMail("jim.doe"));
+    String ban = persistenceServices.createNewBankAccount(personId);
+    Account ba = persistenceServices.findBankAccountByBAN(ban);
+    for (int i = 0; i < 3; i++) {
+      persistenceServices.createNewBankingOperation(ba, LocalDate.now().minusDays(i),
+          Constants.OPERATION_TYPE_DEPOSIT, BigDecimal.valueOf(10.0));
+    }
+    List<Operation> ops = persistenceServices.findBankingOperationsOfBankAccount(ban,
+        LocalDate.now().minusDays(1), LocalDate.now());
+    assertEquals(2, ops.size());
+    assertEquals(LocalDate.now(), ops.get(0).getOperationDate());
+
+    OperationPage page = persistenceServices.findBankingOperationsPage(ban, null, null, 2);
+    assertEquals(2, page.getOperations().size());
+    assertTrue(page.hasNext());
+    page = persistenceServices.findBankingOperationsPage(ban, page.getNextOperationDate(),
+        page.getNextOperationId(), 2);
+    assertEquals(1, page.getOperations().size());
+    assertEquals(LocalDate.now().minusDays(2), page.getOperations().get(0).getOperationDate());
+    assertTrue(!page.hasNext());
+    // A size larger than the maximum is reduced, without overflow of the extra operation read
+    page = persistenceServices.findBankingOperationsPage(ban, null, null, Integer.MAX_VALUE);
+    assertEquals(3, page.getOperations().size());
+    assertTrue(!page.hasNext());
+
+    // Export of all the operations with a cursor, the most recent first
+    List<LocalDate> exportedDates = new ArrayList<>();
+    assertEquals(3, persistenceServices.forEachBankingOperation(ba,
+        op -> exportedDates.add(op.getOperationDate())));
+    assertEquals(List.of(LocalDate.now(), LocalDate.now().minusDays(1),
+        LocalDate.now().minusDays(2)), exportedDates);
+  }
+
+  @Test
+  void testBalanceCheckpoints() {
+    LOGGER.debug("[testBalanceCheckpoints] Test the daily checkpoints of the balance");
+    String personId = persistenceServices.createNewPerson("DOE", "Joan", uniqueMail("joan.doe"));
+    String ban = persistenceServices.createNewBankAccount(personId);
+    Account ba = persistenceServices.findBankAccountByBAN(ban);
+    LocalDate today = LocalDate.now();
+    // Operations written in another order than their dates
+    persistenceServices.createNewBankingOperation(ba, today, Constants.OPERATION_TYPE_DEPOSIT,
+        BigDecimal.valueOf(100.0));
+    persistenceServices.createNewBankingOperation(ba, today.minusDays(2),
+        Constants.OPERATION_TYPE_DEPOSIT, BigDecimal.valueOf(50.0));
+    persistenceServices.createNewBankingOperation(ba, today.minusDays(1),
+        Constants.OPERATION_TYPE_WITHDRAW, BigDecimal.valueOf(30.0));
+
+    assertEquals(0, BigDecimal.ZERO.compareTo(persistenceServices.findBalanceAt(ba,
+        today.minusDays(3))));
+    assertEquals(0, BigDecimal.valueOf(50.0)
+        .compareTo(persistenceServices.findBalanceAt(ba, today.minusDays(2))));
+    assertEquals(0, BigDecimal.valueOf(20.0)
+        .compareTo(persistenceServices.findBalanceAt(ba, today.minusDays(1))));
+    assertEquals(0,
+        BigDecimal.valueOf(120.0).compareTo(persistenceServices.findBalanceAt(ba, today)));
+
+    // Same balances after a rebuild from the operations
+    assertEquals(3, balanceCheckpointService.rebuild(ba.getAccountId()));
+    assertEquals(0, BigDecimal.valueOf(20.0)
+        .compareTo(persistenceServices.findBalanceAt(ba, today.minusDays(1))));
+    assertEquals(0,
+        BigDecimal.valueOf(120.0).compareTo(persistenceServices.findBalanceAt(ba, today)));
+
+    // Operations written before the checkpoints: sum of the operations then backfill
+    mongoTemplate.remove(Query.query(Criteria.where("accountId").is(ba.getAccountId())),
+        BalanceCheckpoint.class);
+    assertNull(balanceCheckpointService.findClosingBalance(ba.getAccountId(), today));
+    assertEquals(0, BigDecimal.valueOf(20.0)
+        .compareTo(persistenceServices.findBalanceAt(ba, today.minusDays(1))));
+    assertTrue(balanceCheckpointService.backfill() > 0);
+    assertEquals(0, BigDecimal.valueOf(120.0)
+        .compareTo(balanceCheckpointService.findClosingBalance(ba.getAccountId(), today)));
+  }
+
+  @Test
+  void testTransferRecovery() {
+    LOGGER.debug("[testTransferRecovery] Test the recovery of the interrupted transfers");
+    String personId = persistenceServices.createNewPerson("DOE", "Jude", uniqueMail("jude.doe"));
+    Account fromBa = persistenceServices
+        .findBankAccountByBAN(persistenceServices.createNewBankAccount(personId));
+    Account toBa = persistenceServices
+        .findBankAccountByBAN(persistenceServices.createNewBankAccount(personId));
+    LocalDate today = LocalDate.now();
+    persistenceServices.createNewBankingOperation(fromBa, today, Constants.OPERATION_TYPE_DEPOSIT,
+        BigDecimal.valueOf(100.0));
+    String opId = persistenceServices.createNewTransfer(fromBa, toBa, today,
+        BigDecimal.valueOf(30.0));
+    assertFalse(opId.startsWith("-"));
+    assertEquals(0, mongoTemplate.count(Query.query(Criteria.where("fromAccountId")
+        .is(fromBa.getAccountId())), PendingTransfer.class));
+
+    // Interrupted after the debit: cancelled
+    PendingTransfer debited = staleTransfer(fromBa, toBa, today, BigDecimal.valueOf(20.0));
+    applyTransfer(fromBa, debited, BigDecimal.valueOf(-20.0));
+    assertTrue(persistenceServices.recoverTransfers(Duration.ofMinutes(1)) > 0);
+    assertEquals(0, BigDecimal.valueOf(70.0).compareTo(
+        mongoTemplate.findById(fromBa.getAccountId(), Account.class).getBalanceAmount()));
+    assertNull(mongoTemplate.findById(debited.getDebitId(), Operation.class));
+    assertNull(mongoTemplate.findById(debited.getTransferId(), PendingTransfer.class));
+
+    // Interrupted after both balances: finished with its operations and its checkpoints
+    PendingTransfer credited = staleTransfer(fromBa, toBa, today, BigDecimal.valueOf(20.0));
+    applyTransfer(fromBa, credited, BigDecimal.valueOf(-20.0));
+    applyTransfer(toBa, credited, BigDecimal.valueOf(20.0));
+    assertTrue(persistenceServices.recoverTransfers(Duration.ofMinutes(1)) > 0);
+    assertNotNull(mongoTemplate.findById(credited.getDebitId(), Operation.class));
+    assertNotNull(mongoTemplate.findById(credited.getCreditId(), Operation.class));
+    assertNull(mongoTemplate.findById(credited.getTransferId(), PendingTransfer.class));
+    assertEquals(0, BigDecimal.valueOf(50.0).compareTo(
+        mongoTemplate.findById(toBa.getAccountId(), Account.class).getBalanceAmount()));
+    assertEquals(0, BigDecimal.valueOf(50.0)
+        .compareTo(balanceCheckpointService.findClosingBalance(fromBa.getAccountId(), today)));
+    assertEquals(0, BigDecimal.valueOf(50.0)
+        .compareTo(balanceCheckpointService.findClosingBalance(toBa.getAccountId(), today)));
+
+    // Claimed by its writer less than the delay ago: not recovered, then finished when its claim
+    // is older than the delay
+    PendingTransfer committing = staleTransfer(fromBa, toBa, today, BigDecimal.valueOf(20.0));
+    applyTransfer(fromBa, committing, BigDecimal.valueOf(-20.0));
+    applyTransfer(toBa, committing, BigDecimal.valueOf(20.0));
+    Query committingQuery = Query.query(Criteria.where("_id").is(committing.getTransferId()));
+    mongoTemplate.updateFirst(committingQuery, new Update()
+        .set("status", Constants.TRANSFER_COMMITTING).set("claimedAt", new Date()),
+        PendingTransfer.class);
+    persistenceServices.recoverTransfers(Duration.ofMinutes(1));
+    assertEquals(Constants.TRANSFER_COMMITTING,
+        mongoTemplate.findOne(committingQuery, PendingTransfer.class).getStatus());
+    assertNull(mongoTemplate.findById(committing.getDebitId(), Operation.class));
+    mongoTemplate.updateFirst(committingQuery,
+        new Update().set("claimedAt", new Date(System.currentTimeMillis() - 3_600_000L)),
+        PendingTransfer.class);
+    assertTrue(persistenceServices.recoverTransfers(Duration.ofMinutes(1)) > 0);
+    assertNotNull(mongoTemplate.findById(committing.getCreditId(), Operation.class));
+    assertNull(mongoTemplate.findOne(committingQuery, PendingTransfer.class));
+    assertEquals(0, BigDecimal.valueOf(70.0).compareTo(
+        mongoTemplate.findById(toBa.getAccountId(), Account.class).getBalanceAmount()));
+  }
+
+  @Test
+  void testInterestAccrual() {
+    LOGGER.debug("[testInterestAccrual] Test the interests of the savings accounts");
+    String personId = persistenceServices.createNewPerson("DOE", "Jane", uniqueMail("jane.doe2"));
+    LocalDate day = LocalDate.now().minusDays(1);
+    String ban = persistenceServices.createSavingsAccount(personId);
+    Account ba = persistenceServices.findBankAccountByBAN(ban);
+    persistenceServices.createNewBankingOperation(ba, day.minusDays(1),
+        Constants.OPERATION_TYPE_DEPOSIT, BigDecimal.valueOf(3650.0));
+    String fullBan = persistenceServices.createSavingsAccount(personId);
+    Account fullBa = persistenceServices.findBankAccountByBAN(fullBan);
+    persistenceServices.createNewBankingOperation(fullBa, day.minusDays(1),
+        Constants.OPERATION_TYPE_DEPOSIT, BigDecimal.valueOf(4999.95));
+
+    mongoTemplate.remove(Query.query(Criteria.where("_id").is(day.toString())),
+        InterestRun.class);
+    InterestRun run = interestAccrualBatch.run(day);
+    assertTrue(run.isDone());
+    assertTrue(run.getCreditedAccounts() >= 2);
+    // 3650.0 * 2% / 365 and the interests limited by the savings limit
+    assertEquals(0, BigDecimal.valueOf(3650.20)
+        .compareTo(mongoTemplate.findById(ba.getAccountId(), Account.class).getBalanceAmount()));
+    assertEquals(0, BigDecimal.valueOf(Constants.SAVINGS_ACCOUNT_LIMIT).compareTo(
+        mongoTemplate.findById(fullBa.getAccountId(), Account.class).getBalanceAmount()));
+    assertEquals(0,
+        BigDecimal.valueOf(3650.20).compareTo(persistenceServices.findBalanceAt(ba, day)));
+    // The interest operation is inserted with the id set by the update of the balance
+    String interestOpId =
+        mongoTemplate.findById(ba.getAccountId(), Account.class).getLastInterestOperationId();
+    assertNotNull(interestOpId);
+    assertEquals(0, BigDecimal.valueOf(0.20)
+        .compareTo(mongoTemplate.findById(interestOpId, Operation.class).getAmount()));
+
+    // A run executed again credits nothing
+    mongoTemplate.remove(Query.query(Criteria.where("_id").is(day.toString())),
+        InterestRun.class);
+    interestAccrualBatch.run(day);
+    assertEquals(0, BigDecimal.valueOf(3650.20)
+        .compareTo(mongoTemplate.findById(ba.getAccountId(), Account.class).getBalanceAmount()));
+    assertEquals(2, persistenceServices.findBankingOperationsOfBankAccount(ban).size());
+    // The interests are added once to the checkpoints
+    assertFalse(balanceCheckpointService.recordInterest(ba.getAccountId(), day, BigDecimal.ONE));
+    assertEquals(0,
+        BigDecimal.valueOf(3650.20).compareTo(persistenceServices.findBalanceAt(ba, day)));
+
+    // Savings account without checkpoint: the interests of the sum of its operations
+    String oldBan = persistenceServices.createSavingsAccount(personId);
+    Account oldBa = persistenceServices.findBankAccountByBAN(oldBan);
+    persistenceServices.createNewBankingOperation(oldBa, day.minusDays(1),
+        Constants.OPERATION_TYPE_DEPOSIT, BigDecimal.valueOf(3650.0));
+    mongoTemplate.remove(Query.query(Criteria.where("accountId").is(oldBa.getAccountId())),
+        BalanceCheckpoint.class);
+    mongoTemplate.remove(Query.query(Criteria.where("_id").is(day.toString())),
+        InterestRun.class);
+    interestAccrualBatch.run(day);
+    assertEquals(0, BigDecimal.valueOf(3650.20).compareTo(
+        mongoTemplate.findById(oldBa.getAccountId(), Account.class).getBalanceAmount()));
+
+    // Run stopped by a crash: resumed by the execution of the next day
+    mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(day.toString())),
+        new Update().set("done", false), InterestRun.class);
+    List<InterestRun> resumed = interestAccrualBatch.resumeStoppedRuns(day.plusDays(1));
+    assertTrue(resumed.stream().anyMatch(run -> run.getDay().equals(day.toString())));
+    assertTrue(mongoTemplate.findById(day.toString(), InterestRun.class).isDone());
+    assertEquals(0, BigDecimal.valueOf(3650.20).compareTo(
+        mongoTemplate.findById(oldBa.getAccountId(), Account.class).getBalanceAmount()));
+  }
+
+  @Test
+  void testBalanceReconciliation() {
+    LOGGER.debug("[testBalanceReconciliation] Test the reconciliation of the balances");
+    String personId = persistenceServices.createNewPerson("DOE", "John", uniqueMail("john.doe3"));
+    String ban = persistenceServices.createNewBankAccount(personId);
+    Account ba = persistenceServices.findBankAccountByBAN(ban);
+    persistenceServices.createNewBankingOperation(ba, LocalDate.now(),
+        Constants.OPERATION_TYPE_DEPOSIT, BigDecimal.valueOf(120.0));
+    persistenceServices.createNewBankingOperation(ba, LocalDate.now(),
+        Constants.OPERATION_TYPE_WITHDRAW, BigDecimal.valueOf(20.0));
+    ReconciliationReport report = balanceReconciliation.reconcile();
+    assertTrue(report.getCheckedAccounts() >= 1);
+    assertTrue(report.getMismatches().stream()
+        .noneMatch(mismatch -> ban.equals(mismatch.getBankAccountNumber())));
+
+    // Balance changed without operation
+    mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(ba.getAccountId())),
+        new Update().inc("balanceAmount", new Decimal128(BigDecimal.valueOf(5.0))),
+        Account.class);
+    long mismatches = balanceReconciliation.getMismatches();
+    report = balanceReconciliation.reconcile();
+    assertTrue(balanceReconciliation.getMismatches() > mismatches);
+    ReconciliationReport.Mismatch mismatch = report.getMismatches().stream()
+        .filter(m -> ban.equals(m.getBankAccountNumber())).findFirst().orElseThrow();
+    assertEquals(0, BigDecimal.valueOf(100.0).compareTo(mismatch.getLedgerBalance()));
+    assertEquals(0, BigDecimal.valueOf(5.0).compareTo(mismatch.getDifference()));
+    mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(ba.getAccountId())),
+        new Update().inc("balanceAmount", new Decimal128(BigDecimal.valueOf(-5.0))),
+        Account.class);
+
+    // Balance of a bank account without operation
+    String emptyBan = persistenceServices.createNewBankAccount(personId);
+    Account emptyBa = persistenceServices.findBankAccountByBAN(emptyBan);
+    mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(emptyBa.getAccountId())),
+        new Update().inc("balanceAmount", new Decimal128(BigDecimal.valueOf(7.0))),
+        Account.class);
+    report = balanceReconciliation.reconcile();
+    mismatch = report.getMismatches().stream()
+        .filter(m -> emptyBan.equals(m.getBankAccountNumber())).findFirst().orElseThrow();
+    assertEquals(0, BigDecimal.ZERO.compareTo(mismatch.getLedgerBalance()));
+    mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(emptyBa.getAccountId())),
+        new Update().inc("balanceAmount", new Decimal128(BigDecimal.valueOf(-7.0))),
+        Account.class);
+  }
+
+  @Test
+  void testMailDeduplication() {
+    LOGGER.debug("[testMailDeduplication] Test the removal of the mails used twice");
+    String mail = uniqueMail("dup.doe");
+    // Persons written by the previous versions, without the unique index of the mails
+    mongoTemplate.indexOps(Person.class).dropIndex("email");
+    Document first = new Document("_id", "CLI-DUP-" + UUID.randomUUID()).append("email", mail);
+    Document second = new Document("_id", "CLI-DUP-" + UUID.randomUUID()).append("email", mail);
+    mongoTemplate.getCollection("persons").insertMany(List.of(first, second));
+
+    // Reported without modification by default
+    assertTrue(dataMigrations.reportDuplicateMails() >= 1);
+    assertEquals(2,
+        mongoTemplate.count(Query.query(Criteria.where("email").is(mail)), Person.class));
+
+    assertTrue(dataMigrations.deduplicateMails() >= 1);
+    assertEquals(0, dataMigrations.reportDuplicateMails());
+    dataMigrations.createMailIndex();
+    assertEquals(1,
+        mongoTemplate.count(Query.query(Criteria.where("email").is(mail)), Person.class));
+    assertTrue(mongoTemplate.indexOps(Person.class).getIndexInfo().stream()
+        .anyMatch(index -> "email".equals(index.getName()) && index.isUnique()));
+    assertNull(persistenceServices.createNewPerson("DOE", "Dup", mail));
+  }
+
+  @Test
+  void testIdempotencyTakeOver() {
+    LOGGER.debug("[testIdempotencyTakeOver] Test the take over of the expired idempotency keys");
+    String key = "takeover-" + UUID.randomUUID();
+    assertNull(idempotencyStore.claim(key, "POST /createDeposit amount=10"));
+    // Pending record of an instance stopped before the end of the lease
+    mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(key)),
+        new Update().set("createdAt", new Date(System.currentTimeMillis() - 3_600_000L)),
+        IdempotencyRecord.class);
+
+    // A key reused for another request keeps the fingerprint of the first one
+    IdempotencyRecord existing = idempotencyStore.claim(key, "POST /createDeposit amount=20");
+    assertNotNull(existing);
+    assertEquals("POST /createDeposit amount=10", existing.getRequest());
+    // The same request takes the key over
+    assertNull(idempotencyStore.claim(key, "POST /createDeposit amount=10"));
+  }
+
+  @Test
+  void testAmountMigration() {
+    LOGGER.debug("[testAmountMigration] Test the migration of the amounts stored as strings");
+    String personId = persistenceServices.createNewPerson("DOE", "Jean", uniqueMail("jean.doe"));
+    String ban = persistenceServices.createNewBankAccount(personId);
+    Account ba = persistenceServices.findBankAccountByBAN(ban);
+    // Bank account and operation written by the previous versions, without the mapping
+    ObjectId accountId = new ObjectId(ba.getAccountId());
+    mongoTemplate.getCollection("accounts").updateOne(Filters.eq("_id", accountId),
+        Updates.combine(Updates.set("balanceAmount", "100.50"),
+            Updates.set("overdraftAmount", "0")));
+    Document legacyOp = new Document("accountId", ba.getAccountId())
+        .append("operationDate",
+            Date.from(LocalDate.now().atStartOfDay(ZoneId.systemDefault()).toInstant()))
+        .append("operationType", Constants.OPERATION_TYPE_DEPOSIT).append("amount", "100.50");
+    mongoTemplate.getCollection("operations").insertOne(legacyOp);
+    // The sums of the operations convert the amounts not migrated yet
+    assertEquals(0, new BigDecimal("100.50")
+        .compareTo(balanceCheckpointService.sumOperations(ba.getAccountId(), LocalDate.now())));
+
+    assertTrue(dataMigrations.migrateAmounts() >= 3);
+    assertTrue(mongoTemplate.getCollection("accounts").find(Filters.eq("_id", accountId))
+        .first().get("balanceAmount") instanceof Decimal128);
+    assertTrue(mongoTemplate.getCollection("operations")
+        .find(Filters.eq("_id", legacyOp.getObjectId("_id"))).first()
+        .get("amount") instanceof Decimal128);
+    // The guard of the withdraw compares the migrated balance as a number
+    assertTrue(!persistenceServices.createNewBankingOperation(ba, LocalDate.now(),
+        Constants.OPERATION_TYPE_WITHDRAW, BigDecimal.valueOf(50.0)).startsWith("-"));
+    assertEquals(0, BigDecimal.valueOf(50.50).compareTo(ba.getBalanceAmount()));
+  }
+
   @Test
   void testOverdraftServices() {
     LOGGER.debug("[testOverdraftServices] Test overdraft Services");
-    String personId = persistenceServices.createNewPerson("BARBIE", "Ken", "ken.barbie@gmail.com");
+    String personId =
+        persistenceServices.createNewPerson("BARBIE", "Ken", uniqueMail("ken.barbie"));
     String ban = persistenceServices.createNewBankAccount(personId);
     Account ba = persistenceServices.findBankAccountByBAN(ban);
     persistenceServices.createOverdraft(ba, BigDecimal.valueOf(1500.0));
@@ -117,10 +675,57 @@ class PersistenceApplicationTests {
     assertTrue(ba.getOverdraftAmount().equals(BigDecimal.valueOf(1500.0)));
   }
 
+  @Test
+  void testOptimisticLockServices() {
+    LOGGER.debug("[testOptimisticLockServices] Test the version of the bank accounts");
+    String personId = persistenceServices.createNewPerson("BARBIE", "Ken", uniqueMail("ken.b"));
+    String ban = persistenceServices.createNewBankAccount(personId);
+    Account ba = persistenceServices.findBankAccountByBAN(ban);
+    Account staleBa = persistenceServices.findBankAccountByBAN(ban);
+    assertNotNull(ba.getVersion());
+    Long version = ba.getVersion();
+    persistenceServices.createNewBankingOperation(ba, LocalDate.now(),
+        Constants.OPERATION_TYPE_DEPOSIT, BigDecimal.valueOf(100.0));
+    assertEquals(version + 1, ba.getVersion());
+    // The overdraft is refused on the version read before the deposit
+    assertThrows(OptimisticLockingFailureException.class,
+        () -> persistenceServices.createOverdraft(staleBa, BigDecimal.valueOf(1500.0)));
+    persistenceServices.createOverdraft(ba, BigDecimal.valueOf(1500.0));
+    assertEquals(version + 2, ba.getVersion());
+    ba = persistenceServices.findBankAccountByBAN(ban);
+    assertEquals(0, BigDecimal.valueOf(100.0).compareTo(ba.getBalanceAmount()));
+    assertEquals(0, BigDecimal.valueOf(1500.0).compareTo(ba.getOverdraftAmount()));
+  }
+
+  @Test
+  void testOperationWriteBehind() throws Exception {
+    LOGGER.debug("[testOperationWriteBehind] Test the grouped inserts of the operations");
+    String personId = persistenceServices.createNewPerson("DOE", "Jack", uniqueMail("jack.doe"));
+    String ban = persistenceServices.createNewBankAccount(personId);
+    Account ba = persistenceServices.findBankAccountByBAN(ban);
+    OperationWriteBehind writeBehind =
+        new OperationWriteBehind(mongoTemplate, true, 10, Duration.ofMillis(20), false);
+    try {
+      List<CompletableFuture<String>> futures = new ArrayList<>();
+      for (int i = 0; i < 25; i++) {
+        futures.add(writeBehind.submit(new Operation(ba.getAccountId(), LocalDate.now(),
+            Constants.OPERATION_TYPE_DEPOSIT, BigDecimal.valueOf(1.0))));
+      }
+      for (CompletableFuture<String> future : futures) {
+        assertNotNull(future.get());
+      }
+      assertEquals(25, writeBehind.getInsertedOperations());
+      assertTrue(writeBehind.getFlushes() >= 3 && writeBehind.getFlushes() < 25);
+    } finally {
+      writeBehind.shutdown();
+    }
+    assertEquals(25, persistenceServices.findBankingOperationsOfBankAccount(ban).size());
+  }
+
   @Test
   void testSavingsServices() {
     LOGGER.debug("[testSavingsServices] Test savings Services");
-    String personId = persistenceServices.createNewPerson("BARBIE", "Ken", "ken89@gmail.com");
+    String personId = persistenceServices.createNewPerson("BARBIE", "Ken", uniqueMail("ken89"));
     String ban = persistenceServices.createSavingsAccount(personId);
     Account ba = persistenceServices.findBankAccountByBAN(ban);
     LOGGER.debug("[testSavingsServices] New saving account + " + ba.getBankAccountNumber()
@@ -128,5 +733,34 @@ class PersistenceApplicationTests {
     assertEquals(ba.getAccountType(), Constants.ACCOUNT_TYPE_SAVINGS);
   }
 
+  /**
+   * Pending transfer older than the recovery delay, without its writes
+   */
+  private PendingTransfer staleTransfer(Account fromBa, Account toBa, LocalDate date,
+      BigDecimal amount) {
+    PendingTransfer transfer = new PendingTransfer(new ObjectId().toHexString(), fromBa, toBa,
+        new ObjectId().toHexString(), new ObjectId().toHexString(), date, amount);
+    mongoTemplate.insert(transfer);
+    mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(transfer.getTransferId())),
+        new Update().set("createdAt", new Date(System.currentTimeMillis() - 3_600_000L)),
+        PendingTransfer.class);
+    return transfer;
+  }
 
+  /**
+   * Balance update of a transfer, as written before the interruption
+   */
+  private void applyTransfer(Account ba, PendingTransfer transfer, BigDecimal amount) {
+    mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(ba.getAccountId())),
+        new Update().inc("balanceAmount", new Decimal128(amount)).addToSet("transferIds",
+            transfer.getTransferId()),
+        Account.class);
+  }
+
+  /**
+   * Mail not used by the previous executions of the tests on the same DB
+   */
+  private static String uniqueMail(String name) {
+    return name + "." + UUID.randomUUID() + "@gmail.com";
+  }
 }
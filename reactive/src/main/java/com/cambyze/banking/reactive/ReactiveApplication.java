@@ -0,0 +1,20 @@
+package com.cambyze.banking.reactive;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+
+/**
+ * Spring boot application of the reactive APIs
+ * <p>
+ * Only the reactive beans are scanned: the blocking services of the other modules are not used
+ */
+@SpringBootApplication
+@EntityScan("com.cambyze.banking.persistence.model")
+public class ReactiveApplication {
+
+  public static void main(String[] args) {
+    SpringApplication.run(ReactiveApplication.class, args);
+  }
+
+}
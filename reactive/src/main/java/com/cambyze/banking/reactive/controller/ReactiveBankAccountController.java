@@ -0,0 +1,246 @@
+package com.cambyze.banking.reactive.controller;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import com.cambyze.banking.persistence.model.Account;
+import com.cambyze.banking.persistence.model.Constants;
+import com.cambyze.banking.persistence.model.OperationPage;
+import com.cambyze.banking.reactive.services.ReactiveBankingServices;
+import com.cambyze.banking.services.BatchOperationRequest;
+import com.cambyze.banking.services.BatchOperationResult;
+import com.cambyze.banking.services.MonthlyBankStatementOperation;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Reactive REST API controller for the management of the bank accounts
+ * <p>
+ * Same endpoints and same HTTP statuses as the blocking API
+ * </p>
+ * 
+ * @author CAMBYZE
+ * @see <a href="https://cambyze.com">Cambyze</a>
+ */
+@RestController
+public class ReactiveBankAccountController {
+
+  private static final Logger LOGGER =
+      LoggerFactory.getLogger(ReactiveBankAccountController.class);
+
+  private final ReactiveBankingServices bankingServices;
+
+  public ReactiveBankAccountController(ReactiveBankingServices bankingServices) {
+    this.bankingServices = bankingServices;
+  }
+
+  private static ResponseStatusException functionalException(String returnCode) {
+    switch (returnCode) {
+      case Constants.BANK_ACCOUNT_NOT_EXISTS:
+        return new ResponseStatusException(HttpStatus.NOT_FOUND,
+            "The bank account does not exist");
+      case Constants.INVALID_AMOUNT:
+        return new ResponseStatusException(HttpStatus.BAD_REQUEST, "The amount is invalid");
+      case Constants.INVALID_BANK_ACCOUNT:
+        return new ResponseStatusException(HttpStatus.BAD_REQUEST, "The bank account is invalid");
+      case Constants.INVALID_DATE:
+        return new ResponseStatusException(HttpStatus.BAD_REQUEST, "The date is invalid");
+      case Constants.INVALID_OPERATION_TYPE:
+        return new ResponseStatusException(HttpStatus.BAD_REQUEST,
+            "The operation type is invalid");
+      case Constants.OVERDRAFT_FORBID_SAVINGS_ACC:
+        return new ResponseStatusException(HttpStatus.BAD_REQUEST,
+            "Overdraft are forbidden for savings account");
+      case Constants.INSUFFICIENT_BALANCE:
+        return new ResponseStatusException(HttpStatus.BAD_REQUEST,
+            "No sufficient balance for the operation");
+      case Constants.SAVINGS_LIMIT_REACHED:
+        return new ResponseStatusException(HttpStatus.BAD_REQUEST,
+            "The limit of the savings account is reached");
+      default:
+        return new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Technical error");
+    }
+  }
+
+  private static ResponseStatusException technicalException(String msg) {
+    LOGGER.error(msg);
+    return new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, msg);
+  }
+
+  private static BigDecimal parseAmount(String amount) {
+    try {
+      // Parsed as a decimal number to avoid the floating-point drift
+      return new BigDecimal(amount.trim());
+    } catch (NumberFormatException e) {
+      throw technicalException("Invalid amount: " + e.getMessage());
+    }
+  }
+
+  @Operation(summary = "Create a bank account",
+      description = "Create a bank account and return its bank account number",
+      parameters = {
+          @Parameter(required = true, description = "Person id", example = "CLI-00000001")})
+  @PostMapping("/createBankAccount")
+  public Mono<String> createBankAccount(@RequestParam(value = "personId") String personId) {
+    return bankingServices.createNewBankAccount(personId)
+        .switchIfEmpty(Mono.error(
+            () -> technicalException("Technical pb when creating a new bank account")))
+        .doOnNext(ban -> LOGGER.info("New created account: {}", ban));
+  }
+
+  @Operation(summary = "Create a savings account",
+      description = "Create a savings account and return its bank account number",
+      parameters = {
+          @Parameter(required = true, description = "Person id", example = "CLI-00000001")})
+  @PostMapping("/createSavingsAccount")
+  public Mono<String> createSavingsAccount(@RequestParam("personId") String personId) {
+    return bankingServices.createNewSavingsAccount(personId)
+        .switchIfEmpty(Mono.error(
+            () -> technicalException("Technical pb when creating a new savings account")))
+        .doOnNext(ban -> LOGGER.info("New created savings account: {} ", ban));
+  }
+
+  @Operation(summary = "Create a deposit in a bank account",
+      description = "Create the deposit in the bank account and return its new balance",
+      parameters = {
+          @Parameter(required = true, description = "Bank Account Number",
+              example = "CAMBYZEBANK-2"),
+          @Parameter(required = true, description = "Deposit amount", example = "120.26")})
+  @PostMapping("/createDeposit")
+  public Mono<BigDecimal> createDeposit(@RequestParam(value = "ban") String ban,
+      @RequestParam(value = "amount") String amount) {
+    return bankingServices.createDeposit(ban, parseAmount(amount))
+        .flatMap(response -> Constants.SERVICE_OK.equals(response.getReturnCode())
+            ? Mono.justOrEmpty(response.getNewBalance())
+            : Mono.error(functionalException(response.getReturnCode())));
+  }
+
+  @Operation(summary = "Create a withdraw in a bank account",
+      description = "Create the withdraw in the bank account and return its new balance",
+      parameters = {
+          @Parameter(required = true, description = "Bank Account Number",
+              example = "CAMBYZEBANK-2"),
+          @Parameter(required = true, description = "Withdraw amount", example = "120.26")})
+  @PostMapping("/createWithdraw")
+  public Mono<BigDecimal> createWithdraw(@RequestParam(value = "ban") String ban,
+      @RequestParam(value = "amount") String amount) {
+    return bankingServices.createWithdraw(ban, parseAmount(amount))
+        .flatMap(response -> Constants.SERVICE_OK.equals(response.getReturnCode())
+            ? Mono.justOrEmpty(response.getNewBalance())
+            : Mono.error(functionalException(response.getReturnCode())));
+  }
+
+  @Operation(summary = "Request an overdraft for a bank account",
+      description = "Create the overdraft amount in the bank account and return its value",
+      parameters = {@Parameter(required = true, description = "Bank Account Number",
+          example = "CAMBYZEBANK-2")})
+  @PostMapping("/requestOverdraft")
+  public Mono<BigDecimal> requestOverdraft(@RequestParam(value = "ban") String ban) {
+    return bankingServices.askOverdraft(ban)
+        .flatMap(response -> Constants.SERVICE_OK.equals(response.getReturnCode())
+            ? Mono.justOrEmpty(response.getOverdraftAmount())
+            : Mono.error(functionalException(response.getReturnCode())));
+  }
+
+  @Operation(summary = "Create a batch of deposits and withdraws",
+      description = "Create the deposits and withdraws of several bank accounts in one call and "
+          + "return the result of each operation in the same order. At most 1000 operations by "
+          + "call")
+  @PostMapping("/createOperations")
+  public Flux<BatchOperationResult> createOperations(
+      @RequestBody List<BatchOperationRequest> operations) {
+    if (operations == null || operations.isEmpty()) {
+      return Flux.empty();
+    }
+    if (operations.size() > Constants.MAX_BATCH_SIZE) {
+      return Flux.error(new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+          "A batch contains at most " + Constants.MAX_BATCH_SIZE + " operations"));
+    }
+    return bankingServices.createOperations(operations);
+  }
+
+  @Operation(summary = "Stream the operations of the monthly bank statement",
+      description = "Stream the operations of the last month, the most recent first, as soon as "
+          + "they are read in the DB (application/x-ndjson) or as a JSON array",
+      parameters = {@Parameter(required = true, description = "Bank Account Number",
+          example = "CAMBYZEBANK-2")})
+  @GetMapping(value = "/monthlyBankStatement",
+      produces = {MediaType.APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_JSON_VALUE})
+  public Flux<MonthlyBankStatementOperation> calculateMonthlyBankStatement(
+      @RequestParam(value = "ban") String ban) {
+    return bankingServices.createMonthlyBankStatement(ban);
+  }
+
+  @Operation(summary = "Send a page of the history of the operations",
+      description = "Send the operations of the bank account, the most recent first, by pages. "
+          + "The next page is requested with the date and the id of the last operation of the "
+          + "previous page")
+  @GetMapping("/operationHistory")
+  public Mono<OperationPage> operationHistory(@RequestParam(value = "ban") String ban,
+      @RequestParam(value = "afterDate", required = false) String afterDate,
+      @RequestParam(value = "afterId", required = false) String afterId,
+      @RequestParam(value = "size", defaultValue = "50") int size) {
+    LocalDate lastDate = null;
+    if (afterDate != null && !afterDate.isEmpty()) {
+      try {
+        lastDate = LocalDate.parse(afterDate);
+      } catch (DateTimeParseException e) {
+        return Mono.error(functionalException(Constants.INVALID_DATE));
+      }
+    }
+    return bankingServices.findOperationHistory(ban, lastDate, afterId, size);
+  }
+
+  @Operation(summary = "Create a new Person",
+      description = "Create a new person with a bank account and return its id",
+      parameters = {
+          @Parameter(name = "name", required = true, description = "Last name of the person",
+              example = "Doe"),
+          @Parameter(name = "firstName", required = true,
+              description = "First name of the person", example = "John"),
+          @Parameter(name = "mail", required = true, description = "Email address of the person",
+              example = "john.doe@example.com")})
+  @PostMapping("/createPerson")
+  public Mono<String> createPerson(@RequestParam(value = "name") String name,
+      @RequestParam(value = "firstName") String firstName,
+      @RequestParam(value = "mail") String mail) {
+    return bankingServices.createPerson(name, firstName, mail)
+        .switchIfEmpty(
+            Mono.error(() -> technicalException("Technical pb when creating a new Person")))
+        .doOnNext(per -> LOGGER.info("New created Person: {}", per));
+  }
+
+  @Operation(summary = "Send if the user is logged",
+      parameters = {@Parameter(required = true, description = "login mail",
+          example = "user.mail")})
+  @PostMapping("/login")
+  public Mono<Boolean> login(@RequestParam(value = "mail") String mail) {
+    if (mail == null || mail.isEmpty()) {
+      LOGGER.error("MSG : mail field was empty");
+      return Mono.just(false);
+    }
+    return bankingServices.login(mail);
+  }
+
+  @Operation(summary = "send all account for a Person",
+      description = "Send a list of all account linked to Person by personId",
+      parameters = {@Parameter(required = true, description = "Person id",
+          example = "CLI-00000000")})
+  @GetMapping("/findBanByPerson")
+  public Flux<Account> findBanByPerson(@RequestParam(value = "personId") String personId) {
+    return bankingServices.findBanByPerson(personId);
+  }
+}
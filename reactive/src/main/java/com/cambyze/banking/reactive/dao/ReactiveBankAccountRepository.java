@@ -0,0 +1,15 @@
+package com.cambyze.banking.reactive.dao;
+
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import com.cambyze.banking.persistence.model.Account;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Reactive CRUD for the entity Bank Account with auto-generated methods
+ */
+public interface ReactiveBankAccountRepository extends ReactiveMongoRepository<Account, String> {
+  Mono<Account> findByBankAccountNumber(String bankAccountNumber);
+
+  Flux<Account> findByPersonId(String personId);
+}
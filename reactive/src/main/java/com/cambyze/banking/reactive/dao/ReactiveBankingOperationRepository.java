@@ -0,0 +1,22 @@
+package com.cambyze.banking.reactive.dao;
+
+import java.time.LocalDate;
+import org.springframework.data.mongodb.repository.Query;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import com.cambyze.banking.persistence.model.Operation;
+import reactor.core.publisher.Flux;
+
+/**
+ * Reactive CRUD for the entity Operation with auto-generated methods
+ */
+public interface ReactiveBankingOperationRepository
+    extends ReactiveMongoRepository<Operation, String> {
+
+  /**
+   * Operations of a bank account between two dates (included), the most recent first
+   */
+  @Query(value = "{ 'accountId': ?0, 'operationDate': { $gte: ?1, $lte: ?2 } }",
+      sort = "{ 'operationDate': -1, '_id': -1 }")
+  Flux<Operation> findByAccountIdAndOperationDateRange(String accountId, LocalDate fromDate,
+      LocalDate toDate);
+}
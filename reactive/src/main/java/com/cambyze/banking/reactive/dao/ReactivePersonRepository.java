@@ -0,0 +1,12 @@
+package com.cambyze.banking.reactive.dao;
+
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import com.cambyze.banking.persistence.model.Person;
+import reactor.core.publisher.Flux;
+
+/**
+ * Reactive CRUD for the entity Person with auto-generated methods
+ */
+public interface ReactivePersonRepository extends ReactiveMongoRepository<Person, String> {
+  Flux<Person> findByEmail(String email);
+}
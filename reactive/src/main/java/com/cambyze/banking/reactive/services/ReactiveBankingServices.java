@@ -0,0 +1,388 @@
+package com.cambyze.banking.reactive.services;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+import com.cambyze.banking.persistence.model.Account;
+import com.cambyze.banking.persistence.model.BalanceCheckpoint;
+import com.cambyze.banking.persistence.model.Constants;
+import com.cambyze.banking.persistence.model.Operation;
+import com.cambyze.banking.persistence.model.OperationPage;
+import com.cambyze.banking.persistence.model.Person;
+import com.cambyze.banking.persistence.services.BalanceUpdates;
+import com.cambyze.banking.persistence.services.OperationChecks;
+import com.cambyze.banking.reactive.dao.ReactiveBankAccountRepository;
+import com.cambyze.banking.reactive.dao.ReactiveBankingOperationRepository;
+import com.cambyze.banking.reactive.dao.ReactivePersonRepository;
+import com.cambyze.banking.services.AskOverdraftResponse;
+import com.cambyze.banking.services.BankingServices;
+import com.cambyze.banking.services.BatchOperationRequest;
+import com.cambyze.banking.services.BatchOperationResult;
+import com.cambyze.banking.services.CreateDepositResponse;
+import com.cambyze.banking.services.CreateWithdrawResponse;
+import com.cambyze.banking.services.MonthlyBankStatementOperation;
+import com.cambyze.banking.services.tools.Money;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+/**
+ * Reactive version of BankingServices, with the same rules and the same return codes
+ * <p>
+ * The balance and the daily checkpoint are updated with the same atomic updates as the blocking
+ * services, so the blocking and the reactive APIs can be used on the same DB
+ * </p>
+ */
+@Service
+public class ReactiveBankingServices {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReactiveBankingServices.class);
+
+  private static final FindAndModifyOptions RETURN_NEW =
+      FindAndModifyOptions.options().returnNew(true);
+
+  private final ReactiveBankAccountRepository bankAccountRepository;
+
+  private final ReactiveBankingOperationRepository bankingOperationRepository;
+
+  private final ReactivePersonRepository personRepository;
+
+  private final ReactiveSequenceGenerator sequenceGenerator;
+
+  private final ReactiveMongoTemplate mongoTemplate;
+
+  public ReactiveBankingServices(ReactiveBankAccountRepository bankAccountRepository,
+      ReactiveBankingOperationRepository bankingOperationRepository,
+      ReactivePersonRepository personRepository, ReactiveSequenceGenerator sequenceGenerator,
+      ReactiveMongoTemplate mongoTemplate) {
+    this.bankAccountRepository = bankAccountRepository;
+    this.bankingOperationRepository = bankingOperationRepository;
+    this.personRepository = personRepository;
+    this.sequenceGenerator = sequenceGenerator;
+    this.mongoTemplate = mongoTemplate;
+  }
+
+  /**
+   * Create a new bank account
+   * 
+   * @param personId id of the owner
+   * @return its BAN, empty if the person does not exist
+   */
+  public Mono<String> createNewBankAccount(String personId) {
+    return createAccount(personId, Constants.ACCOUNT_TYPE_BANK);
+  }
+
+  /**
+   * Create a new savings account
+   * 
+   * @param personId id of the owner
+   * @return its BAN, empty if the person does not exist
+   */
+  public Mono<String> createNewSavingsAccount(String personId) {
+    return createAccount(personId, Constants.ACCOUNT_TYPE_SAVINGS);
+  }
+
+  private Mono<String> createAccount(String personId, String accountType) {
+    if (personId == null) {
+      return Mono.empty();
+    }
+    return personRepository.findById(Person.normalizeId(personId))
+        .flatMap(per -> insertAccount(per.getId(), accountType))
+        .doOnNext(ban -> LOGGER.debug("New BAN: {}", ban));
+  }
+
+  private Mono<String> insertAccount(String personId, String accountType) {
+    return sequenceGenerator.getNextSequence("bank_account_number").flatMap(seq -> {
+      Account ba = new Account(personId);
+      ba.setBankAccountNumber(String.format("CAMBYZEBANK-%08d", seq));
+      ba.setAccountType(accountType);
+      return bankAccountRepository.insert(ba);
+    }).map(Account::getBankAccountNumber);
+  }
+
+  /**
+   * Create a deposit on a bank account for operation date = today
+   * 
+   * @param ban the Bank Account Number
+   * @param amount the amount of the deposit
+   * @return the new balance else null and the return code
+   */
+  public Mono<CreateDepositResponse> createDeposit(String ban, BigDecimal amount) {
+    return createOperation(ban, Constants.OPERATION_TYPE_DEPOSIT, amount, LocalDate.now())
+        .map(result -> new CreateDepositResponse(result.newBalance, result.returnCode));
+  }
+
+  /**
+   * Create a withdraw on a bank account for operation date = today
+   * 
+   * @param ban the Bank Account Number
+   * @param amount the amount of the withdraw
+   * @return the new balance else null and the return code
+   */
+  public Mono<CreateWithdrawResponse> createWithdraw(String ban, BigDecimal amount) {
+    return createOperation(ban, Constants.OPERATION_TYPE_WITHDRAW, amount, LocalDate.now())
+        .map(result -> new CreateWithdrawResponse(result.newBalance, result.returnCode));
+  }
+
+  /**
+   * Create deposits and withdraws on several bank accounts, one after the other in the order of
+   * the list
+   * 
+   * @param requests the operations to create, the date of the day is used when no date is given
+   * @return the result of each operation in the same order as the requests
+   */
+  public Flux<BatchOperationResult> createOperations(List<BatchOperationRequest> requests) {
+    return Flux.fromIterable(requests).concatMap(request -> createOperation(request.getBan(),
+        request.getOperationType(), request.getAmount(),
+        request.getOperationDate() != null ? request.getOperationDate() : LocalDate.now())
+        .map(result -> new BatchOperationResult(request.getBan(), result.returnCode,
+            result.operationId)));
+  }
+
+  /**
+   * Check then create an operation with the atomic update of the balance
+   * <p>
+   * The operation is checked with the same rules as the blocking services and the update of the
+   * balance is cancelled if the insert of the operation fails
+   * </p>
+   */
+  private Mono<OperationResult> createOperation(String ban, String opType, BigDecimal amount,
+      LocalDate opDate) {
+    // Round to two decimals, null (invalid amount) if too large
+    BigDecimal roundedAmount = Money.round(amount);
+    String errorCode = OperationChecks.check(opDate, opType, roundedAmount);
+    if (errorCode != null) {
+      return Mono.just(OperationResult.error(errorCode));
+    }
+    boolean deposit = Constants.OPERATION_TYPE_DEPOSIT.equals(opType);
+    BigDecimal signedAmount = deposit ? roundedAmount : roundedAmount.negate();
+
+    return findBankAccountByBAN(ban)
+        .flatMap(ba -> mongoTemplate
+            .findAndModify(BalanceUpdates.incrementQuery(ba, signedAmount),
+                BalanceUpdates.incrementUpdate(signedAmount), RETURN_NEW, Account.class)
+            .flatMap(updatedBa -> bankingOperationRepository
+                .insert(new Operation(ba.getAccountId(), opDate, opType, roundedAmount))
+                .flatMap(op -> recordCheckpoint(ba, opDate, signedAmount).thenReturn(op))
+                .map(op -> new OperationResult(Constants.SERVICE_OK,
+                    updatedBa.getBalanceAmount(), op.getId()))
+                .onErrorResume(DataAccessException.class,
+                    e -> revertIncrement(ba, signedAmount, e)))
+            .defaultIfEmpty(OperationResult.error(
+                deposit ? Constants.SAVINGS_LIMIT_REACHED : Constants.INSUFFICIENT_BALANCE)))
+        .defaultIfEmpty(OperationResult.error(Constants.BANK_ACCOUNT_NOT_EXISTS))
+        .doOnNext(result -> LOGGER.debug("Operation {} on the BAN {}: {}", opType, ban,
+            result.returnCode));
+  }
+
+  /**
+   * Cancel the update of the balance of an operation not inserted
+   * <p>
+   * A balance which can not be cancelled is logged and found by the reconciliation of the balances
+   * </p>
+   */
+  private Mono<OperationResult> revertIncrement(Account ba, BigDecimal signedAmount,
+      DataAccessException cause) {
+    LOGGER.error("Operation not created, the insert failed for the BAN: {}: {}",
+        ba.getBankAccountNumber(), cause.getMessage());
+    return mongoTemplate
+        .updateFirst(Query.query(Criteria.where("_id").is(ba.getAccountId())),
+            BalanceUpdates.incrementUpdate(signedAmount.negate()), Account.class)
+        .onErrorResume(e -> {
+          LOGGER.error("Increment of {} not cancelled on the BAN {}: the balance is different from"
+              + " its operations", signedAmount, ba.getBankAccountNumber(), e);
+          return Mono.empty();
+        })
+        .thenReturn(OperationResult.error(Constants.TECHNICAL_ERROR));
+  }
+
+  /**
+   * Add an inserted operation to the daily checkpoint of its bank account
+   * <p>
+   * A checkpoint which can not be updated is logged, the operation is inserted and its checkpoint
+   * is rebuilt by the backfill of the next start of the blocking applications
+   * </p>
+   */
+  private Mono<Void> recordCheckpoint(Account ba, LocalDate opDate, BigDecimal signedAmount) {
+    return mongoTemplate
+        .upsert(BalanceUpdates.checkpointQuery(ba.getAccountId(), opDate),
+            BalanceUpdates.checkpointUpdate(ba.getAccountId(), opDate, signedAmount, 1),
+            BalanceCheckpoint.class)
+        .then().onErrorResume(e -> {
+          LOGGER.error("Checkpoint of the BAN {} not updated on {}", ba.getBankAccountNumber(),
+              opDate, e);
+          return Mono.empty();
+        });
+  }
+
+  /**
+   * Request for an overdraft
+   * <p>
+   * The bank account is updated only if it has not been modified since it has been read, else the
+   * request is executed again after a random pause
+   * </p>
+   * 
+   * @param ban the Bank Account Number
+   * @return the authorized overdraft amount else null and the return code
+   */
+  public Mono<AskOverdraftResponse> askOverdraft(String ban) {
+    BigDecimal overdraftAmount = Money.of(Constants.OVERDRAFT_AMOUNT).toBigDecimal();
+    return findBankAccountByBAN(ban).flatMap(ba -> {
+      if (Constants.ACCOUNT_TYPE_SAVINGS.equals(ba.getAccountType())) {
+        return Mono.just(new AskOverdraftResponse(null, Constants.OVERDRAFT_FORBID_SAVINGS_ACC));
+      }
+      return mongoTemplate
+          .findAndModify(BalanceUpdates.versionQuery(ba),
+              BalanceUpdates.overdraftUpdate(overdraftAmount), RETURN_NEW, Account.class)
+          .map(updatedBa -> new AskOverdraftResponse(updatedBa.getOverdraftAmount(),
+              Constants.SERVICE_OK))
+          .switchIfEmpty(Mono.error(() -> new OptimisticLockingFailureException(
+              "The bank account " + ban + " has been modified since its version "
+                  + ba.getVersion())));
+    }).defaultIfEmpty(new AskOverdraftResponse(null, Constants.BANK_ACCOUNT_NOT_EXISTS))
+        .retryWhen(Retry.backoff(4, Duration.ofMillis(5))
+            .filter(OptimisticLockingFailureException.class::isInstance))
+        .onErrorResume(Exceptions::isRetryExhausted, e -> {
+          LOGGER.error("Overdraft not created for the BAN: {} because of concurrent updates", ban);
+          return Mono.just(new AskOverdraftResponse(null, Constants.TECHNICAL_ERROR));
+        });
+  }
+
+  /**
+   * Operations of the last month of a bank account, the most recent first, as they are read
+   * 
+   * @param ban the Bank Account Number
+   * @return the operations, empty if the bank account does not exist
+   */
+  public Flux<MonthlyBankStatementOperation> createMonthlyBankStatement(String ban) {
+    LocalDate limDate = LocalDate.now().minusMonths(1);
+    return findBankAccountByBAN(ban)
+        .flatMapMany(ba -> bankingOperationRepository.findByAccountIdAndOperationDateRange(
+            ba.getAccountId(), limDate.plusDays(1), Constants.MAX_OPERATION_DATE))
+        .map(MonthlyBankStatementOperation::new);
+  }
+
+  /**
+   * Page of the history of the operations of a bank account, the most recent first
+   * 
+   * @param ban the Bank Account Number
+   * @param afterDate date of the last operation of the previous page, null for the first page
+   * @param afterId id of the last operation of the previous page, null for the first page
+   * @param size maximum number of operations of the page, at most Constants.MAX_PAGE_SIZE
+   * @return the page of operations with the cursor of the next page
+   */
+  public Mono<OperationPage> findOperationHistory(String ban, LocalDate afterDate, String afterId,
+      int size) {
+    if (size <= 0) {
+      return Mono.just(new OperationPage(List.of(), null, null));
+    }
+    int pageSize = Math.min(size, Constants.MAX_PAGE_SIZE);
+    return findBankAccountByBAN(ban).flatMap(ba -> {
+      Criteria criteria = Criteria.where("accountId").is(ba.getAccountId());
+      if (afterDate != null && afterId != null) {
+        criteria = criteria.orOperator(Criteria.where("operationDate").lt(afterDate),
+            Criteria.where("operationDate").is(afterDate).and("_id").lt(afterId));
+      }
+      // One more operation is read to know if there is a next page
+      Query query = Query.query(criteria)
+          .with(Sort.by(Sort.Direction.DESC, "operationDate", "_id")).limit(pageSize + 1);
+      return mongoTemplate.find(query, Operation.class).collectList();
+    }).map(operations -> {
+      if (operations.size() > pageSize) {
+        List<Operation> page = operations.subList(0, pageSize);
+        Operation last = page.get(pageSize - 1);
+        return new OperationPage(page, last.getOperationDate(), last.getId());
+      }
+      return new OperationPage(operations, null, null);
+    }).defaultIfEmpty(new OperationPage(List.of(), null, null));
+  }
+
+  /**
+   * Create a person with a bank account
+   * <p>
+   * The mail already used is refused by the unique index of the mails, created in the shared DB by
+   * the DataMigrations of the blocking applications
+   * </p>
+   * 
+   * @return the id of the person, empty if the mail is invalid or already used
+   */
+  public Mono<String> createPerson(String name, String firstName, String email) {
+    if (email == null || !BankingServices.isValidEmail(email)) {
+      LOGGER.debug("EMAIL IS NOT VALIDE");
+      return Mono.empty();
+    }
+    // The mail already in use is refused by the unique index on the mail
+    return sequenceGenerator.getNextSequence("person").flatMap(seq -> {
+      Person per = new Person();
+      per.setId(String.format("CLI-%08d", seq));
+      per.setName(name);
+      per.setFirstName(firstName);
+      per.setEmail(email);
+      return personRepository.insert(per);
+    }).onErrorResume(DuplicateKeyException.class, e -> {
+      LOGGER.debug("this mail is already in use: {}  {}  {}", email, name, firstName);
+      return Mono.empty();
+    }).flatMap(per -> insertAccount(per.getPersonId(), Constants.ACCOUNT_TYPE_BANK)
+        // The person is removed if its bank account can't be inserted
+        .onErrorResume(e -> personRepository.delete(per).then(Mono.error(e)))
+        .thenReturn(per.getPersonId()));
+  }
+
+  /**
+   * Check if a person exists with the mail
+   */
+  public Mono<Boolean> login(String mail) {
+    if (mail == null) {
+      return Mono.just(false);
+    }
+    return personRepository.findByEmail(mail).next().map(per -> mail.equals(per.getEmail()))
+        .defaultIfEmpty(false);
+  }
+
+  /**
+   * Bank accounts of a person
+   */
+  public Flux<Account> findBanByPerson(String personId) {
+    if (personId == null || personId.isEmpty()) {
+      return Flux.empty();
+    }
+    return bankAccountRepository.findByPersonId(Person.normalizeId(personId));
+  }
+
+  private Mono<Account> findBankAccountByBAN(String ban) {
+    return ban != null ? bankAccountRepository.findByBankAccountNumber(Account.normalizeBan(ban))
+        : Mono.empty();
+  }
+
+  /**
+   * Result of the creation of an operation
+   */
+  private static class OperationResult {
+    private final String returnCode;
+    private final BigDecimal newBalance;
+    private final String operationId;
+
+    OperationResult(String returnCode, BigDecimal newBalance, String operationId) {
+      this.returnCode = returnCode;
+      this.newBalance = newBalance;
+      this.operationId = operationId;
+    }
+
+    static OperationResult error(String returnCode) {
+      return new OperationResult(returnCode, null, null);
+    }
+  }
+}
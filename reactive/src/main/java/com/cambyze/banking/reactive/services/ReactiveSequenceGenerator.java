@@ -0,0 +1,35 @@
+package com.cambyze.banking.reactive.services;
+
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import com.cambyze.banking.persistence.model.Counter;
+import reactor.core.publisher.Mono;
+
+/**
+ * Reactive generator of sequences
+ * <p>
+ * One value is reserved by DB access on the same counters as the blocking APIs: a value after the
+ * blocks reserved by the blocking nodes is never one of their values
+ */
+@Service
+public class ReactiveSequenceGenerator {
+
+  private final ReactiveMongoTemplate mongoTemplate;
+
+  public ReactiveSequenceGenerator(ReactiveMongoTemplate mongoTemplate) {
+    this.mongoTemplate = mongoTemplate;
+  }
+
+  public Mono<Long> getNextSequence(String key) {
+    return mongoTemplate
+        .findAndModify(Query.query(Criteria.where("_id").is(key)), new Update().inc("seq", 1),
+            FindAndModifyOptions.options().returnNew(true).upsert(true), Counter.class)
+        .map(Counter::getSeq)
+        .switchIfEmpty(Mono.error(
+            () -> new IllegalStateException("Failed to generate sequence for key: " + key)));
+  }
+}
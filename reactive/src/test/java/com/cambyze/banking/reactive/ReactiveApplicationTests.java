@@ -0,0 +1,108 @@
+package com.cambyze.banking.reactive;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import com.cambyze.banking.persistence.model.Account;
+import com.cambyze.banking.persistence.model.BalanceCheckpoint;
+import com.cambyze.banking.persistence.model.Constants;
+import com.cambyze.banking.reactive.services.ReactiveBankingServices;
+import com.cambyze.banking.services.BatchOperationRequest;
+import com.cambyze.banking.services.BatchOperationResult;
+import reactor.test.StepVerifier;
+
+@SpringBootTest
+class ReactiveApplicationTests {
+
+  @Autowired
+  private ReactiveBankingServices bankingServices;
+
+  @Autowired
+  private ReactiveMongoTemplate mongoTemplate;
+
+  @Test
+  void testReactiveBankingServices() {
+    String mail = "ghopper." + UUID.randomUUID() + "@mail.com";
+    String perId = bankingServices.createPerson("Grace", "Hopper", mail).block();
+    assertNotNull(perId);
+    String ban = bankingServices.createNewBankAccount(perId).block();
+    assertNotNull(ban);
+
+    StepVerifier.create(bankingServices.createDeposit(ban, BigDecimal.valueOf(100.0)))
+        .assertNext(response -> {
+          assertEquals(Constants.SERVICE_OK, response.getReturnCode());
+          assertEquals(0, BigDecimal.valueOf(100.0).compareTo(response.getNewBalance()));
+        }).verifyComplete();
+    StepVerifier.create(bankingServices.createWithdraw(ban, BigDecimal.valueOf(150.0)))
+        .assertNext(
+            response -> assertEquals(Constants.INSUFFICIENT_BALANCE, response.getReturnCode()))
+        .verifyComplete();
+    StepVerifier.create(bankingServices.createWithdraw(ban, BigDecimal.ZERO))
+        .assertNext(response -> assertEquals(Constants.INVALID_AMOUNT, response.getReturnCode()))
+        .verifyComplete();
+    // Same check of the amount as the blocking services
+    StepVerifier.create(bankingServices.createDeposit(ban, BigDecimal.valueOf(0.5)))
+        .assertNext(response -> assertEquals(Constants.INVALID_AMOUNT, response.getReturnCode()))
+        .verifyComplete();
+    StepVerifier.create(bankingServices.askOverdraft(ban))
+        .assertNext(response -> assertEquals(Constants.SERVICE_OK, response.getReturnCode()))
+        .verifyComplete();
+    StepVerifier.create(bankingServices.createWithdraw(ban, BigDecimal.valueOf(150.0)))
+        .assertNext(response -> {
+          assertEquals(Constants.SERVICE_OK, response.getReturnCode());
+          assertEquals(0, BigDecimal.valueOf(-50.0).compareTo(response.getNewBalance()));
+        }).verifyComplete();
+    StepVerifier.create(bankingServices.createDeposit("CAMBYZEBANK-UNKNOWN", BigDecimal.ONE))
+        .assertNext(
+            response -> assertEquals(Constants.BANK_ACCOUNT_NOT_EXISTS, response.getReturnCode()))
+        .verifyComplete();
+
+    // The operations of the month are streamed, the most recent first
+    StepVerifier.create(bankingServices.createMonthlyBankStatement(ban)).expectNextCount(2)
+        .verifyComplete();
+
+    // Savings account: no overdraft and the batch is executed in the order of the list
+    String savingsBan = bankingServices.createNewSavingsAccount(perId).block();
+    StepVerifier.create(bankingServices.askOverdraft(savingsBan))
+        .assertNext(response -> assertEquals(Constants.OVERDRAFT_FORBID_SAVINGS_ACC,
+            response.getReturnCode()))
+        .verifyComplete();
+    List<BatchOperationRequest> requests = new ArrayList<>();
+    requests.add(new BatchOperationRequest(savingsBan,
+        Constants.OPERATION_TYPE_DEPOSIT, BigDecimal.valueOf(4000.0)));
+    requests.add(new BatchOperationRequest(savingsBan,
+        Constants.OPERATION_TYPE_DEPOSIT, BigDecimal.valueOf(2000.0)));
+    requests.add(new BatchOperationRequest(savingsBan,
+        Constants.OPERATION_TYPE_WITHDRAW, BigDecimal.valueOf(1000.0)));
+    StepVerifier
+        .create(bankingServices.createOperations(requests).map(BatchOperationResult::getReturnCode))
+        .expectNext(Constants.SERVICE_OK, Constants.SAVINGS_LIMIT_REACHED, Constants.SERVICE_OK)
+        .verifyComplete();
+    // The daily checkpoint is updated like by the blocking services
+    Account savingsBa = bankingServices.findBanByPerson(perId)
+        .filter(ba -> savingsBan.equals(ba.getBankAccountNumber())).blockFirst();
+    BalanceCheckpoint checkpoint = mongoTemplate
+        .findById(BalanceCheckpoint.idOf(savingsBa.getAccountId(), LocalDate.now()),
+            BalanceCheckpoint.class)
+        .block();
+    assertEquals(0, BigDecimal.valueOf(3000.0).compareTo(checkpoint.getDayAmount()));
+    assertEquals(2, checkpoint.getOpCount());
+
+    StepVerifier.create(bankingServices.findBanByPerson(perId)).expectNextCount(3)
+        .verifyComplete();
+    // The id of the person is normalized like by the other finders
+    StepVerifier.create(bankingServices.findBanByPerson(" " + perId.toLowerCase(Locale.ROOT)))
+        .expectNextCount(3).verifyComplete();
+    StepVerifier.create(bankingServices.login(mail)).expectNext(true)
+        .verifyComplete();
+  }
+}
@@ -2,20 +2,32 @@ package com.cambyze.banking.services;
 
 import java.math.BigDecimal;
 import java.time.LocalDate;
+import java.time.YearMonth;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.stereotype.Service;
 import com.cambyze.banking.persistence.model.Account;
 import com.cambyze.banking.persistence.model.Constants;
 import com.cambyze.banking.persistence.model.Operation;
+import com.cambyze.banking.persistence.model.OperationPage;
 import com.cambyze.banking.persistence.model.Person;
+import com.cambyze.banking.persistence.model.StatementSnapshot;
 import com.cambyze.banking.persistence.services.PersistenceServices;
-import com.cambyze.banking.services.tools.MathTools;
+import com.cambyze.banking.services.execution.AccountCommandExecutor;
+import com.cambyze.banking.services.execution.AccountLaneBusyException;
+import com.cambyze.banking.services.execution.OptimisticRetry;
+import com.cambyze.banking.services.tools.Money;
 
 
 
@@ -29,8 +41,17 @@ public class BankingServices {
 
   private PersistenceServices persistenceServices;
 
-  public BankingServices(PersistenceServices persistenceServices) {
+  // The commands which check then update a balance are serialized by bank account
+  private AccountCommandExecutor accountCommandExecutor;
+
+  // The commands are executed again when the bank account has been modified by another node
+  private OptimisticRetry optimisticRetry;
+
+  public BankingServices(PersistenceServices persistenceServices,
+      AccountCommandExecutor accountCommandExecutor, OptimisticRetry optimisticRetry) {
     this.persistenceServices = persistenceServices;
+    this.accountCommandExecutor = accountCommandExecutor;
+    this.optimisticRetry = optimisticRetry;
   }
 
   /**
@@ -58,46 +79,61 @@ public class BankingServices {
    *         </p>
    */
   public CreateDepositResponse createDeposit(String ban, BigDecimal amount) {
+    // The insert of the operation is waited for out of the lane
+    return accountCommandExecutor.execute(ban, () -> deposit(ban, amount)).join();
+  }
+
+  private CompletableFuture<CreateDepositResponse> deposit(String ban, BigDecimal amount) {
     Account ba = persistenceServices.findBankAccountByBAN(ban);
     LOGGER.debug(" ban : {}, amount: {}", ban, amount);
     if (ba != null && !ba.getBankAccountNumber().isEmpty()) {
-      // Round to two decimals
-      amount = BigDecimal.valueOf(MathTools.roundWithDecimals(amount.doubleValue(), 2));
-      double oldBalance = ba.getBalanceAmount().doubleValue();
-      double newBalance = oldBalance + amount.doubleValue();
-      LOGGER.debug("amount: {}, old: {}, newBalance: {}", amount, oldBalance, newBalance);
-      if (ba.getAccountType().equals(Constants.ACCOUNT_TYPE_SAVINGS)
-          && newBalance > Constants.SAVINGS_ACCOUNT_LIMIT) {
-        LOGGER.error("The limit of the savings account is reached for the BAN: {}", ban);
-        return new CreateDepositResponse(null, Constants.SAVINGS_LIMIT_REACHED);
-
-      }
-      String opId = persistenceServices.createNewBankingOperation(ba, LocalDate.now(),
-          Constants.OPERATION_TYPE_DEPOSIT, amount);
-      LOGGER.debug("createNewBankingOperation opId/returnCode: {}", opId);
-      if (!opId.startsWith("-")) {
-        LOGGER.debug("The deposit is ok for the BAN: {} and the new balance is {}", ban,
-            ba.getBalanceAmount());
-        ba = persistenceServices.findBankAccountByBAN(ban);
-        return new CreateDepositResponse(ba.getBalanceAmount(), Constants.SERVICE_OK);
-      } else {
-        return new CreateDepositResponse(null, opId);
-      } // condition on opid
+      // Round to two decimals, null (invalid amount) if too large
+      amount = Money.round(amount);
+      // The limit of the savings account is checked by the atomic update of the balance
+      CompletableFuture<String> insert = persistenceServices.submitBankingOperation(ba,
+          LocalDate.now(), Constants.OPERATION_TYPE_DEPOSIT, amount);
+      // The new balance is returned by the update, no need to read the bank account again
+      BigDecimal newBalance = ba.getBalanceAmount();
+      return insert.thenApply(opId -> {
+        LOGGER.debug("createNewBankingOperation opId/returnCode: {}", opId);
+        if (!opId.startsWith("-")) {
+          LOGGER.debug("The deposit is ok for the BAN: {} and the new balance is {}", ban,
+              newBalance);
+          return new CreateDepositResponse(newBalance, Constants.SERVICE_OK);
+        } else {
+          return new CreateDepositResponse(null, opId);
+        } // condition on opid
+      });
     } else {
       LOGGER.error(Constants.ACCOUNT_NOT_EXIST, ban);
-      return new CreateDepositResponse(null, Constants.BANK_ACCOUNT_NOT_EXISTS);
+      return CompletableFuture
+          .completedFuture(new CreateDepositResponse(null, Constants.BANK_ACCOUNT_NOT_EXISTS));
     } // condition on ba
   }
 
 
   /**
    * Request for an overdraft
+   * <p>
+   * The retries after a concurrent update wait out of the lane of the bank account, each attempt
+   * being sent again to the lane, so that the wait does not delay the other commands of the lane.
+   * </p>
    * 
    * @param ban the Bank Account Number
    * @return the authorized overdraft amount else null and the return code within the object
    *         AskOverdraftResponse
    */
   public AskOverdraftResponse askOverdraft(String ban) {
+    try {
+      return optimisticRetry.execute("askOverdraft",
+          () -> accountCommandExecutor.execute(ban, () -> overdraft(ban)));
+    } catch (OptimisticLockingFailureException e) {
+      LOGGER.error("Overdraft not created for the BAN: {} because of concurrent updates", ban);
+      return new AskOverdraftResponse(null, Constants.TECHNICAL_ERROR);
+    }
+  }
+
+  private AskOverdraftResponse overdraft(String ban) {
     Account ba = persistenceServices.findBankAccountByBAN(ban);
     if (ba != null && !ba.getBankAccountNumber().isEmpty()) {
       if (ba.getAccountType().equals(Constants.ACCOUNT_TYPE_SAVINGS)) {
@@ -105,7 +141,8 @@ public class BankingServices {
         return new AskOverdraftResponse(null, Constants.OVERDRAFT_FORBID_SAVINGS_ACC);
       }
 
-      persistenceServices.createOverdraft(ba, BigDecimal.valueOf(Constants.OVERDRAFT_AMOUNT));
+      persistenceServices.createOverdraft(ba,
+          Money.of(Constants.OVERDRAFT_AMOUNT).toBigDecimal());
       LOGGER.debug("Overdraft OK: {}", ba.getOverdraftAmount());
       return new AskOverdraftResponse(ba.getOverdraftAmount(), Constants.SERVICE_OK);
 
@@ -127,59 +164,102 @@ public class BankingServices {
     return ban;
   }
 
+  /**
+   * Create a withdraw in a bank account
+   * 
+   * @param ban the Bank Account Number
+   * @param amount the amount of the withdraw
+   * @return the new balance else null and the return code within the object
+   *         CreateWithdrawResponse
+   */
   public CreateWithdrawResponse createWithdraw(String ban, BigDecimal amount) {
+    // The insert of the operation is waited for out of the lane
+    return accountCommandExecutor.execute(ban, () -> withdraw(ban, amount)).join();
+  }
+
+  private CompletableFuture<CreateWithdrawResponse> withdraw(String ban, BigDecimal amount) {
     Account ba = persistenceServices.findBankAccountByBAN(ban);
     if (ba != null && !ba.getBankAccountNumber().isEmpty() && ba.getBalanceAmount() != null
         && ba.getOverdraftAmount() != null) {
-      // Round to two decimals
-      amount = BigDecimal.valueOf(MathTools.roundWithDecimals(amount.doubleValue(), 2));
-      double newCalculatedBalance = ba.getBalanceAmount().doubleValue()
-          + ba.getOverdraftAmount().doubleValue() - amount.doubleValue();
-      if (newCalculatedBalance < 0.0) {
-        LOGGER.error("Not enough money available for the withdraw for the BAN: {}", ban);
-        return new CreateWithdrawResponse(null, Constants.INSUFFICIENT_BALANCE);
-
-      } else {
-        String opId = persistenceServices.createNewBankingOperation(ba, LocalDate.now(),
-            Constants.OPERATION_TYPE_WITHDRAW, amount);
-
-        if (!opId.isEmpty()) {
+      // Round to two decimals, null (invalid amount) if too large
+      amount = Money.round(amount);
+      // The balance plus the overdraft is checked by the atomic update of the balance
+      CompletableFuture<String> insert = persistenceServices.submitBankingOperation(ba,
+          LocalDate.now(), Constants.OPERATION_TYPE_WITHDRAW, amount);
+      // The new balance is returned by the update, no need to read the bank account again
+      BigDecimal newBalance = ba.getBalanceAmount();
+      return insert.thenApply(opId -> {
+        if (!opId.startsWith("-")) {
           LOGGER.debug("The withdraw is ok for the BAN: {} and the new balance is {}", ban,
-              ba.getBalanceAmount());
-          ba = persistenceServices.findBankAccountByBAN(ban);
-          return new CreateWithdrawResponse(ba.getBalanceAmount(), Constants.SERVICE_OK);
+              newBalance);
+          return new CreateWithdrawResponse(newBalance, Constants.SERVICE_OK);
         } else {
           return new CreateWithdrawResponse(null, opId);
         } // condition on opid
-      } // condition on newCalculatedBalance
+      });
     } else {
       LOGGER.error(Constants.ACCOUNT_NOT_EXIST, ban);
-      return new CreateWithdrawResponse(null, Constants.BANK_ACCOUNT_NOT_EXISTS);
+      return CompletableFuture
+          .completedFuture(new CreateWithdrawResponse(null, Constants.BANK_ACCOUNT_NOT_EXISTS));
     } // condition on ba
   }
 
 
+  /**
+   * Create a transfer between two bank accounts for operation date = today
+   * <p>
+   * The transfer is executed in the lanes of both bank accounts, taken in a fixed order so that
+   * concurrent transfers in opposite directions don't block each other. The debit follows the rules
+   * of a withdraw and the credit the rules of a deposit.
+   * </p>
+   * 
+   * @param fromBan the Bank Account Number of the debited bank account
+   * @param toBan the Bank Account Number of the credited bank account
+   * @param amount the amount of the transfer
+   * @return the new balance of the debited bank account else null and the return code within the
+   *         object CreateTransferResponse
+   */
+  public CreateTransferResponse createTransfer(String fromBan, String toBan, BigDecimal amount) {
+    return accountCommandExecutor.execute(fromBan, toBan, () -> transfer(fromBan, toBan, amount));
+  }
+
+  private CreateTransferResponse transfer(String fromBan, String toBan, BigDecimal amount) {
+    Account fromBa = persistenceServices.findBankAccountByBAN(fromBan);
+    Account toBa = persistenceServices.findBankAccountByBAN(toBan);
+    if (fromBa == null || toBa == null) {
+      LOGGER.error(Constants.ACCOUNT_NOT_EXIST, fromBa == null ? fromBan : toBan);
+      return new CreateTransferResponse(null, Constants.BANK_ACCOUNT_NOT_EXISTS);
+    }
+    // Round to two decimals, null (invalid amount) if too large
+    amount = Money.round(amount);
+    if (amount == null) {
+      return new CreateTransferResponse(null, Constants.INVALID_AMOUNT);
+    }
+    // The rules of both bank accounts are checked by the atomic updates of the balances
+    String opId = persistenceServices.createNewTransfer(fromBa, toBa, LocalDate.now(), amount);
+    if (opId.startsWith("-")) {
+      return new CreateTransferResponse(null, opId);
+    }
+    LOGGER.debug("The transfer is ok from the BAN: {} to the BAN: {} and the new balance is {}",
+        fromBan, toBan, fromBa.getBalanceAmount());
+    return new CreateTransferResponse(fromBa.getBalanceAmount(), Constants.SERVICE_OK);
+  }
+
   public MonthlyBankStatement createMonthlyBankStatement(String ban) {
 
-    // Add all the operations between now and one month before
+    // Add all the operations between now and one month before, sorted by the DB with the most
+    // recent first
     LocalDate limDate = LocalDate.now().minusMonths(1);
     List<MonthlyBankStatementOperation> bkops = new ArrayList<>();
-    List<Operation> ops = persistenceServices.findBankingOperationsOfBankAccount(ban);
+    List<Operation> ops =
+        persistenceServices.findBankingOperationsOfBankAccount(ban, limDate.plusDays(1), null);
     if (ops != null) {
-      LOGGER.debug("Number of operations before: {}", ops.size());
       for (Operation op : ops) {
-        if (op.getOperationDate().isAfter(limDate)) {
-          bkops.add(new MonthlyBankStatementOperation(op));
-        }
+        bkops.add(new MonthlyBankStatementOperation(op));
       }
-      LOGGER.debug("Number of operations after: {}", bkops.size());
+      LOGGER.debug("Number of operations: {}", bkops.size());
     }
 
-    // Sort the list by date
-    Comparator<MonthlyBankStatementOperation> reverseComparator =
-        (m1, m2) -> m2.getOperationDate().compareTo(m1.getOperationDate());
-    Collections.sort(bkops, reverseComparator);
-
     LOGGER.debug("List of bank statement operations: {}", bkops);
 
     // Find information about the bank account
@@ -194,6 +274,243 @@ public class BankingServices {
     }
   }
 
+  /**
+   * Bank statement of a calendar month
+   * <p>
+   * The statement of a closed month is read in the statements stored at the period close by
+   * StatementSnapshotJob. If it has not been stored yet, it is built without being stored, only
+   * the job stores the statements. The statement of the current month is computed with its
+   * operations until today.
+   * </p>
+   * 
+   * @param ban the Bank Account Number
+   * @param period the month of the statement, not after the current month
+   * @return the bank statement or null if the bank account does not exist or if the month is
+   *         before its first month
+   * @see #findFirstStatementPeriod(String)
+   */
+  public MonthlyBankStatement createMonthlyBankStatement(String ban, YearMonth period) {
+    Account ba = persistenceServices.findBankAccountByBAN(ban);
+    if (ba == null) {
+      LOGGER.error("Error when searching the BAN: {}", ban);
+      return null;
+    }
+    if (!period.isBefore(YearMonth.now())) {
+      // Current period: live computation
+      List<MonthlyBankStatementOperation> bkops = new ArrayList<>();
+      for (Operation op : persistenceServices.findBankingOperationsOfBankAccount(ban,
+          period.atDay(1), null)) {
+        bkops.add(new MonthlyBankStatementOperation(op));
+      }
+      return new MonthlyBankStatement(ba, period.toString(), bkops);
+    }
+    StatementSnapshot snapshot = persistenceServices.findCurrentStatementSnapshot(ba, period);
+    if (snapshot == null) {
+      if (period.isBefore(persistenceServices.findFirstStatementPeriod(ba))) {
+        LOGGER.debug("The month {} is before the first month of the BAN: {}", period, ban);
+        return null;
+      }
+      LOGGER.debug("No stored statement for the BAN: {} and the month {}", ban, period);
+      snapshot = persistenceServices.buildStatementSnapshot(ba, period);
+    }
+    return new MonthlyBankStatement(snapshot);
+  }
+
+  /**
+   * First month with a bank statement for a bank account
+   * 
+   * @param ban the Bank Account Number
+   * @return the month of the creation of the bank account or of its first operation, null if the
+   *         bank account does not exist
+   */
+  public YearMonth findFirstStatementPeriod(String ban) {
+    Account ba = persistenceServices.findBankAccountByBAN(ban);
+    if (ba == null) {
+      LOGGER.error(Constants.ACCOUNT_NOT_EXIST, ban);
+      return null;
+    }
+    return persistenceServices.findFirstStatementPeriod(ba);
+  }
+
+  /**
+   * Balance of a bank account at the end of a day
+   * <p>
+   * The balance is read in the nearest daily checkpoint until this day, without reading the
+   * operations
+   * </p>
+   * 
+   * @param ban the Bank Account Number
+   * @param date the day
+   * @return the balance at the end of the day or null if the bank account does not exist
+   */
+  public BigDecimal findBalanceAt(String ban, LocalDate date) {
+    Account ba = persistenceServices.findBankAccountByBAN(ban);
+    if (ba == null) {
+      LOGGER.error(Constants.ACCOUNT_NOT_EXIST, ban);
+      return null;
+    }
+    return persistenceServices.findBalanceAt(ba, date);
+  }
+
+  /**
+   * Build and store the bank statements of all the bank accounts for a closed month
+   * <p>
+   * The bank accounts created after the month are skipped. The statements already stored are kept,
+   * so that the job can be executed again after a failure.
+   * </p>
+   * 
+   * @param period the closed month
+   * @return the number of created statements
+   */
+  public int createStatementSnapshots(YearMonth period) {
+    AtomicInteger created = new AtomicInteger();
+    long accounts = persistenceServices.forEachBankAccount(ba -> {
+      if (!period.isBefore(persistenceServices.findFirstStatementPeriod(ba))
+          && persistenceServices.findStatementSnapshot(ba.getBankAccountNumber(), period) == null) {
+        persistenceServices.createStatementSnapshot(ba, period);
+        created.incrementAndGet();
+      }
+    });
+    LOGGER.info("{} statements created for {} bank accounts and the month {}", created.get(),
+        accounts, period);
+    return created.get();
+  }
+
+  /**
+   * Create a batch of deposits and withdraws on several bank accounts
+   * <p>
+   * The operations are checked with the same rules as createDeposit and createWithdraw, in the
+   * order of the list. The operations of each bank account are executed in its lane, like the
+   * other commands of the bank account, and persisted with one update of its balance and one bulk
+   * insert. The operations of a bank account whose lane is busy are answered with a technical
+   * error.
+   * </p>
+   * 
+   * @param requests the operations to create, the date of the day is used when no date is given
+   * @return the result of each operation in the same order as the requests, with the id of the
+   *         created operation or the return code
+   */
+  public List<BatchOperationResult> createOperations(List<BatchOperationRequest> requests) {
+    if (requests.size() > Constants.MAX_BATCH_SIZE) {
+      throw new IllegalArgumentException("Batch of " + requests.size()
+          + " operations, more than " + Constants.MAX_BATCH_SIZE);
+    }
+    // Indexes of the requests by bank account, in the order of the list
+    Map<String, List<Integer>> indexesByBan = new LinkedHashMap<>();
+    BatchOperationResult[] results = new BatchOperationResult[requests.size()];
+    for (int i = 0; i < requests.size(); i++) {
+      String ban = requests.get(i).getBan();
+      if (ban == null) {
+        results[i] = new BatchOperationResult(null, Constants.BANK_ACCOUNT_NOT_EXISTS, null);
+      } else {
+        indexesByBan.computeIfAbsent(Account.normalizeBan(ban), k -> new ArrayList<>()).add(i);
+      }
+    }
+
+    for (Map.Entry<String, List<Integer>> entry : indexesByBan.entrySet()) {
+      List<Integer> indexes = entry.getValue();
+      try {
+        List<BatchOperationResult> accountResults = accountCommandExecutor.execute(
+            entry.getKey(), () -> createAccountOperations(entry.getKey(), requests, indexes));
+        for (int j = 0; j < indexes.size(); j++) {
+          results[indexes.get(j)] = accountResults.get(j);
+        }
+      } catch (AccountLaneBusyException e) {
+        LOGGER.error("Operations not created for the BAN: {}, {}", entry.getKey(),
+            e.getMessage());
+        indexes.forEach(i -> results[i] = new BatchOperationResult(requests.get(i).getBan(),
+            Constants.TECHNICAL_ERROR, null));
+      }
+    }
+    LOGGER.debug("Batch of {} operations on {} bank accounts", requests.size(),
+        indexesByBan.size());
+    return Arrays.asList(results);
+  }
+
+  /**
+   * Create the operations of a batch on one bank account, executed in its lane
+   */
+  private List<BatchOperationResult> createAccountOperations(String ban,
+      List<BatchOperationRequest> requests, List<Integer> indexes) {
+    List<BatchOperationResult> results = new ArrayList<>(indexes.size());
+    Account ba = persistenceServices.findBankAccountByBAN(ban);
+    if (ba == null) {
+      LOGGER.error(Constants.ACCOUNT_NOT_EXIST, ban);
+      indexes.forEach(i -> results.add(new BatchOperationResult(requests.get(i).getBan(),
+          Constants.BANK_ACCOUNT_NOT_EXISTS, null)));
+      return results;
+    }
+
+    List<Operation> ops = new ArrayList<>(indexes.size());
+    for (int i : indexes) {
+      BatchOperationRequest request = requests.get(i);
+      // Round to two decimals, null (invalid amount) if too large
+      BigDecimal amount = Money.round(request.getAmount());
+      LocalDate opDate =
+          request.getOperationDate() != null ? request.getOperationDate() : LocalDate.now();
+      ops.add(new Operation(ba.getAccountId(), opDate, request.getOperationType(), amount));
+    }
+    List<String> opIds =
+        persistenceServices.createNewBankingOperations(Map.of(ba.getAccountId(), ba), ops);
+
+    for (int j = 0; j < indexes.size(); j++) {
+      String requestBan = requests.get(indexes.get(j)).getBan();
+      String opId = opIds.get(j);
+      if (opId.startsWith("-")) {
+        results.add(new BatchOperationResult(requestBan, opId, null));
+      } else {
+        results.add(new BatchOperationResult(requestBan, Constants.SERVICE_OK, opId));
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Page of the history of the operations of a bank account, the most recent first
+   * 
+   * @param ban the Bank Account Number
+   * @param afterDate date of the last operation of the previous page, null for the first page
+   * @param afterId id of the last operation of the previous page, null for the first page
+   * @param pageSize maximum number of operations of the page, at most Constants.MAX_PAGE_SIZE
+   * @return the page of operations with the cursor of the next page
+   */
+  public OperationPage findOperationHistory(String ban, LocalDate afterDate, String afterId,
+      int pageSize) {
+    OperationPage page =
+        persistenceServices.findBankingOperationsPage(ban, afterDate, afterId, pageSize);
+    LOGGER.debug("Page of {} operations for the BAN: {}", page.getOperations().size(), ban);
+    return page;
+  }
+
+  /**
+   * Check if a bank account exists
+   * 
+   * @param ban the Bank Account Number
+   * @return true if the bank account exists
+   */
+  public boolean existsBankAccount(String ban) {
+    return persistenceServices.findBankAccountByBAN(ban) != null;
+  }
+
+  /**
+   * Export all the operations of a bank account, the most recent first, without loading them in
+   * memory
+   * 
+   * @param ban the Bank Account Number
+   * @param action the action executed on each operation, for example its writing in a response
+   * @return the return code: Constants.SERVICE_OK or Constants.BANK_ACCOUNT_NOT_EXISTS
+   */
+  public String exportOperationHistory(String ban, Consumer<Operation> action) {
+    Account ba = persistenceServices.findBankAccountByBAN(ban);
+    if (ba == null) {
+      LOGGER.error(Constants.ACCOUNT_NOT_EXIST, ban);
+      return Constants.BANK_ACCOUNT_NOT_EXISTS;
+    }
+    long count = persistenceServices.forEachBankingOperation(ba, action);
+    LOGGER.debug("{} operations exported for the BAN: {}", count, ban);
+    return Constants.SERVICE_OK;
+  }
+
   /**
    * Create deposits and withdraw on a bank account for several dates as a sample
    * 
@@ -273,14 +590,17 @@ public class BankingServices {
   }
 
   /**
-   * Create a new user (person)
+   * Create a new user (person) with an everyday bank account
+   * <p>
+   * The mail already in use is refused by the unique index on the mail, without reading the
+   * persons first
+   * </p>
    * 
    * @param name
    * @param firstName
    * @param email
-   * @return
+   * @return the id of the new person, null if the mail is invalid or already in use
    */
-
   public String createPerson(String name, String firstName, String email) {
     if (name == null && firstName == null && email == null) {
       LOGGER.debug("all fields must be completed, and email valdid");
@@ -290,21 +610,20 @@ public class BankingServices {
       LOGGER.debug("EMAIL IS NOT VALIDE");
       return null;
     }
-    List<Person> pers = persistenceServices.findPersonByMail(email);
-    if (pers != null && !pers.isEmpty()) {
+    String per = persistenceServices.createNewPersonWithBankAccount(name, firstName, email);
+    if (per == null) {
       LOGGER.debug("this mail is already in use: {}  {}  {}", email, name, firstName);
       return null;
     }
-    String per = persistenceServices.createNewPerson(name, firstName, email);
     LOGGER.debug("new Person id : ({})", per);
-    String ban = this.createNewBankAccount(per);
-    LOGGER.debug("new bank account created ban: {}", ban);
     return per;
   }
 
 
   /**
    * function for return a string to create a better display
+   * <p>
+   * The person is read in the DB: for the logs, use Account.toString() instead
    * 
    * @param ba
    * @return String
@@ -336,13 +655,15 @@ public class BankingServices {
       LOGGER.debug("Find Account List is empty");
       return Collections.emptyList();
     }
-    if (LOGGER.isDebugEnabled()) {
-      StringBuilder accountDetails = new StringBuilder();
-      for (Account account : lAccount) {
-        accountDetails.append("\n  - ").append(accountToString(account));
-      }
-      LOGGER.debug("List accounts for person ({}): ({})", personId, accountDetails);
-    }
+    // The details are only built when the debug level is enabled, without reading the DB
+    LOGGER.atDebug().setMessage("List accounts for person ({}): ({})").addArgument(personId)
+        .addArgument(() -> {
+          StringBuilder accountDetails = new StringBuilder();
+          for (Account account : lAccount) {
+            accountDetails.append("\n  - ").append(account);
+          }
+          return accountDetails;
+        }).log();
     return lAccount;
   }
 
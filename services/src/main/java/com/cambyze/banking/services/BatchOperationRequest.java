@@ -0,0 +1,59 @@
+package com.cambyze.banking.services;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+/**
+ * Java bean of an operation of the services createOperations
+ */
+public class BatchOperationRequest {
+
+  private String ban;
+  private String operationType;
+  private BigDecimal amount;
+  private LocalDate operationDate;
+
+  public BatchOperationRequest() {
+    super();
+  }
+
+  public BatchOperationRequest(String ban, String operationType, BigDecimal amount) {
+    super();
+    this.ban = ban;
+    this.operationType = operationType;
+    this.amount = amount;
+  }
+
+  public String getBan() {
+    return ban;
+  }
+
+  public void setBan(String ban) {
+    this.ban = ban;
+  }
+
+  public String getOperationType() {
+    return operationType;
+  }
+
+  public void setOperationType(String operationType) {
+    this.operationType = operationType;
+  }
+
+  public BigDecimal getAmount() {
+    return amount;
+  }
+
+  public void setAmount(BigDecimal amount) {
+    this.amount = amount;
+  }
+
+  public LocalDate getOperationDate() {
+    return operationDate;
+  }
+
+  public void setOperationDate(LocalDate operationDate) {
+    this.operationDate = operationDate;
+  }
+
+}
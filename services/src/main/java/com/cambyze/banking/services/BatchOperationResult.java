@@ -0,0 +1,37 @@
+package com.cambyze.banking.services;
+
+/**
+ * Java bean as a response of the services createOperations for one operation
+ */
+public class BatchOperationResult {
+
+  private String ban;
+  private String returnCode;
+  private String operationId;
+
+  public BatchOperationResult(String ban, String returnCode, String operationId) {
+    super();
+    this.ban = ban;
+    this.returnCode = returnCode;
+    this.operationId = operationId;
+  }
+
+  public String getBan() {
+    return ban;
+  }
+
+  public String getReturnCode() {
+    return returnCode;
+  }
+
+  public String getOperationId() {
+    return operationId;
+  }
+
+  @Override
+  public String toString() {
+    return "BatchOperationResult [ban=" + ban + ", returnCode=" + returnCode + ", operationId="
+        + operationId + "]";
+  }
+
+}
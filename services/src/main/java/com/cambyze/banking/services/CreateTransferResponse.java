@@ -0,0 +1,28 @@
+package com.cambyze.banking.services;
+
+import java.math.BigDecimal;
+
+/**
+ * Java bean as a reponse of the services createTransfer
+ */
+public class CreateTransferResponse {
+
+  // New balance of the debited bank account only, the credited one may belong to another person
+  private BigDecimal newBalance;
+  private String returnCode;
+
+  public CreateTransferResponse(BigDecimal newBalance, String returnCode) {
+    super();
+    this.newBalance = newBalance;
+    this.returnCode = returnCode;
+  }
+
+  public BigDecimal getNewBalance() {
+    return newBalance;
+  }
+
+  public String getReturnCode() {
+    return returnCode;
+  }
+
+}
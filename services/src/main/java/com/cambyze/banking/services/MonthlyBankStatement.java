@@ -1,8 +1,12 @@
 package com.cambyze.banking.services;
 
+import java.util.ArrayList;
 import java.util.List;
 import com.cambyze.banking.persistence.model.Account;
 import com.cambyze.banking.persistence.model.Constants;
+import com.cambyze.banking.persistence.model.Operation;
+import com.cambyze.banking.persistence.model.StatementSnapshot;
+import com.cambyze.banking.services.tools.Money;
 
 /**
  * Java bean as a reponse of the services createDeposit
@@ -10,9 +14,11 @@ import com.cambyze.banking.persistence.model.Constants;
 public class MonthlyBankStatement {
 
   private String bankAccountNumber;
+  // Month of the statement as yyyy-MM, null for the statement of the last month until today
+  private String period;
   private String accountType;
-  private double balanceAmount;
-  private double overdraftAmount;
+  private Money balanceAmount;
+  private Money overdraftAmount;
   private List<MonthlyBankStatementOperation> operations;
 
 
@@ -20,14 +26,42 @@ public class MonthlyBankStatement {
   public MonthlyBankStatement(Account ba, List<MonthlyBankStatementOperation> operations) {
     super();
     this.bankAccountNumber = ba.getBankAccountNumber();
-    if (Constants.ACCOUNT_TYPE_BANK.equals(ba.getAccountType())) {
-      this.accountType = "Regular bank account";
+    this.accountType = accountTypeLabel(ba.getAccountType());
+    this.balanceAmount = Money.of(ba.getBalanceAmount());
+    this.overdraftAmount = Money.of(ba.getOverdraftAmount());
+    this.operations = operations;
+  }
+
+  public MonthlyBankStatement(Account ba, String period,
+      List<MonthlyBankStatementOperation> operations) {
+    this(ba, operations);
+    this.period = period;
+  }
+
+  /**
+   * Statement of a closed month stored at the period close
+   */
+  public MonthlyBankStatement(StatementSnapshot snapshot) {
+    super();
+    this.bankAccountNumber = snapshot.getBankAccountNumber();
+    this.period = snapshot.getPeriod();
+    this.accountType = accountTypeLabel(snapshot.getAccountType());
+    this.balanceAmount = Money.of(snapshot.getBalanceAmount());
+    this.overdraftAmount = Money.of(snapshot.getOverdraftAmount());
+    this.operations = new ArrayList<>();
+    if (snapshot.getOperations() != null) {
+      for (Operation op : snapshot.getOperations()) {
+        this.operations.add(new MonthlyBankStatementOperation(op));
+      }
+    }
+  }
+
+  private static String accountTypeLabel(String accountType) {
+    if (Constants.ACCOUNT_TYPE_BANK.equals(accountType)) {
+      return "Regular bank account";
     } else {
-      this.accountType = "Savings account";
+      return "Savings account";
     }
-    this.balanceAmount = ba.getBalanceAmount().doubleValue();
-    this.overdraftAmount = ba.getOverdraftAmount().doubleValue();
-    this.operations = operations;
   }
 
 
@@ -46,17 +80,21 @@ public class MonthlyBankStatement {
     return bankAccountNumber;
   }
 
+  public String getPeriod() {
+    return period;
+  }
+
   public String getAccountType() {
     return accountType;
   }
 
 
   public double getBalanceAmount() {
-    return balanceAmount;
+    return balanceAmount.toDouble();
   }
 
   public double getOverdraftAmount() {
-    return overdraftAmount;
+    return overdraftAmount.toDouble();
   }
 
 
@@ -2,6 +2,7 @@ package com.cambyze.banking.services;
 
 import com.cambyze.banking.persistence.model.Constants;
 import com.cambyze.banking.persistence.model.Operation;
+import com.cambyze.banking.services.tools.Money;
 
 /**
  * Java bean as a bean for the operations of the bank statement
@@ -10,7 +11,7 @@ public class MonthlyBankStatementOperation {
 
   private String operationDate;
   private String operationType;
-  private double amount;
+  private Money amount;
 
 
   public MonthlyBankStatementOperation(Operation op) {
@@ -18,10 +19,10 @@ public class MonthlyBankStatementOperation {
     this.operationDate = op.getOperationDate().toString();
     if (Constants.OPERATION_TYPE_DEPOSIT.equals(op.getOperationType())) {
       this.operationType = "Deposit";
-      this.amount = op.getAmount().doubleValue();
+      this.amount = Money.of(op.getAmount());
     } else {
       this.operationType = "Withdraw";
-      this.amount = op.getAmount().doubleValue() * -1.0;
+      this.amount = Money.of(op.getAmount()).negate();
     }
 
   }
@@ -44,7 +45,7 @@ public class MonthlyBankStatementOperation {
   }
 
   public double getAmount() {
-    return amount;
+    return amount.toDouble();
   }
 
 }
@@ -0,0 +1,210 @@
+package com.cambyze.banking.services.execution;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import com.cambyze.banking.persistence.model.Account;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Executor of the commands on the bank accounts by lanes
+ * <p>
+ * Each lane is a single thread. The commands of a bank account are always sent to the same lane,
+ * chosen by the hash of its BAN, so that they are executed one after the other without lock while
+ * the commands of the other bank accounts are executed in parallel in the other lanes.
+ * </p>
+ * <p>
+ * The number of lanes is set by the property "cambyze.account-lanes.count", by default the number
+ * of processors. The lanes are virtual threads when "spring.threads.virtual.enabled" is true. The
+ * number of commands waiting in each lane is published in the gauge
+ * "cambyze.account.lanes.queue.depth".
+ * </p>
+ * <p>
+ * Each lane keeps at most "cambyze.account-lanes.queue-capacity" waiting commands and a command
+ * not started after "cambyze.account-lanes.timeout" is cancelled: in both cases the command is not
+ * executed and an AccountLaneBusyException is thrown, counted in
+ * "cambyze.account.lanes.rejected". A command already started is always waited for, so that its
+ * result is never lost.
+ * </p>
+ */
+@Component
+public class AccountCommandExecutor implements MeterBinder {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(AccountCommandExecutor.class);
+
+  // Lane of the current thread, -1 when it is not a thread of a lane
+  private static final ThreadLocal<Integer> CURRENT_LANE = ThreadLocal.withInitial(() -> -1);
+
+  private final ThreadPoolExecutor[] lanes;
+
+  private final Duration timeout;
+
+  private final AtomicLong rejected = new AtomicLong();
+
+  public AccountCommandExecutor(@Value("${cambyze.account-lanes.count:0}") int laneCount,
+      @Value("${cambyze.account-lanes.queue-capacity:1000}") int queueCapacity,
+      @Value("${cambyze.account-lanes.timeout:10s}") Duration timeout,
+      @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads) {
+    this.timeout = timeout;
+    int count = laneCount > 0 ? laneCount : Runtime.getRuntime().availableProcessors();
+    lanes = new ThreadPoolExecutor[count];
+    for (int i = 0; i < count; i++) {
+      int lane = i;
+      // A virtual thread releases its carrier thread while it waits for the DB
+      Thread.Builder threadBuilder = virtualThreads ? Thread.ofVirtual().name("account-lane-" + i)
+          : Thread.ofPlatform().daemon().name("account-lane-" + i);
+      lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<>(queueCapacity), runnable -> threadBuilder.unstarted(() -> {
+            CURRENT_LANE.set(lane);
+            runnable.run();
+          }));
+    }
+    LOGGER.info("{} lanes for the commands on the bank accounts, virtual threads: {}", count,
+        virtualThreads);
+  }
+
+  /**
+   * Execute a command in the lane of a bank account and wait for its result
+   * <p>
+   * A command sent from the lane of the bank account is executed directly
+   * </p>
+   * 
+   * @param ban the Bank Account Number
+   * @param command the command to execute
+   * @return the result of the command
+   * @throws AccountLaneBusyException if the command is not executed because the lane is full or
+   *         has not started it before the timeout
+   */
+  public <T> T execute(String ban, Supplier<T> command) {
+    int lane = laneOf(ban);
+    if (CURRENT_LANE.get() == lane) {
+      return command.get();
+    }
+    // Taken by the lane to execute the command or by the timeout to cancel it, never both
+    AtomicBoolean taken = new AtomicBoolean();
+    Future<T> future;
+    try {
+      future = lanes[lane].submit(() -> taken.compareAndSet(false, true) ? command.get() : null);
+    } catch (RejectedExecutionException e) {
+      rejected.incrementAndGet();
+      throw new AccountLaneBusyException("The lane of the bank account " + ban + " is full");
+    }
+    try {
+      try {
+        return future.get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        if (taken.compareAndSet(false, true)) {
+          future.cancel(false);
+          lanes[lane].remove((Runnable) future);
+          rejected.incrementAndGet();
+          throw new AccountLaneBusyException(
+              "The command on the bank account " + ban + " has not started after " + timeout);
+        }
+        // Already started: its result is waited for
+        return future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for the command on " + ban, e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      } else if (e.getCause() instanceof Error error) {
+        throw error;
+      }
+      throw new IllegalStateException("Command failed on " + ban, e.getCause());
+    }
+  }
+
+  /**
+   * Execute a command in the lanes of two bank accounts and wait for its result
+   * <p>
+   * The lanes are always taken in the order of their index, whatever the order of the bank
+   * accounts: the lane of lower index waits for the other one, never the reverse, so two commands
+   * on the same bank accounts in the opposite order can't wait for each other. The first lane is
+   * blocked during the wait.
+   * </p>
+   * 
+   * @param ban the Bank Account Number of the first bank account
+   * @param otherBan the Bank Account Number of the second bank account
+   * @param command the command to execute
+   * @return the result of the command
+   */
+  public <T> T execute(String ban, String otherBan, Supplier<T> command) {
+    int lane = laneOf(ban);
+    int otherLane = laneOf(otherBan);
+    String firstBan = lane <= otherLane ? ban : otherBan;
+    String secondBan = lane <= otherLane ? otherBan : ban;
+    return execute(firstBan, () -> execute(secondBan, command));
+  }
+
+  /**
+   * Lane of a bank account
+   * 
+   * @param ban the Bank Account Number, the case is ignored as for the searches
+   * @return the index of the lane
+   */
+  public int laneOf(String ban) {
+    String key = ban != null ? Account.normalizeBan(ban) : "";
+    return Math.floorMod(key.hashCode(), lanes.length);
+  }
+
+  public int getLaneCount() {
+    return lanes.length;
+  }
+
+  /**
+   * Number of commands waiting in a lane
+   * 
+   * @param lane index of the lane
+   * @return the number of commands
+   */
+  public int getQueueDepth(int lane) {
+    return lanes[lane].getQueue().size();
+  }
+
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    FunctionCounter
+        .builder("cambyze.account.lanes.rejected", this, AccountCommandExecutor::getRejected)
+        .description("Commands not executed because their lane is full or busy")
+        .register(registry);
+    for (int i = 0; i < lanes.length; i++) {
+      int lane = i;
+      Gauge.builder("cambyze.account.lanes.queue.depth", this, e -> e.getQueueDepth(lane))
+          .description("Commands waiting in the lane").tag("lane", String.valueOf(lane))
+          .register(registry);
+    }
+  }
+
+  /**
+   * Stop the lanes after the execution of the waiting commands
+   */
+  @PreDestroy
+  public void shutdown() {
+    for (ThreadPoolExecutor lane : lanes) {
+      lane.shutdown();
+    }
+  }
+
+}
@@ -0,0 +1,14 @@
+package com.cambyze.banking.services.execution;
+
+/**
+ * The command has not been executed because the lane of its bank account is full or has not
+ * started it before the timeout, the request can be sent again later
+ */
+public class AccountLaneBusyException extends RuntimeException {
+
+  private static final long serialVersionUID = -2112387518349652019L;
+
+  public AccountLaneBusyException(String message) {
+    super(message);
+  }
+}
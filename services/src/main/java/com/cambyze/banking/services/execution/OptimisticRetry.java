@@ -0,0 +1,111 @@
+package com.cambyze.banking.services.execution;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Component;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Retry of a read-check-write sequence which failed because the bank account has been modified
+ * concurrently, typically by another node
+ * <p>
+ * The sequence is executed again, reading the new version of the bank account, at most
+ * "cambyze.optimistic-retry.max-attempts" times. Before each retry the thread waits for a random
+ * delay between 0 and "cambyze.optimistic-retry.base-delay" doubled at each attempt, so that the
+ * concurrent requests do not collide again.
+ * </p>
+ */
+@Component
+public class OptimisticRetry implements MeterBinder {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(OptimisticRetry.class);
+
+  private final int maxAttempts;
+
+  private final Duration baseDelay;
+
+  private final AtomicLong conflicts = new AtomicLong();
+
+  private final AtomicLong retries = new AtomicLong();
+
+  public OptimisticRetry(@Value("${cambyze.optimistic-retry.max-attempts:5}") int maxAttempts,
+      @Value("${cambyze.optimistic-retry.base-delay:5ms}") Duration baseDelay) {
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.baseDelay = baseDelay;
+  }
+
+  /**
+   * Execute a sequence, again while it fails because of a concurrent update
+   * 
+   * @param name name of the sequence for the logs
+   * @param sequence the read-check-write sequence
+   * @return the result of the sequence
+   * @throws OptimisticLockingFailureException if the last attempt fails
+   */
+  public <T> T execute(String name, Supplier<T> sequence) {
+    for (int attempt = 1;; attempt++) {
+      try {
+        return sequence.get();
+      } catch (OptimisticLockingFailureException e) {
+        conflicts.incrementAndGet();
+        if (attempt >= maxAttempts) {
+          LOGGER.error("{} failed after {} attempts: {}", name, attempt, e.getMessage());
+          throw e;
+        }
+        retries.incrementAndGet();
+        LOGGER.debug("{} conflict at the attempt {}: {}", name, attempt, e.getMessage());
+        pause(attempt);
+      }
+    }
+  }
+
+  private void pause(int attempt) {
+    long maxDelay = baseDelay.toNanos() << Math.min(attempt - 1, 10);
+    if (maxDelay <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(Duration.ofNanos(ThreadLocalRandom.current().nextLong(maxDelay + 1)));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for a retry", e);
+    }
+  }
+
+  /**
+   * Number of concurrent updates detected since the start
+   * 
+   * @return the number of conflicts
+   */
+  public long getConflicts() {
+    return conflicts.get();
+  }
+
+  /**
+   * Number of retries since the start
+   * 
+   * @return the number of retries
+   */
+  public long getRetries() {
+    return retries.get();
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    FunctionCounter.builder("cambyze.optimistic.conflicts", this, OptimisticRetry::getConflicts)
+        .description("Updates refused because the bank account had been modified")
+        .register(registry);
+    FunctionCounter.builder("cambyze.optimistic.retries", this, OptimisticRetry::getRetries)
+        .description("Read-check-write sequences executed again after a conflict")
+        .register(registry);
+  }
+
+}
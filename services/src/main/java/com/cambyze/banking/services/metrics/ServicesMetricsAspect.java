@@ -0,0 +1,139 @@
+package com.cambyze.banking.services.metrics;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+import com.cambyze.banking.persistence.model.Constants;
+import com.cambyze.banking.services.AskOverdraftResponse;
+import com.cambyze.banking.services.BatchOperationResult;
+import com.cambyze.banking.services.CreateDepositResponse;
+import com.cambyze.banking.services.CreateTransferResponse;
+import com.cambyze.banking.services.CreateWithdrawResponse;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Timer of the calls of the public methods of BankingServices and PersistenceServices
+ * <p>
+ * Each call is recorded in the timer "cambyze.service.calls" with the tags class, method and
+ * outcome. The outcome is the name of the Constants return code of the result (SERVICE_OK,
+ * INSUFFICIENT_BALANCE, ...), NOT_FOUND for a null result or an empty string, ERROR for a return
+ * code which is missing or unknown and EXCEPTION when an exception is thrown. The outcome of a
+ * batch is the first error of its items, SERVICE_OK when they are all created. A call returning a
+ * CompletableFuture is recorded at the completion of the future, with the outcome of its value.
+ * The count of the timer gives the number of calls by outcome.
+ * </p>
+ */
+@Aspect
+@Component
+public class ServicesMetricsAspect {
+
+  public static final String TIMER_NAME = "cambyze.service.calls";
+
+  public static final String OUTCOME_OK = "SERVICE_OK";
+  public static final String OUTCOME_NOT_FOUND = "NOT_FOUND";
+  public static final String OUTCOME_ERROR = "ERROR";
+  public static final String OUTCOME_EXCEPTION = "EXCEPTION";
+
+  // Name of the outcome by return code
+  private static final Map<String, String> OUTCOMES = Map.of(Constants.SERVICE_OK, OUTCOME_OK,
+      Constants.INVALID_BANK_ACCOUNT, "INVALID_BANK_ACCOUNT", Constants.INVALID_DATE,
+      "INVALID_DATE", Constants.INVALID_AMOUNT, "INVALID_AMOUNT",
+      Constants.INVALID_OPERATION_TYPE, "INVALID_OPERATION_TYPE",
+      Constants.BANK_ACCOUNT_NOT_EXISTS, "BANK_ACCOUNT_NOT_EXISTS",
+      Constants.OVERDRAFT_FORBID_SAVINGS_ACC, "OVERDRAFT_FORBID_SAVINGS_ACC",
+      Constants.INSUFFICIENT_BALANCE, "INSUFFICIENT_BALANCE", Constants.SAVINGS_LIMIT_REACHED,
+      "SAVINGS_LIMIT_REACHED", Constants.TECHNICAL_ERROR, "TECHNICAL_ERROR");
+
+  private final MeterRegistry meterRegistry;
+
+  /**
+   * The registry of the application is used when there is one (actuator), else the global registry
+   * which does nothing until a registry is added
+   */
+  public ServicesMetricsAspect(ObjectProvider<MeterRegistry> meterRegistry) {
+    this.meterRegistry = meterRegistry.getIfAvailable(() -> Metrics.globalRegistry);
+  }
+
+  @Around("execution(public * com.cambyze.banking.services.BankingServices.*(..)) || "
+      + "execution(public * com.cambyze.banking.persistence.services.PersistenceServices.*(..))")
+  public Object timeServiceCall(ProceedingJoinPoint joinPoint) throws Throwable {
+    Timer.Sample sample = Timer.start(meterRegistry);
+    String outcome = OUTCOME_EXCEPTION;
+    try {
+      Object result = joinPoint.proceed();
+      if (result instanceof CompletableFuture<?> future) {
+        // Recorded at the completion of the future
+        outcome = null;
+        future.whenComplete((value, e) -> stop(sample, joinPoint,
+            e != null ? OUTCOME_EXCEPTION : outcomeOf(value)));
+      } else {
+        outcome = outcomeOf(result);
+      }
+      return result;
+    } finally {
+      if (outcome != null) {
+        stop(sample, joinPoint, outcome);
+      }
+    }
+  }
+
+  private void stop(Timer.Sample sample, ProceedingJoinPoint joinPoint, String outcome) {
+    sample.stop(Timer.builder(TIMER_NAME)
+        .tag("class", joinPoint.getSignature().getDeclaringType().getSimpleName())
+        .tag("method", joinPoint.getSignature().getName()).tag("outcome", outcome)
+        .register(meterRegistry));
+  }
+
+  /**
+   * Outcome of a call from its result
+   * 
+   * @param result the result of the call
+   * @return the name of the return code of the result
+   */
+  static String outcomeOf(Object result) {
+    String code;
+    if (result == null) {
+      return OUTCOME_NOT_FOUND;
+    } else if (result instanceof CreateDepositResponse response) {
+      code = response.getReturnCode();
+    } else if (result instanceof CreateWithdrawResponse response) {
+      code = response.getReturnCode();
+    } else if (result instanceof CreateTransferResponse response) {
+      code = response.getReturnCode();
+    } else if (result instanceof AskOverdraftResponse response) {
+      code = response.getReturnCode();
+    } else if (result instanceof List<?> items) {
+      // Batch: the first error of its items
+      code = Constants.SERVICE_OK;
+      for (Object item : items) {
+        String itemCode = item instanceof BatchOperationResult batchResult
+            ? batchResult.getReturnCode()
+            : item instanceof String value && value.startsWith("-") ? value : null;
+        if (itemCode != null && !Constants.SERVICE_OK.equals(itemCode)) {
+          code = itemCode;
+          break;
+        }
+      }
+    } else if (result instanceof String value) {
+      // The services return an id, a BAN or an error code, an empty string when nothing is found
+      if (value.isEmpty()) {
+        return OUTCOME_NOT_FOUND;
+      }
+      code = value.startsWith("-") ? value : Constants.SERVICE_OK;
+    } else {
+      code = Constants.SERVICE_OK;
+    }
+    if (code == null) {
+      return OUTCOME_ERROR;
+    }
+    return OUTCOMES.getOrDefault(code, OUTCOME_ERROR);
+  }
+
+}
@@ -0,0 +1,27 @@
+package com.cambyze.banking.services.scheduling;
+
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import com.cambyze.banking.persistence.services.BalanceReconciliation;
+
+/**
+ * Job comparing each night the balances of the bank accounts with their operations
+ * <p>
+ * The schedule is set by the property "cambyze.reconciliation.cron", disabled ("-") by default.
+ * The mismatches are logged and counted in the metric "cambyze.reconciliation.mismatches".
+ * </p>
+ */
+@Component
+public class BalanceReconciliationJob {
+
+  private final BalanceReconciliation balanceReconciliation;
+
+  public BalanceReconciliationJob(BalanceReconciliation balanceReconciliation) {
+    this.balanceReconciliation = balanceReconciliation;
+  }
+
+  @Scheduled(cron = "${cambyze.reconciliation.cron:-}")
+  public void reconcileBalances() {
+    balanceReconciliation.reconcile();
+  }
+}
@@ -0,0 +1,31 @@
+package com.cambyze.banking.services.scheduling;
+
+import java.time.LocalDate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import com.cambyze.banking.persistence.services.InterestAccrualBatch;
+
+/**
+ * Job crediting each night the interests of the previous day on the savings accounts
+ * <p>
+ * The schedule is set by the property "cambyze.interest.cron", disabled ("-") by default. The runs
+ * of the previous days stopped by a crash are resumed by the next execution before the run of the
+ * previous day.
+ * </p>
+ */
+@Component
+public class InterestAccrualJob {
+
+  private final InterestAccrualBatch interestAccrualBatch;
+
+  public InterestAccrualJob(InterestAccrualBatch interestAccrualBatch) {
+    this.interestAccrualBatch = interestAccrualBatch;
+  }
+
+  @Scheduled(cron = "${cambyze.interest.cron:-}")
+  public void accrueInterests() {
+    LocalDate day = LocalDate.now().minusDays(1);
+    interestAccrualBatch.resumeStoppedRuns(day);
+    interestAccrualBatch.run(day);
+  }
+}
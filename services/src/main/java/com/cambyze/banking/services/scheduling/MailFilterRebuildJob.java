@@ -0,0 +1,29 @@
+package com.cambyze.banking.services.scheduling;
+
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import com.cambyze.banking.persistence.services.MailBloomFilter;
+
+/**
+ * Job rebuilding periodically the filter of the mails used by the logins
+ * <p>
+ * The rebuild resizes the filter to the number of persons and adds the persons created by the other
+ * instances. The interval is set by the property "cambyze.mail-filter.rebuild-interval", by
+ * default 15 minutes.
+ * </p>
+ */
+@Component
+public class MailFilterRebuildJob {
+
+  private final MailBloomFilter mailBloomFilter;
+
+  public MailFilterRebuildJob(MailBloomFilter mailBloomFilter) {
+    this.mailBloomFilter = mailBloomFilter;
+  }
+
+  @Scheduled(fixedDelayString = "${cambyze.mail-filter.rebuild-interval:PT15M}",
+      initialDelayString = "${cambyze.mail-filter.rebuild-interval:PT15M}")
+  public void rebuildMailFilter() {
+    mailBloomFilter.rebuild();
+  }
+}
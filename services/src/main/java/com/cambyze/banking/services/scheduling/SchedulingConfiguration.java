@@ -0,0 +1,16 @@
+package com.cambyze.banking.services.scheduling;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+/**
+ * Activation of the scheduled jobs of the services
+ * <p>
+ * The jobs are executed on virtual threads when "spring.threads.virtual.enabled" is true
+ * </p>
+ */
+@Configuration
+@EnableScheduling
+public class SchedulingConfiguration {
+
+}
@@ -0,0 +1,36 @@
+package com.cambyze.banking.services.scheduling;
+
+import java.time.YearMonth;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import com.cambyze.banking.services.BankingServices;
+
+/**
+ * Job building the bank statements of all the bank accounts at the close of each month
+ * <p>
+ * The statements of the closed month are stored so that the requests of the first days of the
+ * next month read them by id instead of computing them from the operations. The schedule is set
+ * by the property "cambyze.statement-snapshots.cron", by default 00:05 the first day of each month;
+ * "-" disables the job.
+ * </p>
+ */
+@Component
+public class StatementSnapshotJob {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StatementSnapshotJob.class);
+
+  private final BankingServices bankingServices;
+
+  public StatementSnapshotJob(BankingServices bankingServices) {
+    this.bankingServices = bankingServices;
+  }
+
+  @Scheduled(cron = "${cambyze.statement-snapshots.cron:0 5 0 1 * *}")
+  public void createStatementSnapshots() {
+    YearMonth closedPeriod = YearMonth.now().minusMonths(1);
+    LOGGER.info("Creation of the bank statements of the month {}", closedPeriod);
+    bankingServices.createStatementSnapshots(closedPeriod);
+  }
+}
@@ -0,0 +1,42 @@
+package com.cambyze.banking.services.scheduling;
+
+import java.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import com.cambyze.banking.persistence.services.PersistenceServices;
+
+/**
+ * Job finishing or cancelling periodically the transfers interrupted out of the transactional mode
+ * <p>
+ * The interval is set by the property "cambyze.transfers.recovery-interval", by default 1 minute.
+ * Only the transfers pending for more than "cambyze.transfers.recovery-delay", by default 1
+ * minute, are recovered: the delay must be longer than the slowest transfer.
+ * </p>
+ */
+@Component
+public class TransferRecoveryJob {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TransferRecoveryJob.class);
+
+  private final PersistenceServices persistenceServices;
+
+  private final Duration delay;
+
+  public TransferRecoveryJob(PersistenceServices persistenceServices,
+      @Value("${cambyze.transfers.recovery-delay:1m}") Duration delay) {
+    this.persistenceServices = persistenceServices;
+    this.delay = delay;
+  }
+
+  @Scheduled(fixedDelayString = "${cambyze.transfers.recovery-interval:PT1M}",
+      initialDelayString = "${cambyze.transfers.recovery-interval:PT1M}")
+  public void recoverTransfers() {
+    int recovered = persistenceServices.recoverTransfers(delay);
+    if (recovered > 0) {
+      LOGGER.warn("{} interrupted transfers recovered", recovered);
+    }
+  }
+}
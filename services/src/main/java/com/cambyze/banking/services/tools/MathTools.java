@@ -1,12 +1,7 @@
 package com.cambyze.banking.services.tools;
 
-
+import java.math.BigDecimal;
 import java.math.RoundingMode;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
-import java.util.Locale;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 /**
  * Mathematics tools
@@ -16,8 +11,6 @@ import org.slf4j.LoggerFactory;
  */
 public class MathTools {
 
-  private static final Logger LOGGER = LoggerFactory.getLogger(MathTools.class);
-
   /**
    * Round a Double with n decimals to be used typically for amounts as EUR with 2 decimals
    * <p>
@@ -34,20 +27,12 @@ public class MathTools {
 
   public static Double roundWithDecimals(Double number, int decimals) {
     if (number != null && decimals > 0) {
-      StringBuilder decPatternBuilder = new StringBuilder();
-
-      for (int i = 0; i < decimals; i++) {
-        decPatternBuilder.append('0');
+      double value = number;
+      if (Double.isNaN(value) || Double.isInfinite(value)) {
+        return value;
       }
-      String decPattern = decPatternBuilder.toString();
-      // locale ENGLISH to force the number format to allow the Double.valueof() at the end
-      DecimalFormat df =
-          new DecimalFormat("0." + decPattern, new DecimalFormatSymbols(Locale.ENGLISH));
-      // to round to the nearest decimal
-      df.setRoundingMode(RoundingMode.HALF_UP);
-      String stringValue = df.format(number);
-      LOGGER.debug(stringValue);
-      return Double.valueOf(stringValue);
+      // Exact binary value rounded as with a DecimalFormat, without formatting the number
+      return new BigDecimal(value).setScale(decimals, RoundingMode.HALF_UP).doubleValue();
     } else {
       return null;
     }
@@ -0,0 +1,156 @@
+package com.cambyze.banking.services.tools;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Amount of money with two decimals, stored as a number of cents
+ * <p>
+ * The arithmetic is done on long values without allocation of intermediate objects and without the
+ * drift of the floating-point numbers. The conversions from BigDecimal or double round to the
+ * nearest cent, half up (away from zero). The conversion to BigDecimal is done at the boundary of
+ * the services (API responses and persistence).
+ * 
+ * @see <a href="https://github.com/cambyze">cambyze GitHub</a>
+ */
+public final class Money implements Comparable<Money> {
+
+  public static final int DECIMALS = 2;
+  private static final long CENTS_PER_UNIT = 100L;
+
+  public static final Money ZERO = new Money(0L);
+
+  private final long cents;
+
+  private Money(long cents) {
+    this.cents = cents;
+  }
+
+  /**
+   * Amount with a number of cents
+   * 
+   * @param cents number of cents
+   * @return the amount
+   */
+  public static Money ofCents(long cents) {
+    return cents == 0L ? ZERO : new Money(cents);
+  }
+
+  /**
+   * Amount rounded to the nearest cent, half up
+   * 
+   * @param amount the amount, not null
+   * @return the rounded amount
+   */
+  public static Money of(BigDecimal amount) {
+    return ofCents(amount.movePointRight(DECIMALS).setScale(0, RoundingMode.HALF_UP)
+        .longValueExact());
+  }
+
+  /**
+   * Round an amount received by the services to the nearest cent, half up
+   * 
+   * @param amount the amount, may be null
+   * @return the rounded amount, null if the amount is null or has too many cents for a long
+   *         (invalid amount)
+   */
+  public static BigDecimal round(BigDecimal amount) {
+    if (amount == null) {
+      return null;
+    }
+    try {
+      return of(amount).toBigDecimal();
+    } catch (ArithmeticException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Amount rounded to the nearest cent, half up
+   * 
+   * @param amount the amount
+   * @return the rounded amount
+   */
+  public static Money of(double amount) {
+    return ofCents(roundToCents(amount));
+  }
+
+  /**
+   * Round a double to the nearest cent, half up
+   * <p>
+   * The exact binary value of the double is rounded, as DecimalFormat does: 2.675 is stored as
+   * 2.67499999... and is rounded to 2.67.
+   * </p>
+   * 
+   * @param amount the amount
+   * @return the number of cents
+   * @throws ArithmeticException if the amount has too many cents for a long
+   */
+  public static long roundToCents(double amount) {
+    return new BigDecimal(amount).setScale(DECIMALS, RoundingMode.HALF_UP)
+        .movePointRight(DECIMALS).longValueExact();
+  }
+
+  public Money plus(Money other) {
+    return ofCents(Math.addExact(cents, other.cents));
+  }
+
+  public Money minus(Money other) {
+    return ofCents(Math.subtractExact(cents, other.cents));
+  }
+
+  public Money negate() {
+    return ofCents(Math.negateExact(cents));
+  }
+
+  public int signum() {
+    return Long.signum(cents);
+  }
+
+  public boolean isNegative() {
+    return cents < 0L;
+  }
+
+  public long getCents() {
+    return cents;
+  }
+
+  /**
+   * Conversion for the API and the DB
+   * 
+   * @return the amount with two decimals
+   */
+  public BigDecimal toBigDecimal() {
+    return BigDecimal.valueOf(cents, DECIMALS);
+  }
+
+  /**
+   * Conversion for the beans which expose the amounts as double
+   * 
+   * @return the amount
+   */
+  public double toDouble() {
+    return (double) cents / CENTS_PER_UNIT;
+  }
+
+  @Override
+  public int compareTo(Money other) {
+    return Long.compare(cents, other.cents);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return obj instanceof Money && ((Money) obj).cents == cents;
+  }
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(cents);
+  }
+
+  // Overriding toString() method for a better description
+  @Override
+  public String toString() {
+    return toBigDecimal().toPlainString();
+  }
+}
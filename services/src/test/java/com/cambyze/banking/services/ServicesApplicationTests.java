@@ -1,9 +1,23 @@
 package com.cambyze.banking.services;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.YearMonth;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,6 +25,15 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import com.cambyze.banking.persistence.model.Account;
 import com.cambyze.banking.persistence.model.Constants;
+import com.cambyze.banking.persistence.services.PersistenceServices;
+import com.cambyze.banking.services.execution.AccountCommandExecutor;
+import com.cambyze.banking.services.execution.AccountLaneBusyException;
+import com.cambyze.banking.services.metrics.ServicesMetricsAspect;
+import com.cambyze.banking.services.tools.MathTools;
+import com.cambyze.banking.services.tools.Money;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 
 @SpringBootTest
 class ServicesApplicationTests {
@@ -20,6 +43,215 @@ class ServicesApplicationTests {
   @Autowired
   private BankingServices bankingServices;
 
+  @Autowired
+  private AccountCommandExecutor accountCommandExecutor;
+
+  @Autowired
+  private PersistenceServices persistenceServices;
+
+  @Test
+  void testAccountLanes() throws Exception {
+    LOGGER.debug("Test the lanes of the commands on the bank accounts");
+    String perId = bankingServices.createPerson("Ada", "Lovelace", uniqueMail("alovelace"));
+    String ban = bankingServices.createNewBankAccount(perId);
+    assertEquals(accountCommandExecutor.laneOf(ban),
+        accountCommandExecutor.laneOf(ban.toLowerCase(Locale.ROOT)));
+    bankingServices.createDeposit(ban, BigDecimal.valueOf(100.0));
+
+    // 10 concurrent withdraws of 20.0 on a balance of 100.0 without overdraft: 5 are refused
+    ExecutorService clients = Executors.newFixedThreadPool(10);
+    try {
+      List<Future<CreateWithdrawResponse>> responses = new ArrayList<>();
+      for (int i = 0; i < 10; i++) {
+        responses.add(
+            clients.submit(() -> bankingServices.createWithdraw(ban, BigDecimal.valueOf(20.0))));
+      }
+      int refused = 0;
+      for (Future<CreateWithdrawResponse> response : responses) {
+        if (Constants.INSUFFICIENT_BALANCE.equals(response.get().getReturnCode())) {
+          refused++;
+        }
+      }
+      assertEquals(5, refused);
+    } finally {
+      clients.shutdown();
+    }
+
+    // A lane of one waiting command: the next command is refused, the waiting one is cancelled
+    // after the timeout, both without execution
+    AccountCommandExecutor smallExecutor =
+        new AccountCommandExecutor(1, 1, Duration.ofMillis(200), false);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService senders = Executors.newFixedThreadPool(2);
+    try {
+      Future<Boolean> running = senders.submit(() -> smallExecutor.execute(ban, () -> {
+        started.countDown();
+        try {
+          return release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+      }));
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+      Future<String> waiting = senders.submit(() -> smallExecutor.execute(ban, () -> "waiting"));
+      while (smallExecutor.getQueueDepth(0) == 0 && !waiting.isDone()) {
+        Thread.sleep(5);
+      }
+      assertThrows(AccountLaneBusyException.class,
+          () -> smallExecutor.execute(ban, () -> "refused"));
+      ExecutionException timeout =
+          assertThrows(ExecutionException.class, () -> waiting.get(10, TimeUnit.SECONDS));
+      assertTrue(timeout.getCause() instanceof AccountLaneBusyException);
+      release.countDown();
+      assertTrue(running.get(10, TimeUnit.SECONDS));
+      assertEquals(2, smallExecutor.getRejected());
+      assertEquals(0, smallExecutor.getQueueDepth(0));
+    } finally {
+      senders.shutdown();
+      smallExecutor.shutdown();
+    }
+  }
+
+  @Test
+  void testTransfers() throws Exception {
+    LOGGER.debug("Test the transfers between two bank accounts");
+    String perId = bankingServices.createPerson("Alan", "Turing", uniqueMail("aturing"));
+    String ban = bankingServices.findBanByPerson(perId).get(0).getBankAccountNumber();
+    String otherBan = bankingServices.createNewBankAccount(perId);
+    String savingsBan = bankingServices.createNewSavingsAccount(perId);
+    bankingServices.createDeposit(ban, BigDecimal.valueOf(100.0));
+    bankingServices.createDeposit(savingsBan, BigDecimal.valueOf(4990.0));
+
+    CreateTransferResponse response =
+        bankingServices.createTransfer(ban, otherBan, BigDecimal.valueOf(30.0));
+    assertEquals(Constants.SERVICE_OK, response.getReturnCode());
+    assertEquals(0, BigDecimal.valueOf(70.0).compareTo(response.getNewBalance()));
+    assertEquals(0, BigDecimal.valueOf(30.0).compareTo(
+        persistenceServices.findBankAccountByBAN(otherBan).getBalanceAmount()));
+    // The rules of a withdraw on the debited bank account, of a deposit on the credited one
+    assertEquals(Constants.INSUFFICIENT_BALANCE,
+        bankingServices.createTransfer(ban, otherBan, BigDecimal.valueOf(500.0)).getReturnCode());
+    assertEquals(Constants.SAVINGS_LIMIT_REACHED,
+        bankingServices.createTransfer(ban, savingsBan, BigDecimal.valueOf(20.0)).getReturnCode());
+    assertEquals(0, BigDecimal.valueOf(70.0)
+        .compareTo(persistenceServices.findBankAccountByBAN(ban).getBalanceAmount()));
+    assertEquals(Constants.INVALID_BANK_ACCOUNT,
+        bankingServices.createTransfer(ban, ban, BigDecimal.TEN).getReturnCode());
+    assertEquals(Constants.BANK_ACCOUNT_NOT_EXISTS,
+        bankingServices.createTransfer(ban, "CAMBYZEBANK-X", BigDecimal.TEN).getReturnCode());
+    // An amount with more cents than a long is invalid
+    assertEquals(Constants.INVALID_AMOUNT, bankingServices
+        .createTransfer(ban, otherBan, new BigDecimal("1E+30")).getReturnCode());
+    assertEquals(Constants.INVALID_AMOUNT,
+        bankingServices.createDeposit(ban, new BigDecimal("1E+30")).getReturnCode());
+
+    // Concurrent transfers in both directions end without waiting for each other
+    ExecutorService clients = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<CreateTransferResponse>> responses = new ArrayList<>();
+      for (int i = 0; i < 40; i++) {
+        boolean forward = i % 2 == 0;
+        responses.add(clients.submit(() -> bankingServices.createTransfer(
+            forward ? ban : otherBan, forward ? otherBan : ban, BigDecimal.ONE)));
+      }
+      for (Future<CreateTransferResponse> future : responses) {
+        assertEquals(Constants.SERVICE_OK, future.get(30, TimeUnit.SECONDS).getReturnCode());
+      }
+    } finally {
+      clients.shutdown();
+    }
+    assertEquals(0, BigDecimal.valueOf(70.0)
+        .compareTo(persistenceServices.findBankAccountByBAN(ban).getBalanceAmount()));
+    assertEquals(0, BigDecimal.valueOf(30.0)
+        .compareTo(persistenceServices.findBankAccountByBAN(otherBan).getBalanceAmount()));
+  }
+
+  @Test
+  void testStatementSnapshots() {
+    LOGGER.debug("Test the bank statements of the closed months");
+    String perId = bankingServices.createPerson("Emmy", "Noether", uniqueMail("enoether"));
+    String ban = bankingServices.createNewBankAccount(perId);
+    YearMonth lastMonth = YearMonth.now().minusMonths(1);
+    persistenceServices.createNewBankingOperation(persistenceServices.findBankAccountByBAN(ban),
+        lastMonth.atDay(15), Constants.OPERATION_TYPE_DEPOSIT, BigDecimal.valueOf(50.0));
+    bankingServices.createDeposit(ban, BigDecimal.valueOf(100.0));
+
+    // A statement read before the period close is built without being stored
+    assertEquals(50.0,
+        bankingServices.createMonthlyBankStatement(ban, lastMonth).getBalanceAmount());
+    assertNull(persistenceServices.findStatementSnapshot(ban, lastMonth));
+    // No statement before the first month of the bank account
+    assertEquals(lastMonth, bankingServices.findFirstStatementPeriod(ban));
+    assertNull(bankingServices.createMonthlyBankStatement(ban, lastMonth.minusMonths(1)));
+    assertNull(bankingServices.createMonthlyBankStatement(ban, YearMonth.of(1900, 1)));
+    assertNull(persistenceServices.findStatementSnapshot(ban, YearMonth.of(1900, 1)));
+
+    assertTrue(bankingServices.createStatementSnapshots(lastMonth) > 0);
+    assertNotNull(persistenceServices.findStatementSnapshot(ban, lastMonth));
+    // The statement is stored once
+    assertEquals(0, bankingServices.createStatementSnapshots(lastMonth));
+
+    // Balance at the end of the last month, without the deposit of today
+    MonthlyBankStatement statement = bankingServices.createMonthlyBankStatement(ban, lastMonth);
+    assertEquals(lastMonth.toString(), statement.getPeriod());
+    assertEquals(50.0, statement.getBalanceAmount());
+    assertEquals(1, statement.getOperations().size());
+    assertEquals(0, BigDecimal.valueOf(50.0)
+        .compareTo(bankingServices.findBalanceAt(ban, lastMonth.atEndOfMonth())));
+
+    // Current month computed with the operations until today
+    statement = bankingServices.createMonthlyBankStatement(ban, YearMonth.now());
+    assertEquals(150.0, statement.getBalanceAmount());
+    assertEquals(1, statement.getOperations().size());
+
+    // Operation dated in the closed month after its statement: the statement is rebuilt
+    persistenceServices.createNewBankingOperation(persistenceServices.findBankAccountByBAN(ban),
+        lastMonth.atEndOfMonth(), Constants.OPERATION_TYPE_DEPOSIT, BigDecimal.valueOf(5.0));
+    statement = bankingServices.createMonthlyBankStatement(ban, lastMonth);
+    assertEquals(55.0, statement.getBalanceAmount());
+    assertEquals(2, statement.getOperations().size());
+    assertEquals(0, BigDecimal.valueOf(55.0)
+        .compareTo(persistenceServices.findStatementSnapshot(ban, lastMonth).getBalanceAmount()));
+  }
+
+  @Test
+  void testServiceMetrics() {
+    LOGGER.debug("Test the metrics of the services");
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    Metrics.addRegistry(registry);
+    try {
+      CreateDepositResponse response =
+          bankingServices.createDeposit("CAMBYZEBANK-UNKNOWN", BigDecimal.valueOf(10.0));
+      assertEquals(Constants.BANK_ACCOUNT_NOT_EXISTS, response.getReturnCode());
+      Timer timer = registry.find(ServicesMetricsAspect.TIMER_NAME)
+          .tags("class", "BankingServices", "method", "createDeposit", "outcome",
+              "BANK_ACCOUNT_NOT_EXISTS")
+          .timer();
+      assertNotNull(timer);
+      assertEquals(1, timer.count());
+      assertNotNull(registry.find(ServicesMetricsAspect.TIMER_NAME)
+          .tags("class", "PersistenceServices", "method", "findBankAccountByBAN", "outcome",
+              ServicesMetricsAspect.OUTCOME_NOT_FOUND)
+          .timer());
+      // No BAN for an unknown person: empty result
+      assertEquals("", bankingServices.createNewBankAccount("CLI-UNKNOWN"));
+      assertNotNull(registry.find(ServicesMetricsAspect.TIMER_NAME)
+          .tags("class", "BankingServices", "method", "createNewBankAccount", "outcome",
+              ServicesMetricsAspect.OUTCOME_NOT_FOUND)
+          .timer());
+      // Batch: the first error of its items
+      bankingServices.createOperations(List.of(new BatchOperationRequest("CAMBYZEBANK-UNKNOWN",
+          Constants.OPERATION_TYPE_DEPOSIT, BigDecimal.ONE)));
+      assertNotNull(registry.find(ServicesMetricsAspect.TIMER_NAME)
+          .tags("class", "BankingServices", "method", "createOperations", "outcome",
+              "BANK_ACCOUNT_NOT_EXISTS")
+          .timer());
+    } finally {
+      Metrics.removeRegistry(registry);
+    }
+  }
+
   @Test
   void testServices() {
     LOGGER.debug("Test services");
@@ -34,26 +266,29 @@ class ServicesApplicationTests {
     LOGGER.debug("Test value not ok: ({})", perId);
 
 
-    perId = bankingServices.createPerson("christof", "colomb", "ccolomb@mail.com");
+    String mail = uniqueMail("ccolomb");
+    perId = bankingServices.createPerson("christof", "colomb", mail);
     LOGGER.debug("NEW Person Created : {}", perId);
     assertTrue(perId != null);
+    // Created with its everyday bank account
+    assertEquals(1, bankingServices.findBanByPerson(perId).size());
 
     String perId2;
 
-    perId2 = bankingServices.createPerson("christ", "Jesus", "ccolomb@mail.com");
+    perId2 = bankingServices.createPerson("christ", "Jesus", mail);
     LOGGER.debug("Mails allready use TEST: {}", perId2);
     assertTrue(perId2 == null);
 
-    perId2 = bankingServices.createPerson("Marie", "Curie", "Mcurie@mail.com");
+    perId2 = bankingServices.createPerson("Marie", "Curie", uniqueMail("Mcurie"));
     LOGGER.debug("Mails Test2: {}", perId2);
     assertTrue(perId != null);
 
-    LOGGER.debug("test mail {} is valid : {}", "ccolomb@mail.com",
-        bankingServices.login("ccolomb@mail.com"));
+    LOGGER.debug("test mail {} is valid : {}", mail,
+        bankingServices.login(mail));
 
     LOGGER.debug("TEST LOGIN");
-    boolean log = bankingServices.login("ccolomb@mail.com");
-    LOGGER.debug("mail exist {} : {}", "ccolomb@mail.com");
+    boolean log = bankingServices.login(mail);
+    LOGGER.debug("mail exist {} : {}", mail);
     assertTrue(log == true);
 
     log = bankingServices.login("test@mail.com");
@@ -197,4 +432,34 @@ class ServicesApplicationTests {
     assertEquals(6, bk.getOperations().size());
 
   }
+
+  @Test
+  void testMoney() {
+    LOGGER.debug("Test money");
+    assertEquals(12026L, Money.of(BigDecimal.valueOf(120.255)).getCents());
+    assertEquals(-12026L, Money.of(BigDecimal.valueOf(-120.255)).getCents());
+    assertEquals(Money.ofCents(30), Money.of(0.1).plus(Money.of(0.2)));
+    assertEquals(BigDecimal.valueOf(22500, 2),
+        Money.of(525.25).minus(Money.of(300.25)).toBigDecimal());
+    assertEquals(-18.25, Money.ofCents(1825).negate().toDouble());
+    assertEquals(BigDecimal.valueOf(12026, 2), Money.round(BigDecimal.valueOf(120.255)));
+    assertNull(Money.round(new BigDecimal("1E+30")));
+    assertNull(Money.round(null));
+    // The doubles are rounded from their exact binary value, as with a DecimalFormat
+    assertEquals(1L, Money.roundToCents(0.015));
+    assertEquals(267L, Money.roundToCents(2.675));
+    assertEquals(1023L, Money.roundToCents(10.235));
+    assertEquals(-267L, Money.roundToCents(-2.675));
+    assertEquals(0.01, MathTools.roundWithDecimals(0.015, 2));
+    assertEquals(2.67, MathTools.roundWithDecimals(2.675, 2));
+    assertEquals(10.23, MathTools.roundWithDecimals(10.235, 2));
+    assertEquals(120.25, MathTools.roundWithDecimals(120.255, 2));
+  }
+
+  /**
+   * Mail not used by the previous executions of the tests on the same DB
+   */
+  private static String uniqueMail(String name) {
+    return name + "." + UUID.randomUUID() + "@mail.com";
+  }
 }